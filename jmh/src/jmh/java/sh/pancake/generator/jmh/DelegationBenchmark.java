@@ -0,0 +1,127 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.jmh;
+
+import java.util.Iterator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import sh.pancake.generator.Generator;
+
+/**
+ * Values passed through chains of stepAll, against chains of wrapping iterators and flatMap
+ */
+@State(Scope.Thread)
+public class DelegationBenchmark {
+    public static final int SIZE = 1024;
+
+    @Param({ "1", "8", "32" })
+    public int depth;
+
+    private <T> void step(T item) {
+    }
+
+    private <T> void stepAll(Iterator<T> iterator) {
+    }
+
+    @Generator
+    private Iterator<Integer> genChain(int depth, int count) {
+        if (depth == 0) {
+            for (int i = 0; i < count; i++) {
+                step(i);
+            }
+        } else {
+            stepAll(genChain(depth - 1, count));
+        }
+    }
+
+    @Generator
+    private Iterator<Integer> genCountdown(int remaining) {
+        step(remaining);
+
+        if (remaining > 1) {
+            stepAll(genCountdown(remaining - 1));
+        }
+    }
+
+    private static class WrappingIterator<T> implements Iterator<T> {
+        private final Iterator<T> inner;
+
+        public WrappingIterator(Iterator<T> inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return inner.hasNext();
+        }
+
+        @Override
+        public T next() {
+            return inner.next();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void handIterator(Blackhole bh) {
+        Iterator<Integer> iter = IntStream.range(0, SIZE).iterator();
+        for (int i = 0; i < depth; i++) {
+            iter = new WrappingIterator<>(iter);
+        }
+
+        while (iter.hasNext()) {
+            bh.consume(iter.next());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void flatMap(Blackhole bh) {
+        Stream<Integer> stream = IntStream.range(0, SIZE).boxed();
+        for (int i = 0; i < depth; i++) {
+            stream = Stream.of(stream).flatMap(inner -> inner);
+        }
+
+        stream.forEach(bh::consume);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void generator(Blackhole bh) {
+        Iterator<Integer> iter = genChain(depth, SIZE);
+
+        while (iter.hasNext()) {
+            bh.consume(iter.next());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void generatorPush(Blackhole bh) {
+        genChain(depth, SIZE).forEachRemaining(bh::consume);
+    }
+
+    /**
+     * Every value is stepped by its own level of recursion, chain is as long as the sequence
+     */
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void recursiveGenerator(Blackhole bh) {
+        Iterator<Integer> iter = genCountdown(SIZE);
+
+        while (iter.hasNext()) {
+            bh.consume(iter.next());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.jmh;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import sh.pancake.generator.Generator;
+
+/**
+ * Foreach over collections inside of generator, against iterator and stream of the collection
+ */
+@State(Scope.Thread)
+@OperationsPerInvocation(ForEachBenchmark.SIZE)
+public class ForEachBenchmark {
+    public static final int SIZE = 1024;
+
+    @Param({ "array", "linked" })
+    public String kind;
+
+    private List<Integer> list;
+
+    @Setup
+    public void setup() {
+        list = "linked".equals(kind) ? new LinkedList<>() : new ArrayList<>(SIZE);
+
+        for (int i = 0; i < SIZE; i++) {
+            list.add(i);
+        }
+    }
+
+    private <T> void step(T item) {
+    }
+
+    private <T> void stepAll(Iterable<T> iterable) {
+    }
+
+    @Generator
+    private Iterator<Integer> genForEach(List<Integer> list) {
+        for (Integer item : list) {
+            step(item);
+        }
+    }
+
+    @Generator
+    private Iterator<Integer> genStepAll(List<Integer> list) {
+        stepAll(list);
+    }
+
+    @Benchmark
+    public void loop(Blackhole bh) {
+        for (Integer item : list) {
+            bh.consume(item);
+        }
+    }
+
+    @Benchmark
+    public void iterator(Blackhole bh) {
+        Iterator<Integer> iter = list.iterator();
+
+        while (iter.hasNext()) {
+            bh.consume(iter.next());
+        }
+    }
+
+    @Benchmark
+    public void stream(Blackhole bh) {
+        list.stream().forEach(bh::consume);
+    }
+
+    @Benchmark
+    public void generator(Blackhole bh) {
+        Iterator<Integer> iter = genForEach(list);
+
+        while (iter.hasNext()) {
+            bh.consume(iter.next());
+        }
+    }
+
+    @Benchmark
+    public void generatorPush(Blackhole bh) {
+        genForEach(list).forEachRemaining(bh::consume);
+    }
+
+    @Benchmark
+    public void generatorStepAll(Blackhole bh) {
+        Iterator<Integer> iter = genStepAll(list);
+
+        while (iter.hasNext()) {
+            bh.consume(iter.next());
+        }
+    }
+}
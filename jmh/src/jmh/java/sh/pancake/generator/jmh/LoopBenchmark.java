@@ -0,0 +1,161 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.jmh;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import sh.pancake.generator.BatchIterator;
+import sh.pancake.generator.Generator;
+
+/**
+ * Tight counting loop, generated iterators against hand written iterator, streams and plain loop
+ */
+@State(Scope.Thread)
+@OperationsPerInvocation(LoopBenchmark.SIZE)
+public class LoopBenchmark {
+    public static final int SIZE = 1024;
+
+    private final int[] batch = new int[64];
+
+    private <T> void step(T item) {
+    }
+
+    @Generator
+    private Iterator<Integer> genRange(int count) {
+        for (int i = 0; i < count; i++) {
+            step(i);
+        }
+    }
+
+    @Generator
+    private PrimitiveIterator.OfInt genIntRange(int count) {
+        for (int i = 0; i < count; i++) {
+            step(i);
+        }
+    }
+
+    @Generator
+    private Stream<Integer> genStream(int count) {
+        for (int i = 0; i < count; i++) {
+            step(i);
+        }
+    }
+
+    @Generator(mode = Generator.Mode.THREAD)
+    private Iterator<Integer> genThreadRange(int count) {
+        for (int i = 0; i < count; i++) {
+            step(i);
+        }
+    }
+
+    private static class RangeIterator implements PrimitiveIterator.OfInt {
+        private final int count;
+        private int i;
+
+        public RangeIterator(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return i < count;
+        }
+
+        @Override
+        public int nextInt() {
+            if (i >= count) {
+                throw new NoSuchElementException();
+            }
+
+            return i++;
+        }
+    }
+
+    @Benchmark
+    public void loop(Blackhole bh) {
+        for (int i = 0; i < SIZE; i++) {
+            bh.consume(i);
+        }
+    }
+
+    @Benchmark
+    public void handIterator(Blackhole bh) {
+        PrimitiveIterator.OfInt iter = new RangeIterator(SIZE);
+
+        while (iter.hasNext()) {
+            bh.consume(iter.nextInt());
+        }
+    }
+
+    @Benchmark
+    public void intStream(Blackhole bh) {
+        IntStream.range(0, SIZE).forEach(bh::consume);
+    }
+
+    @Benchmark
+    public void boxedStream(Blackhole bh) {
+        IntStream.range(0, SIZE).boxed().forEach(bh::consume);
+    }
+
+    @Benchmark
+    public void generator(Blackhole bh) {
+        Iterator<Integer> iter = genRange(SIZE);
+
+        while (iter.hasNext()) {
+            bh.consume(iter.next());
+        }
+    }
+
+    @Benchmark
+    public void generatorPush(Blackhole bh) {
+        genRange(SIZE).forEachRemaining(bh::consume);
+    }
+
+    @Benchmark
+    public void primitiveGenerator(Blackhole bh) {
+        PrimitiveIterator.OfInt iter = genIntRange(SIZE);
+
+        while (iter.hasNext()) {
+            bh.consume(iter.nextInt());
+        }
+    }
+
+    @Benchmark
+    public void primitiveGeneratorBatch(Blackhole bh) {
+        BatchIterator.OfInt iter = (BatchIterator.OfInt) genIntRange(SIZE);
+
+        int count;
+        while ((count = iter.nextBatch(batch, 0, batch.length)) > 0) {
+            for (int i = 0; i < count; i++) {
+                bh.consume(batch[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    public void generatorStream(Blackhole bh) {
+        genStream(SIZE).forEach(bh::consume);
+    }
+
+    @Benchmark
+    public void threadGenerator(Blackhole bh) {
+        Iterator<Integer> iter = genThreadRange(SIZE);
+
+        while (iter.hasNext()) {
+            bh.consume(iter.next());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.jmh;
+
+import java.util.Iterator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import sh.pancake.generator.Generator;
+
+/**
+ * Steps in switch cases falling through each other, loop of SIZE iterations steps ELEMENTS values
+ */
+@State(Scope.Thread)
+@OperationsPerInvocation(SwitchBenchmark.ELEMENTS)
+public class SwitchBenchmark {
+    public static final int SIZE = 1024;
+    public static final int ELEMENTS = SIZE / 4 * 6;
+
+    private <T> void step(T item) {
+    }
+
+    @Generator
+    private Iterator<Integer> genSwitch(int count) {
+        for (int i = 0; i < count; i++) {
+            switch (i & 3) {
+                case 0:
+                    step(i);
+                case 1:
+                    step(i + 1);
+                    break;
+
+                case 2:
+                    step(i + 2);
+                default:
+                    step(i + 3);
+            }
+        }
+    }
+
+    @Benchmark
+    public void loop(Blackhole bh) {
+        for (int i = 0; i < SIZE; i++) {
+            switch (i & 3) {
+                case 0:
+                    bh.consume(i);
+                case 1:
+                    bh.consume(i + 1);
+                    break;
+
+                case 2:
+                    bh.consume(i + 2);
+                default:
+                    bh.consume(i + 3);
+            }
+        }
+    }
+
+    @Benchmark
+    public void generator(Blackhole bh) {
+        Iterator<Integer> iter = genSwitch(SIZE);
+
+        while (iter.hasNext()) {
+            bh.consume(iter.next());
+        }
+    }
+
+    @Benchmark
+    public void generatorPush(Blackhole bh) {
+        genSwitch(SIZE).forEachRemaining(bh::consume);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.jmh;
+
+import java.util.Iterator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import sh.pancake.generator.Generator;
+
+/**
+ * Steps inside of nested try blocks, every step enters protected regions and runs finally blocks
+ */
+@State(Scope.Thread)
+@OperationsPerInvocation(TryBenchmark.SIZE)
+public class TryBenchmark {
+    public static final int SIZE = 1024;
+
+    private int finished;
+
+    private <T> void step(T item) {
+    }
+
+    @Generator
+    private Iterator<Integer> genTry(int count) {
+        for (int i = 0; i < count; i++) {
+            try {
+                try {
+                    step(i);
+                } finally {
+                    finished++;
+                }
+            } catch (IllegalStateException e) {
+                step(-1);
+            }
+        }
+    }
+
+    @Benchmark
+    public void loop(Blackhole bh) {
+        for (int i = 0; i < SIZE; i++) {
+            try {
+                try {
+                    bh.consume(i);
+                } finally {
+                    finished++;
+                }
+            } catch (IllegalStateException e) {
+                bh.consume(-1);
+            }
+        }
+    }
+
+    @Benchmark
+    public void generator(Blackhole bh) {
+        Iterator<Integer> iter = genTry(SIZE);
+
+        while (iter.hasNext()) {
+            bh.consume(iter.next());
+        }
+    }
+
+    @Benchmark
+    public void generatorPush(Blackhole bh) {
+        genTry(SIZE).forEachRemaining(bh::consume);
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.stress;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import sh.pancake.generator.processor.PatchingProcessor;
+import sh.pancake.generator.stress.StressSource.Construct;
+
+/**
+ * Compiles synthetic generator sources with javac in process and writes compile time and memory of each as CSV.
+ * Each parameter is swept while the others stay at base values.
+ * With --check, exits with failure if time or allocation inside of the processor grows faster than linear in a sweep.
+ *
+ * Arguments: --output file, --runs count, --warmup count, --check
+ */
+public class CompileStress {
+    private static final int BASE_METHODS = 10;
+    private static final int BASE_DEPTH = 4;
+    private static final int BASE_STATEMENTS = 200;
+    private static final int BASE_LOCALS = 8;
+
+    /**
+     * Largest power of the swept parameter processor allocation may grow by between two points of a sweep
+     */
+    private static final double MAX_ALLOCATION_EXPONENT = 1.25;
+
+    /**
+     * Same for processor time, which is noisier than allocation
+     */
+    private static final double MAX_TIME_EXPONENT = 1.5;
+
+    /**
+     * Shorter processor times are dominated by noise and are not compared
+     */
+    private static final long MIN_CHECKED_NANOS = 50_000_000L;
+
+    private static final String HEADER = "scenario,methods,construct,depth,statements,locals,errors,"
+            + "javacMillis,processorMillis,processorAllocatedMB,javacAllocatedMB,peakHeapMB";
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+
+    private final JavaCompiler compiler;
+    private final Path outputDir;
+
+    private final int runs;
+    private final int warmup;
+
+    public CompileStress(Path outputDir, int runs, int warmup) {
+        compiler = ToolProvider.getSystemJavaCompiler();
+        this.outputDir = outputDir;
+        this.runs = runs;
+        this.warmup = warmup;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path output = Path.of("compile-stress.csv");
+        int runs = 3;
+        int warmup = 1;
+        boolean check = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--output" -> output = Path.of(args[++i]);
+                case "--runs" -> runs = Integer.parseInt(args[++i]);
+                case "--warmup" -> warmup = Integer.parseInt(args[++i]);
+                case "--check" -> check = true;
+                default -> throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        if (output.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(output.toAbsolutePath().getParent());
+        }
+
+        Path classes = Files.createTempDirectory("compile-stress");
+        CompileStress stress = new CompileStress(classes, runs, warmup);
+
+        List<Scenario> scenarios = scenarios();
+        List<Result> results = new ArrayList<>();
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(output))) {
+            writer.println(HEADER);
+            System.out.println(HEADER);
+
+            for (Scenario scenario : scenarios) {
+                Result result = stress.measure(scenario);
+                results.add(result);
+
+                String row = row(scenario, result);
+                writer.println(row);
+                writer.flush();
+                System.out.println(row);
+            }
+        }
+
+        if (check) {
+            List<String> violations = checkScaling(scenarios, results);
+            for (String violation : violations) {
+                System.err.println(violation);
+            }
+
+            if (!violations.isEmpty()) {
+                System.exit(1);
+            }
+        }
+    }
+
+    private static List<Scenario> scenarios() {
+        List<Scenario> scenarios = new ArrayList<>();
+
+        for (int methods : new int[] { 1, 10, 100, 400 }) {
+            scenarios.add(new Scenario("methods", methods, new StressSource("Methods" + methods, methods,
+                    Construct.LOOP, BASE_DEPTH, BASE_STATEMENTS, BASE_LOCALS)));
+        }
+
+        for (Construct construct : Construct.values()) {
+            for (int depth : new int[] { 1, 4, 16, 64 }) {
+                String name = construct.name().charAt(0) + construct.name().substring(1).toLowerCase(Locale.ROOT);
+                scenarios.add(new Scenario("depth", depth, new StressSource(name + "Depth" + depth, BASE_METHODS,
+                        construct, depth, BASE_STATEMENTS, BASE_LOCALS)));
+            }
+        }
+
+        for (int statements : new int[] { 100, 1000, 5000, 20000 }) {
+            scenarios.add(new Scenario("statements", statements, new StressSource("Statements" + statements, 1,
+                    Construct.LOOP, BASE_DEPTH, statements, BASE_LOCALS)));
+        }
+
+        for (int locals : new int[] { 1, 16, 256, 1024 }) {
+            scenarios.add(new Scenario("locals", locals, new StressSource("Locals" + locals, BASE_METHODS,
+                    Construct.LOOP, BASE_DEPTH, BASE_STATEMENTS, locals)));
+        }
+
+        return scenarios;
+    }
+
+    /**
+     * Compares each point of a sweep with the previous one
+     *
+     * @return Descriptions of points growing faster than allowed
+     */
+    private static List<String> checkScaling(List<Scenario> scenarios, List<Result> results) {
+        List<String> violations = new ArrayList<>();
+
+        for (int i = 1; i < scenarios.size(); i++) {
+            Scenario previous = scenarios.get(i - 1);
+            Scenario scenario = scenarios.get(i);
+            if (!scenario.name.equals(previous.name) || scenario.source.construct != previous.source.construct) {
+                continue;
+            }
+
+            Result base = results.get(i - 1);
+            Result result = results.get(i);
+            double parameterRatio = (double) scenario.parameter / previous.parameter;
+
+            double allocationExponent = exponent((double) result.processorAllocated / base.processorAllocated,
+                    parameterRatio);
+            if (allocationExponent > MAX_ALLOCATION_EXPONENT) {
+                violations.add(String.format(Locale.ROOT,
+                        "%s: processor allocation grows with power %.2f of %s from %d to %d, limit is %.2f",
+                        scenario.source.className, allocationExponent, scenario.name, previous.parameter,
+                        scenario.parameter, MAX_ALLOCATION_EXPONENT));
+            }
+
+            if (base.processorNanos < MIN_CHECKED_NANOS) {
+                continue;
+            }
+
+            double timeExponent = exponent((double) result.processorNanos / base.processorNanos, parameterRatio);
+            if (timeExponent > MAX_TIME_EXPONENT) {
+                violations.add(String.format(Locale.ROOT,
+                        "%s: processor time grows with power %.2f of %s from %d to %d, limit is %.2f",
+                        scenario.source.className, timeExponent, scenario.name, previous.parameter,
+                        scenario.parameter, MAX_TIME_EXPONENT));
+            }
+        }
+
+        return violations;
+    }
+
+    private static double exponent(double growth, double parameterRatio) {
+        return Math.log(growth) / Math.log(parameterRatio);
+    }
+
+    /**
+     * Compiles source of the scenario several times, median of measured runs is reported
+     */
+    private Result measure(Scenario scenario) throws IOException {
+        StressSource source = scenario.source;
+        JavaFileObject file = new SourceFile(source.className, source.generate());
+
+        Result[] results = new Result[runs];
+        for (int i = 0; i < warmup; i++) {
+            compile(file);
+        }
+
+        for (int i = 0; i < runs; i++) {
+            results[i] = compile(file);
+        }
+
+        Arrays.sort(results, (a, b) -> Long.compare(a.javacNanos, b.javacNanos));
+        return results[runs / 2];
+    }
+
+    private static String row(Scenario scenario, Result median) {
+        StressSource source = scenario.source;
+
+        return String.join(",",
+                scenario.name,
+                Integer.toString(source.methods),
+                source.construct.name(),
+                Integer.toString(source.depth),
+                Integer.toString(source.statements),
+                Integer.toString(source.locals),
+                Integer.toString(median.errors),
+                millis(median.javacNanos),
+                millis(median.processorNanos),
+                megabytes(median.processorAllocated),
+                megabytes(median.javacAllocated),
+                megabytes(median.peakHeap));
+    }
+
+    private Result compile(JavaFileObject file) throws IOException {
+        System.gc();
+
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        TimedProcessor processor = new TimedProcessor(new PatchingProcessor());
+
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null)) {
+            List<String> options = List.of(
+                    "-d", outputDir.toString(),
+                    "-classpath", System.getProperty("java.class.path"),
+                    "-nowarn");
+
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null,
+                    List.of(file));
+            task.setProcessors(List.of(processor));
+
+            long threadId = Thread.currentThread().getId();
+            long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+
+            task.call();
+
+            long javacNanos = System.nanoTime() - start;
+            long javacAllocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : heapPools) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+
+            int errors = 0;
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR && errors++ == 0) {
+                    System.err.println(diagnostic.getMessage(Locale.ROOT));
+                }
+            }
+
+            return new Result(errors, javacNanos, processor.nanos, processor.allocated, javacAllocated, peakHeap);
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2f", nanos / 1e6);
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format(Locale.ROOT, "%.2f", bytes / (1024.0 * 1024.0));
+    }
+
+    private static class Scenario {
+        public final String name;
+
+        /**
+         * Value of the swept parameter
+         */
+        public final int parameter;
+        public final StressSource source;
+
+        public Scenario(String name, int parameter, StressSource source) {
+            this.name = name;
+            this.parameter = parameter;
+            this.source = source;
+        }
+    }
+
+    private static class Result {
+        public final int errors;
+        public final long javacNanos;
+        public final long processorNanos;
+        public final long processorAllocated;
+        public final long javacAllocated;
+        public final long peakHeap;
+
+        public Result(int errors, long javacNanos, long processorNanos, long processorAllocated, long javacAllocated,
+                long peakHeap) {
+            this.errors = errors;
+            this.javacNanos = javacNanos;
+            this.processorNanos = processorNanos;
+            this.processorAllocated = processorAllocated;
+            this.javacAllocated = javacAllocated;
+            this.peakHeap = peakHeap;
+        }
+    }
+
+    private static class SourceFile extends SimpleJavaFileObject {
+        private final String content;
+
+        public SourceFile(String className, String content) {
+            super(URI.create("string:///stress/" + className + Kind.SOURCE.extension), Kind.SOURCE);
+            this.content = content;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return content;
+        }
+    }
+
+    /**
+     * Measures time and memory allocated by processor, javac runs processors on the thread calling it
+     */
+    private static class TimedProcessor implements Processor {
+        private final Processor processor;
+
+        public long nanos;
+        public long allocated;
+
+        public TimedProcessor(Processor processor) {
+            this.processor = processor;
+        }
+
+        @Override
+        public Set<String> getSupportedOptions() {
+            return processor.getSupportedOptions();
+        }
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return processor.getSupportedAnnotationTypes();
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return processor.getSupportedSourceVersion();
+        }
+
+        @Override
+        public void init(ProcessingEnvironment processingEnv) {
+            measure(() -> processor.init(processingEnv));
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            boolean[] claimed = { false };
+            measure(() -> claimed[0] = processor.process(annotations, roundEnv));
+
+            return claimed[0];
+        }
+
+        private void measure(Runnable runnable) {
+            long threadId = Thread.currentThread().getId();
+            long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+
+            runnable.run();
+
+            nanos += System.nanoTime() - start;
+            allocated += THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        }
+
+        @Override
+        public Iterable<? extends Completion> getCompletions(Element element, AnnotationMirror annotation,
+                ExecutableElement member, String userText) {
+            return processor.getCompletions(element, annotation, member, userText);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.stress;
+
+/**
+ * Synthetic generator class, every method nests the same construct and steps inside of the innermost one
+ */
+public class StressSource {
+    public enum Construct {
+        LOOP, TRY, SWITCH
+    }
+
+    public final String className;
+
+    public final int methods;
+    public final Construct construct;
+    public final int depth;
+
+    /**
+     * Statements in innermost level of each method
+     */
+    public final int statements;
+    public final int locals;
+
+    public StressSource(String className, int methods, Construct construct, int depth, int statements, int locals) {
+        this.className = className;
+        this.methods = methods;
+        this.construct = construct;
+        this.depth = depth;
+        this.statements = statements;
+        this.locals = locals;
+    }
+
+    public String generate() {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append("package stress;\n\n");
+        builder.append("import java.util.Iterator;\n\n");
+        builder.append("import sh.pancake.generator.Generator;\n\n");
+        builder.append("public class ").append(className).append(" {\n");
+        builder.append("    private static <T> void step(T item) {\n    }\n");
+
+        for (int i = 0; i < methods; i++) {
+            builder.append("\n    @Generator\n");
+            builder.append("    public static Iterator<Integer> gen").append(i).append("(int n) {\n");
+
+            for (int local = 0; local < locals; local++) {
+                builder.append("        int local").append(local).append(" = n + ").append(local).append(";\n");
+            }
+
+            appendLevel(builder, 0);
+            builder.append("    }\n");
+        }
+
+        builder.append("}\n");
+        return builder.toString();
+    }
+
+    private void appendLevel(StringBuilder builder, int level) {
+        if (level == depth) {
+            for (int i = 0; i < statements; i++) {
+                String local = "local" + (i % locals);
+
+                if (i % 4 == 0) {
+                    builder.append("step(").append(local).append(");\n");
+                } else {
+                    builder.append(local).append(" += ").append(i).append(";\n");
+                }
+            }
+
+            return;
+        }
+
+        switch (construct) {
+            case LOOP -> {
+                String index = "i" + level;
+                builder.append("for (int ").append(index).append(" = 0; ").append(index).append(" < n; ")
+                        .append(index).append("++) {\n");
+                appendLevel(builder, level + 1);
+                builder.append("}\n");
+            }
+
+            case TRY -> {
+                builder.append("try {\n");
+                appendLevel(builder, level + 1);
+                builder.append("} catch (IllegalStateException e").append(level).append(") {\n");
+                builder.append("step(-").append(level).append(");\n");
+                builder.append("} finally {\n");
+                builder.append("local0++;\n");
+                builder.append("}\n");
+            }
+
+            case SWITCH -> {
+                builder.append("switch ((n + ").append(level).append(") & 3) {\n");
+                builder.append("case 0:\n");
+                builder.append("step(").append(level).append(");\n");
+                builder.append("case 1:\n");
+                appendLevel(builder, level + 1);
+                builder.append("break;\n");
+                builder.append("default:\n");
+                builder.append("step(-1);\n");
+                builder.append("}\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Compiles fixture project with processor jar, processor must stay isolating for Gradle
+ */
+public class IncrementalProcessingTest {
+    private static final String ALPHA = """
+            package fixture;
+
+            import java.util.Iterator;
+
+            import sh.pancake.generator.Generator;
+
+            public class Alpha {
+                private static <T> void step(T item) {
+                }
+
+                @Generator(reusable = true)
+                public static Iterator<Integer> range(int count) {
+                    for (int i = 0; i < count; i++) {
+                        step(i);
+                    }
+                }
+
+                @Generator
+                public static Iterator<String> names() {
+                    step("a");
+                    step("b");
+                }
+            }
+            """;
+
+    private static final String BETA = """
+            package fixture;
+
+            import java.util.Iterator;
+
+            import sh.pancake.generator.Generator;
+
+            public class Beta {
+                private static <T> void step(T item) {
+                }
+
+                @Generator
+                public static Iterator<Integer> squares(int count) {
+                    for (int i = 0; i < count; i++) {
+                        step(i * i);
+                    }
+                }
+            }
+            """;
+
+    private static final String GAMMA = """
+            package fixture;
+
+            public class Gamma {
+                public static int sum(Iterable<Integer> values) {
+                    int sum = 0;
+                    for (int value : values) {
+                        sum += value;
+                    }
+
+                    return sum;
+                }
+            }
+            """;
+
+    @TempDir
+    Path tempDir;
+
+    private static void createFixture(Path dir, Path cacheDir) throws IOException {
+        String jar = System.getProperty("generator.jar").replace("\\", "/");
+
+        Files.writeString(dir.resolve("settings.gradle"), "rootProject.name = 'fixture'\n"
+                + "buildCache {\n"
+                + "    local {\n"
+                + "        directory = file('" + cacheDir.toString().replace("\\", "/") + "')\n"
+                + "    }\n"
+                + "}\n");
+
+        Files.writeString(dir.resolve("build.gradle"), "plugins {\n"
+                + "    id 'java'\n"
+                + "}\n"
+                + "\n"
+                + "dependencies {\n"
+                + "    implementation files('" + jar + "')\n"
+                + "    annotationProcessor files('" + jar + "')\n"
+                + "}\n"
+                + "\n"
+                + "tasks.withType(JavaCompile) {\n"
+                + "    options.compilerArgs += ['-Agenerator.report=generator/report', '-Agenerator.dump=generator/graphs']\n"
+                + "}\n");
+
+        Path sources = dir.resolve("src/main/java/fixture");
+        Files.createDirectories(sources);
+        Files.writeString(sources.resolve("Alpha.java"), ALPHA);
+        Files.writeString(sources.resolve("Beta.java"), BETA);
+        Files.writeString(sources.resolve("Gamma.java"), GAMMA);
+    }
+
+    private static BuildResult build(Path dir, String... args) {
+        return GradleRunner.create()
+                .withProjectDir(dir.toFile())
+                .withArguments(args)
+                .forwardOutput()
+                .build();
+    }
+
+    private static Path classFile(Path dir, String name) {
+        return dir.resolve("build/classes/java/main/fixture/" + name + ".class");
+    }
+
+    @Test
+    public void testIncrementalRecompile() throws IOException {
+        Path dir = tempDir.resolve("project");
+        Files.createDirectories(dir);
+        createFixture(dir, tempDir.resolve("cache"));
+
+        build(dir, "compileJava");
+
+        byte[] alphaClass = Files.readAllBytes(classFile(dir, "Alpha"));
+        FileTime betaTime = Files.getLastModifiedTime(classFile(dir, "Beta"));
+        FileTime betaReportTime = Files.getLastModifiedTime(
+                dir.resolve("build/generated/sources/annotationProcessor/java/main/generator/report/fixture.Beta.json"));
+
+        Path alphaSource = dir.resolve("src/main/java/fixture/Alpha.java");
+        Files.writeString(alphaSource, ALPHA.replace("step(\"b\");", "step(\"b\");\n        step(\"c\");"));
+
+        BuildResult changed = build(dir, "compileJava", "--info");
+        assertEquals(TaskOutcome.SUCCESS, changed.task(":compileJava").getOutcome());
+        assertFalse(changed.getOutput().contains("Full recompilation is required"), "Recompiled every class");
+        assertNotEquals(alphaClass.length, Files.readAllBytes(classFile(dir, "Alpha")).length);
+
+        // Beta does not depend on Alpha, neither its class nor its report is written again
+        assertEquals(betaTime, Files.getLastModifiedTime(classFile(dir, "Beta")));
+        assertEquals(betaReportTime, Files.getLastModifiedTime(
+                dir.resolve("build/generated/sources/annotationProcessor/java/main/generator/report/fixture.Beta.json")));
+
+        // Recompiling Alpha alone gives same output as full build
+        Files.writeString(alphaSource, ALPHA);
+        BuildResult reverted = build(dir, "compileJava", "--info");
+        assertFalse(reverted.getOutput().contains("Full recompilation is required"), "Recompiled every class");
+        assertArrayEquals(alphaClass, Files.readAllBytes(classFile(dir, "Alpha")));
+    }
+
+    @Test
+    public void testBuildCache() throws IOException {
+        Path cacheDir = tempDir.resolve("cache");
+
+        Path first = tempDir.resolve("first");
+        Files.createDirectories(first);
+        createFixture(first, cacheDir);
+
+        BuildResult firstResult = build(first, "compileJava", "--build-cache");
+        assertEquals(TaskOutcome.SUCCESS, firstResult.task(":compileJava").getOutcome());
+
+        build(first, "clean");
+        BuildResult cleanResult = build(first, "compileJava", "--build-cache");
+        assertEquals(TaskOutcome.FROM_CACHE, cleanResult.task(":compileJava").getOutcome());
+
+        // Output must not depend on location of the project
+        Path second = tempDir.resolve("second");
+        Files.createDirectories(second);
+        createFixture(second, cacheDir);
+
+        BuildResult secondResult = build(second, "compileJava", "--build-cache");
+        assertEquals(TaskOutcome.FROM_CACHE, secondResult.task(":compileJava").getOutcome());
+        assertTrue(Files.exists(classFile(second, "Alpha")));
+    }
+}
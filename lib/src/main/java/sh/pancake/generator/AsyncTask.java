@@ -0,0 +1,89 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Future of async generator, used by generated code.
+ * Generator runs on the calling thread until it awaits an incomplete future, then it resumes on the thread completing
+ * that future. Cancelling the task stops generator before it resumes.
+ */
+public final class AsyncTask<R> extends CompletableFuture<R> {
+    private final Body<R> body;
+    private final BiConsumer<Object, Throwable> resumer;
+
+    private AsyncTask(Body<R> body) {
+        this.body = body;
+        resumer = (value, error) -> run();
+    }
+
+    public static <R> CompletableFuture<R> start(Body<R> body) {
+        AsyncTask<R> task = new AsyncTask<>(body);
+        task.run();
+
+        return task;
+    }
+
+    /**
+     * Value of completed future, exception it is completed with is thrown as is
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T valueOf(CompletableFuture<?> future) {
+        try {
+            return (T) future.join();
+        } catch (CompletionException e) {
+            throw AsyncTask.<RuntimeException>sneakyThrow(e.getCause() != null ? e.getCause() : e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Throwable> RuntimeException sneakyThrow(Throwable t) throws E {
+        throw (E) t;
+    }
+
+    private void run() {
+        while (!isDone()) {
+            CompletableFuture<?> awaited;
+            try {
+                awaited = body.advance();
+            } catch (Throwable t) {
+                completeExceptionally(t);
+                return;
+            }
+
+            if (awaited == null) {
+                complete(body.result());
+                return;
+            }
+
+            // Future may complete after generator checked it
+            if (!awaited.isDone()) {
+                awaited.whenComplete(resumer);
+                return;
+            }
+        }
+    }
+
+    /**
+     * State machine of async generator
+     */
+    public interface Body<R> {
+        /**
+         * Runs generator until it awaits incomplete future
+         *
+         * @return Future awaited, null if generator is finished
+         */
+        CompletableFuture<?> advance();
+
+        /**
+         * Value generator returned
+         */
+        R result();
+    }
+}
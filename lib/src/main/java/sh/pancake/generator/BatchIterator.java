@@ -0,0 +1,47 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator;
+
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+
+/**
+ * Iterator filling an array with next values in one call.
+ * Iterators of generators implement it, generator method can also return it directly.
+ */
+public interface BatchIterator<T> extends Iterator<T> {
+
+    /**
+     * Writes next values into buf from off until len values are written or iteration is finished.
+     *
+     * @return Number of values written, less than len only if iteration is finished
+     */
+    int nextBatch(T[] buf, int off, int len);
+
+    public interface OfInt extends PrimitiveIterator.OfInt {
+
+        /**
+         * @see BatchIterator#nextBatch(Object[], int, int)
+         */
+        int nextBatch(int[] buf, int off, int len);
+    }
+
+    public interface OfLong extends PrimitiveIterator.OfLong {
+
+        /**
+         * @see BatchIterator#nextBatch(Object[], int, int)
+         */
+        int nextBatch(long[] buf, int off, int len);
+    }
+
+    public interface OfDouble extends PrimitiveIterator.OfDouble {
+
+        /**
+         * @see BatchIterator#nextBatch(Object[], int, int)
+         */
+        int nextBatch(double[] buf, int off, int len);
+    }
+}
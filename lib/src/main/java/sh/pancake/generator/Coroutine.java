@@ -0,0 +1,25 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Bidirectional generator, step used as expression resumes with value sent to it.
+ * Resuming with hasNext or next sends null.
+ */
+public interface Coroutine<T, V> extends Iterator<T> {
+
+    /**
+     * Resumes generator with value returned by step it is suspended at, and runs it until next step.
+     * Value sent before first step is dropped. Generator must not have a value buffered by hasNext.
+     *
+     * @return Next value
+     * @throws NoSuchElementException if generator finished
+     */
+    T send(V value);
+}
@@ -0,0 +1,42 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator;
+
+import java.util.Iterator;
+
+/**
+ * Generator which can hand iteration over to another generator in stepAll instead of forwarding its values.
+ * Implemented by generated code and driven by {@link Trampoline}.
+ */
+public interface Delegating<T> {
+
+    /**
+     * @return Generator behind iterator, null if iterator is not a generator
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Delegating<T> of(Iterator<T> iterator) {
+        return iterator instanceof Delegating ? (Delegating<T>) iterator : null;
+    }
+
+    /**
+     * Runs generator until it yields, finishes or delegates.
+     *
+     * @return Yielded value, null if generator finished or delegates
+     */
+    T advance();
+
+    /**
+     * Takes generator delegated to by last advance.
+     *
+     * @return Delegated generator, null if generator finished
+     */
+    Delegating<T> takeDelegate();
+
+    /**
+     * Finishes generator without running it, called when generator it delegated to threw
+     */
+    void finish();
+}
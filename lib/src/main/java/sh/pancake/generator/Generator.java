@@ -9,9 +9,61 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.annotation.ElementType;
+import java.util.Spliterator;
 
 @Retention(RetentionPolicy.SOURCE)
 @Target(ElementType.METHOD)
 public @interface Generator {
 
+    /**
+     * Spliterator characteristics reported by generators returning Spliterator or Stream.
+     * Yielded values are never null, so NONNULL always holds.
+     */
+    int characteristics() default Spliterator.ORDERED | Spliterator.NONNULL;
+
+    /**
+     * Size estimate reported by generators returning Spliterator or Stream.
+     * Must be exact element count if characteristics contains SIZED.
+     */
+    long estimatedSize() default Long.MAX_VALUE;
+
+    /**
+     * Let generators returning Spliterator or Stream split index range of body consisting of a single
+     * {@code for (int i = lo; i < hi; i++)} loop, so parallel streams run parts of the loop concurrently.
+     * Bounds are evaluated once and may only use literals, parameters never assigned and final fields.
+     * Loop must not leave early. Ignored if characteristics contains SIZED.
+     */
+    boolean splittable() default false;
+
+    /**
+     * Keep generator per thread and rewind it with new arguments on next call once it is finished.
+     * Method must be static. Returned generator must not be used after calling the method again on the same thread.
+     */
+    boolean reusable() default false;
+
+    /**
+     * Emit Flight Recorder events and {@link GeneratorProbe} counters from generated state machine.
+     * Processor option generator.instrument turns it on for every generator.
+     * Generator iterated with forEach runs state machine instead of original body then.
+     */
+    boolean instrumented() default false;
+
+    /**
+     * Backend running generator body.
+     */
+    Mode mode() default Mode.STATE_MACHINE;
+
+    enum Mode {
+        /**
+         * Body is compiled into state machine, suspending costs a method return
+         */
+        STATE_MACHINE,
+
+        /**
+         * Body runs unchanged on a virtual thread if available, or a daemon thread otherwise.
+         * Supports any statement, but each value is handed over between threads.
+         * Only generators returning Iterator, Iterable, Spliterator or Stream of objects can use it.
+         */
+        THREAD
+    }
 }
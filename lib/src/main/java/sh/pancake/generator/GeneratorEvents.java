@@ -0,0 +1,77 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder events of instrumented generators, committed by {@link GeneratorProbe}
+ */
+public final class GeneratorEvents {
+
+    private GeneratorEvents() {
+    }
+
+    @Name("sh.pancake.generator.Created")
+    @Label("Generator Created")
+    @Category("Generator")
+    @StackTrace(false)
+    static final class Created extends Event {
+        @Label("Generator")
+        String generator;
+    }
+
+    @Name("sh.pancake.generator.Resume")
+    @Label("Generator Resume")
+    @Description("Generator ran from resumed state until it suspended or finished")
+    @Category("Generator")
+    @StackTrace(false)
+    static final class Resume extends Event {
+        @Label("Generator")
+        String generator;
+
+        @Label("Resumed State")
+        int resumedState;
+
+        @Label("Suspended State")
+        @Description("State generator resumes from next time, 0 if it finished")
+        int suspendedState;
+    }
+
+    @Name("sh.pancake.generator.Exhausted")
+    @Label("Generator Exhausted")
+    @Description("Generator finished by running to end of body or throwing")
+    @Category("Generator")
+    @StackTrace(false)
+    static final class Exhausted extends Event {
+        @Label("Generator")
+        String generator;
+
+        @Label("Resumes")
+        long resumes;
+    }
+
+    @Name("sh.pancake.generator.Abandoned")
+    @Label("Generator Abandoned")
+    @Description("Generator became unreachable before it finished")
+    @Category("Generator")
+    @StackTrace(false)
+    static final class Abandoned extends Event {
+        @Label("Generator")
+        String generator;
+
+        @Label("State")
+        int state;
+
+        @Label("Resumes")
+        long resumes;
+    }
+}
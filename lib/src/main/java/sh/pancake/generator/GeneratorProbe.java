@@ -0,0 +1,245 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.EventType;
+
+/**
+ * Instrumentation of a generator method, used by code generated for instrumented generators.
+ * Counters are shared by every generator of the method, events are committed only while Flight Recorder records them.
+ */
+public final class GeneratorProbe implements GeneratorProbeMXBean {
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private static final EventType CREATED = EventType.getEventType(GeneratorEvents.Created.class);
+    private static final EventType RESUME = EventType.getEventType(GeneratorEvents.Resume.class);
+    private static final EventType EXHAUSTED = EventType.getEventType(GeneratorEvents.Exhausted.class);
+    private static final EventType ABANDONED = EventType.getEventType(GeneratorEvents.Abandoned.class);
+
+    private final String name;
+
+    private final LongAdder created;
+    private final LongAdder resumes;
+    private final LongAdder yields;
+    private final LongAdder stateTransitions;
+    private final LongAdder exceptions;
+    private final LongAdder exhausted;
+    private final LongAdder abandoned;
+
+    private GeneratorProbe(String name) {
+        this.name = name;
+
+        created = new LongAdder();
+        resumes = new LongAdder();
+        yields = new LongAdder();
+        stateTransitions = new LongAdder();
+        exceptions = new LongAdder();
+        exhausted = new LongAdder();
+        abandoned = new LongAdder();
+    }
+
+    /**
+     * Creates probe of generator method and registers it to platform MBean server.
+     * Probe is not registered if the name is taken, as when the class is loaded by another class loader.
+     *
+     * @param name Qualified name and signature of generator method
+     */
+    public static GeneratorProbe register(String name) {
+        GeneratorProbe probe = new GeneratorProbe(name);
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(probe,
+                    new ObjectName("sh.pancake.generator:type=Generator,name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+        }
+
+        return probe;
+    }
+
+    /**
+     * Starts tracking a created generator
+     */
+    public Run start(Object generator) {
+        Run run = new Run(this);
+        run.restart(generator);
+
+        return run;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCreated() {
+        return created.sum();
+    }
+
+    @Override
+    public long getResumes() {
+        return resumes.sum();
+    }
+
+    @Override
+    public long getYields() {
+        return yields.sum();
+    }
+
+    @Override
+    public long getStateTransitions() {
+        return stateTransitions.sum();
+    }
+
+    @Override
+    public long getExceptions() {
+        return exceptions.sum();
+    }
+
+    @Override
+    public long getExhausted() {
+        return exhausted.sum();
+    }
+
+    @Override
+    public long getAbandoned() {
+        return abandoned.sum();
+    }
+
+    /**
+     * Tracks one generator, used by the thread running it.
+     * Run does not reference generator, so it can report generator left unfinished once it becomes unreachable.
+     */
+    public static final class Run {
+        private final GeneratorProbe probe;
+
+        private Cleaner.Cleanable cleanable;
+        private volatile boolean finished;
+
+        private int state;
+        private long runResumes;
+
+        private GeneratorEvents.Resume event;
+
+        private Run(GeneratorProbe probe) {
+            this.probe = probe;
+        }
+
+        /**
+         * Starts tracking generator again, called when reusable generator is rewound
+         */
+        public void restart(Object generator) {
+            finished = false;
+            state = 1;
+            runResumes = 0;
+            cleanable = CLEANER.register(generator, this::abandon);
+
+            probe.created.increment();
+            if (CREATED.isEnabled()) {
+                GeneratorEvents.Created created = new GeneratorEvents.Created();
+                created.generator = probe.name;
+                created.commit();
+            }
+        }
+
+        /**
+         * Called before state machine runs
+         */
+        public void resume(int state) {
+            this.state = state;
+
+            if (RESUME.isEnabled()) {
+                event = new GeneratorEvents.Resume();
+                event.begin();
+            }
+        }
+
+        /**
+         * Called after state machine returned or threw
+         */
+        public void suspend(int state) {
+            int resumed = this.state;
+            this.state = state;
+
+            // Finished generator called again does nothing
+            if (resumed == 0) {
+                event = null;
+                return;
+            }
+
+            runResumes++;
+            probe.resumes.increment();
+
+            GeneratorEvents.Resume event = this.event;
+            if (event != null) {
+                this.event = null;
+                event.end();
+
+                if (event.shouldCommit()) {
+                    event.generator = probe.name;
+                    event.resumedState = resumed;
+                    event.suspendedState = state;
+                    event.commit();
+                }
+            }
+
+            if (state != 0) {
+                probe.yields.increment();
+                return;
+            }
+
+            finished = true;
+            cleanable.clean();
+
+            probe.exhausted.increment();
+            if (EXHAUSTED.isEnabled()) {
+                GeneratorEvents.Exhausted exhausted = new GeneratorEvents.Exhausted();
+                exhausted.generator = probe.name;
+                exhausted.resumes = runResumes;
+                exhausted.commit();
+            }
+        }
+
+        /**
+         * Called each time state machine runs a state
+         */
+        public void transition() {
+            probe.stateTransitions.increment();
+        }
+
+        /**
+         * Called when body threw
+         */
+        public void thrown() {
+            probe.exceptions.increment();
+        }
+
+        /**
+         * Runs on cleaner thread once generator is unreachable, or when it finished
+         */
+        private void abandon() {
+            if (finished) {
+                return;
+            }
+
+            probe.abandoned.increment();
+            if (ABANDONED.isEnabled()) {
+                GeneratorEvents.Abandoned abandoned = new GeneratorEvents.Abandoned();
+                abandoned.generator = probe.name;
+                abandoned.state = state;
+                abandoned.resumes = runResumes;
+                abandoned.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator;
+
+/**
+ * Counters of an instrumented generator method, registered as sh.pancake.generator:type=Generator,name=...
+ */
+public interface GeneratorProbeMXBean {
+
+    /**
+     * Qualified name and signature of generator method
+     */
+    String getName();
+
+    long getCreated();
+
+    long getResumes();
+
+    long getYields();
+
+    /**
+     * States run by state machine, several states can run in one resume
+     */
+    long getStateTransitions();
+
+    /**
+     * Exceptions reaching state machine, thrown out of body or caught by try statement containing step
+     */
+    long getExceptions();
+
+    long getExhausted();
+
+    long getAbandoned();
+}
@@ -0,0 +1,154 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Publisher of generator values, used by generated code.
+ * Each subscriber iterates its own generator, values are produced only as requested on the thread requesting them.
+ * Generator runs to its next step after each delivered value, so completion is signalled right after the last one.
+ */
+public final class GeneratorPublisher<T> implements Flow.Publisher<T> {
+    private final Supplier<? extends Iterator<T>> factory;
+
+    public GeneratorPublisher(Supplier<? extends Iterator<T>> factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber);
+
+        subscriber.onSubscribe(new GeneratorSubscription<>(subscriber, factory.get()));
+    }
+
+    private static final class GeneratorSubscription<T> implements Flow.Subscription {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final Iterator<T> iterator;
+
+        private final AtomicLong requested;
+
+        /**
+         * Pending drain requests, only the thread incrementing it from zero runs generator
+         */
+        private final AtomicInteger wip;
+
+        private volatile boolean cancelled;
+        private volatile boolean badRequest;
+
+        public GeneratorSubscription(Flow.Subscriber<? super T> subscriber, Iterator<T> iterator) {
+            this.subscriber = subscriber;
+            this.iterator = iterator;
+
+            requested = new AtomicLong();
+            wip = new AtomicInteger();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = true;
+            } else {
+                requested.getAndUpdate((current) -> {
+                    long sum = current + n;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            // Generator stops at its next suspension point
+            cancelled = true;
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            while (true) {
+                long demand = requested.get();
+                long emitted = 0;
+
+                while (emitted != demand) {
+                    if (cancelled) {
+                        return;
+                    }
+
+                    if (badRequest) {
+                        cancelled = true;
+                        subscriber.onError(new IllegalArgumentException("Request must be positive"));
+                        return;
+                    }
+
+                    T value;
+                    try {
+                        if (!iterator.hasNext()) {
+                            cancelled = true;
+                            subscriber.onComplete();
+                            return;
+                        }
+
+                        value = iterator.next();
+                    } catch (Throwable t) {
+                        cancelled = true;
+                        subscriber.onError(t);
+                        return;
+                    }
+
+                    subscriber.onNext(value);
+                    emitted++;
+
+                    if (cancelled) {
+                        return;
+                    }
+
+                    // Completion needs no demand, subscriber requesting exactly the remaining values completes
+                    try {
+                        if (!iterator.hasNext()) {
+                            cancelled = true;
+                            subscriber.onComplete();
+                            return;
+                        }
+                    } catch (Throwable t) {
+                        cancelled = true;
+                        subscriber.onError(t);
+                        return;
+                    }
+                }
+
+                if (cancelled) {
+                    return;
+                }
+
+                if (badRequest) {
+                    cancelled = true;
+                    subscriber.onError(new IllegalArgumentException("Request must be positive"));
+                    return;
+                }
+
+                if (emitted != 0 && demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Values stepAll accepts, used by generated code.
+ * Overload is chosen by static type of stepAll argument, iterator is used by state machine and forEach by push style method.
+ */
+public final class Sources {
+
+    private Sources() {
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> Iterator<T> iterator(Iterator<? extends T> iterator) {
+        return (Iterator<T>) iterator;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> Iterator<T> iterator(Iterable<? extends T> iterable) {
+        if (iterable instanceof List && iterable instanceof RandomAccess) {
+            return new ListCursor<>((List<? extends T>) iterable);
+        }
+
+        return (Iterator<T>) iterable.iterator();
+    }
+
+    public static <T> Iterator<T> iterator(T[] array) {
+        return new ArrayCursor<>(array);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> Iterator<T> iterator(Stream<? extends T> stream) {
+        return (Iterator<T>) stream.iterator();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> Iterator<T> iterator(Spliterator<? extends T> spliterator) {
+        return (Iterator<T>) Spliterators.iterator(spliterator);
+    }
+
+    public static <T> void forEach(Iterator<? extends T> iterator, Consumer<? super T> sink) {
+        // Generator pushing values would call push style method of each generator it delegates to on the stack.
+        // Pulling goes through its trampoline instead, so stack use does not depend on depth.
+        if (iterator instanceof Delegating) {
+            while (iterator.hasNext()) {
+                sink.accept(iterator.next());
+            }
+
+            return;
+        }
+
+        iterator.forEachRemaining(sink);
+    }
+
+    public static <T> void forEach(Iterable<? extends T> iterable, Consumer<? super T> sink) {
+        if (iterable instanceof Delegating) {
+            forEach(iterable.iterator(), sink);
+            return;
+        }
+
+        iterable.forEach(sink);
+    }
+
+    public static <T> void forEach(T[] array, Consumer<? super T> sink) {
+        for (T value : array) {
+            sink.accept(value);
+        }
+    }
+
+    public static <T> void forEach(Stream<? extends T> stream, Consumer<? super T> sink) {
+        stream.forEachOrdered(sink);
+    }
+
+    public static <T> void forEach(Spliterator<? extends T> spliterator, Consumer<? super T> sink) {
+        spliterator.forEachRemaining(sink);
+    }
+
+    public static PrimitiveIterator.OfInt iterator(PrimitiveIterator.OfInt iterator) {
+        return iterator;
+    }
+
+    public static PrimitiveIterator.OfInt iterator(int[] array) {
+        return new IntArrayCursor(array);
+    }
+
+    public static PrimitiveIterator.OfInt iterator(IntStream stream) {
+        return stream.iterator();
+    }
+
+    public static PrimitiveIterator.OfInt iterator(Spliterator.OfInt spliterator) {
+        return Spliterators.iterator(spliterator);
+    }
+
+    public static void forEach(PrimitiveIterator.OfInt iterator, IntConsumer sink) {
+        iterator.forEachRemaining(sink);
+    }
+
+    public static void forEach(int[] array, IntConsumer sink) {
+        for (int value : array) {
+            sink.accept(value);
+        }
+    }
+
+    public static void forEach(IntStream stream, IntConsumer sink) {
+        stream.forEachOrdered(sink);
+    }
+
+    public static void forEach(Spliterator.OfInt spliterator, IntConsumer sink) {
+        spliterator.forEachRemaining(sink);
+    }
+
+    public static PrimitiveIterator.OfLong iterator(PrimitiveIterator.OfLong iterator) {
+        return iterator;
+    }
+
+    public static PrimitiveIterator.OfLong iterator(long[] array) {
+        return new LongArrayCursor(array);
+    }
+
+    public static PrimitiveIterator.OfLong iterator(LongStream stream) {
+        return stream.iterator();
+    }
+
+    public static PrimitiveIterator.OfLong iterator(Spliterator.OfLong spliterator) {
+        return Spliterators.iterator(spliterator);
+    }
+
+    public static void forEach(PrimitiveIterator.OfLong iterator, LongConsumer sink) {
+        iterator.forEachRemaining(sink);
+    }
+
+    public static void forEach(long[] array, LongConsumer sink) {
+        for (long value : array) {
+            sink.accept(value);
+        }
+    }
+
+    public static void forEach(LongStream stream, LongConsumer sink) {
+        stream.forEachOrdered(sink);
+    }
+
+    public static void forEach(Spliterator.OfLong spliterator, LongConsumer sink) {
+        spliterator.forEachRemaining(sink);
+    }
+
+    public static PrimitiveIterator.OfDouble iterator(PrimitiveIterator.OfDouble iterator) {
+        return iterator;
+    }
+
+    public static PrimitiveIterator.OfDouble iterator(double[] array) {
+        return new DoubleArrayCursor(array);
+    }
+
+    public static PrimitiveIterator.OfDouble iterator(DoubleStream stream) {
+        return stream.iterator();
+    }
+
+    public static PrimitiveIterator.OfDouble iterator(Spliterator.OfDouble spliterator) {
+        return Spliterators.iterator(spliterator);
+    }
+
+    public static void forEach(PrimitiveIterator.OfDouble iterator, DoubleConsumer sink) {
+        iterator.forEachRemaining(sink);
+    }
+
+    public static void forEach(double[] array, DoubleConsumer sink) {
+        for (double value : array) {
+            sink.accept(value);
+        }
+    }
+
+    public static void forEach(DoubleStream stream, DoubleConsumer sink) {
+        stream.forEachOrdered(sink);
+    }
+
+    public static void forEach(Spliterator.OfDouble spliterator, DoubleConsumer sink) {
+        spliterator.forEachRemaining(sink);
+    }
+
+    private static final class ArrayCursor<T> implements Iterator<T> {
+        private final T[] array;
+        private int index;
+
+        public ArrayCursor(T[] array) {
+            this.array = array;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < array.length;
+        }
+
+        @Override
+        public T next() {
+            if (index >= array.length) {
+                throw new NoSuchElementException();
+            }
+
+            return array[index++];
+        }
+    }
+
+    /**
+     * Reads list by index, modification during iteration is not detected
+     */
+    private static final class ListCursor<T> implements Iterator<T> {
+        private final List<? extends T> list;
+        private int index;
+
+        public ListCursor(List<? extends T> list) {
+            this.list = list;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < list.size();
+        }
+
+        @Override
+        public T next() {
+            if (index >= list.size()) {
+                throw new NoSuchElementException();
+            }
+
+            return list.get(index++);
+        }
+    }
+
+    private static final class IntArrayCursor implements PrimitiveIterator.OfInt {
+        private final int[] array;
+        private int index;
+
+        public IntArrayCursor(int[] array) {
+            this.array = array;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < array.length;
+        }
+
+        @Override
+        public int nextInt() {
+            if (index >= array.length) {
+                throw new NoSuchElementException();
+            }
+
+            return array[index++];
+        }
+    }
+
+    private static final class LongArrayCursor implements PrimitiveIterator.OfLong {
+        private final long[] array;
+        private int index;
+
+        public LongArrayCursor(long[] array) {
+            this.array = array;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < array.length;
+        }
+
+        @Override
+        public long nextLong() {
+            if (index >= array.length) {
+                throw new NoSuchElementException();
+            }
+
+            return array[index++];
+        }
+    }
+
+    private static final class DoubleArrayCursor implements PrimitiveIterator.OfDouble {
+        private final double[] array;
+        private int index;
+
+        public DoubleArrayCursor(double[] array) {
+            this.array = array;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < array.length;
+        }
+
+        @Override
+        public double nextDouble() {
+            if (index >= array.length) {
+                throw new NoSuchElementException();
+            }
+
+            return array[index++];
+        }
+    }
+}
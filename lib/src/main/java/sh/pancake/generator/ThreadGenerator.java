@@ -0,0 +1,235 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator;
+
+import java.lang.ref.Cleaner;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Thread backend of generators, used by generated code.
+ * Body runs on its own thread and hands each value over to the consumer through a single slot, parking the other
+ * side, so nothing is allocated per value. Thread is unwound once the iterator is closed or becomes unreachable.
+ */
+public final class ThreadGenerator {
+    private static final ThreadFactory THREAD_FACTORY = createThreadFactory();
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private ThreadGenerator() {
+    }
+
+    /**
+     * Virtual thread factory on runtimes having it, daemon threads otherwise
+     */
+    private static ThreadFactory createThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return (runnable) -> {
+                Thread thread = new Thread(runnable, "generator");
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    public static <T> Iterator<T> iterator(Body<T> body) {
+        return new Handle<>(body);
+    }
+
+    public static <T> Spliterator<T> spliterator(Body<T> body, int characteristics) {
+        return Spliterators.spliteratorUnknownSize(new Handle<>(body), characteristics);
+    }
+
+    public static <T> Stream<T> stream(Body<T> body, int characteristics) {
+        Handle<T> handle = new Handle<>(body);
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(handle, characteristics), false)
+                .onClose(handle::close);
+    }
+
+    /**
+     * Original body of generator
+     */
+    public interface Body<T> {
+        void run(Consumer<? super T> sink);
+    }
+
+    /**
+     * Iterator given to consumer.
+     * Producer thread only references channel, so handle can become unreachable while thread waits.
+     */
+    private static final class Handle<T> implements Iterator<T>, AutoCloseable {
+        private final Channel<T> channel;
+        private final Cleaner.Cleanable cleanable;
+
+        private boolean pulled;
+
+        public Handle(Body<T> body) {
+            channel = new Channel<>(body);
+            cleanable = CLEANER.register(this, channel::abandon);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!pulled) {
+                channel.pull();
+                pulled = true;
+            }
+
+            return !channel.finished;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            pulled = false;
+            return channel.take();
+        }
+
+        @Override
+        public void close() {
+            cleanable.clean();
+        }
+    }
+
+    /**
+     * Single slot exchange between consumer and producer thread.
+     * Fields are written by the side holding turn, writing turn publishes them to the other side.
+     */
+    private static final class Channel<T> implements Runnable, Consumer<T> {
+        private static final int CONSUMER = 0;
+        private static final int PRODUCER = 1;
+
+        private Body<T> body;
+
+        private volatile Thread producer;
+        private volatile Thread consumer;
+        private volatile int turn;
+
+        private T value;
+        private Throwable error;
+        private boolean finished;
+
+        private volatile boolean abandoned;
+
+        public Channel(Body<T> body) {
+            this.body = body;
+            turn = CONSUMER;
+        }
+
+        public void pull() {
+            if (abandoned) {
+                finished = true;
+            }
+
+            if (finished) {
+                return;
+            }
+
+            consumer = Thread.currentThread();
+            turn = PRODUCER;
+
+            if (producer == null) {
+                producer = THREAD_FACTORY.newThread(this);
+                producer.start();
+            } else {
+                LockSupport.unpark(producer);
+            }
+
+            while (turn != CONSUMER) {
+                LockSupport.park(this);
+            }
+
+            if (error != null) {
+                Throwable t = error;
+                error = null;
+                throw ThreadGenerator.<RuntimeException>sneakyThrow(t);
+            }
+        }
+
+        public T take() {
+            T res = value;
+            value = null;
+            return res;
+        }
+
+        public void abandon() {
+            abandoned = true;
+
+            Thread thread = producer;
+            if (thread != null && !finished) {
+                turn = PRODUCER;
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!abandoned) {
+                    body.run(this);
+                }
+            } catch (Abandoned e) {
+                return;
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                body = null;
+            }
+
+            finished = true;
+            handOver();
+        }
+
+        @Override
+        public void accept(T item) {
+            value = item;
+            handOver();
+
+            // Consumer may be gone without taking turn back
+            while (turn != PRODUCER && !abandoned) {
+                LockSupport.park(this);
+            }
+
+            if (abandoned) {
+                // Unwinds body running its finally blocks
+                throw Abandoned.INSTANCE;
+            }
+        }
+
+        private void handOver() {
+            turn = CONSUMER;
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private static final class Abandoned extends Error {
+        private static final long serialVersionUID = 1L;
+
+        public static final Abandoned INSTANCE = new Abandoned();
+
+        private Abandoned() {
+            super("Generator abandoned", null, false, false);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Throwable> RuntimeException sneakyThrow(Throwable t) throws E {
+        throw (E) t;
+    }
+}
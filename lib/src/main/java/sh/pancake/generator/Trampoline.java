@@ -0,0 +1,91 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator;
+
+import java.util.Arrays;
+
+/**
+ * Drives chain of generators delegating to each other.
+ * Values are pulled from innermost active generator directly, so cost per value does not depend on depth.
+ */
+public final class Trampoline<T> {
+    private final Delegating<T> root;
+
+    /**
+     * Active delegates, innermost one is last
+     */
+    private Delegating<T>[] stack;
+    private int depth;
+
+    /**
+     * @param root Generator driven by this trampoline
+     * @param delegate Generator root delegated to first
+     */
+    @SuppressWarnings("unchecked")
+    public Trampoline(Delegating<T> root, Delegating<T> delegate) {
+        this.root = root;
+
+        stack = (Delegating<T>[]) new Delegating<?>[8];
+        stack[0] = delegate;
+        depth = 1;
+    }
+
+    /**
+     * @return Next value, null if root generator finished
+     */
+    public T pull() {
+        Delegating<T> top = depth == 0 ? root : stack[depth - 1];
+
+        while (true) {
+            T value;
+            try {
+                value = top.advance();
+            } catch (Throwable t) {
+                abort();
+                throw t;
+            }
+
+            if (value != null) {
+                return value;
+            }
+
+            Delegating<T> delegate = top.takeDelegate();
+            if (delegate != null) {
+                push(delegate);
+                top = delegate;
+                continue;
+            }
+
+            if (depth == 0) {
+                return null;
+            }
+
+            // Delegating generator resumes after its stepAll
+            stack[--depth] = null;
+            top = depth == 0 ? root : stack[depth - 1];
+        }
+    }
+
+    private void push(Delegating<T> delegate) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+
+        stack[depth++] = delegate;
+    }
+
+    /**
+     * Exception passes every delegating generator without being caught, so all of them finish
+     */
+    private void abort() {
+        while (depth > 0) {
+            stack[--depth].finish();
+            stack[depth] = null;
+        }
+
+        root.finish();
+    }
+}
@@ -5,37 +5,107 @@
  */
 package sh.pancake.generator.processor;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
 
+import javax.annotation.Nullable;
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeParameterElement;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import javax.tools.Diagnostic.Kind;
 
+import com.sun.source.tree.LineMap;
 import com.sun.tools.javac.api.JavacTrees;
 import com.sun.tools.javac.processing.JavacProcessingEnvironment;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeCopier;
 import com.sun.tools.javac.tree.TreeMaker;
 import com.sun.tools.javac.tree.JCTree.*;
 import com.sun.tools.javac.util.Context;
 import com.sun.tools.javac.util.List;
+import com.sun.tools.javac.util.Name;
 import com.sun.tools.javac.util.Names;
 
+import sh.pancake.generator.AsyncGenerator;
 import sh.pancake.generator.Generator;
+import sh.pancake.generator.processor.ast.Constants;
+import sh.pancake.generator.processor.ast.GeneratorBlock;
 import sh.pancake.generator.processor.ast.GeneratorBuilder;
+import sh.pancake.generator.processor.ast.GeneratorOptions;
+import sh.pancake.generator.processor.ast.GeneratorStats;
 import sh.pancake.generator.processor.ast.NameMapper;
+import sh.pancake.generator.processor.ast.ResultKind;
+import sh.pancake.generator.processor.ast.ReturnKind;
+import sh.pancake.generator.processor.ast.SplitRange;
+import sh.pancake.generator.processor.ast.StateGraph;
+import sh.pancake.generator.processor.ast.StateSourceMap;
 import sh.pancake.generator.processor.ast.visitor.GeneratorTransformer;
+import sh.pancake.generator.processor.ast.visitor.InstanceScanner;
 
-@SupportedAnnotationTypes("sh.pancake.generator.Generator")
+@SupportedAnnotationTypes({ "sh.pancake.generator.Generator", "sh.pancake.generator.AsyncGenerator" })
+@SupportedOptions({ GeneratorProcessor.OPTION_STATS, GeneratorProcessor.OPTION_REPORT,
+        GeneratorProcessor.OPTION_DUMP, GeneratorProcessor.OPTION_INSTRUMENT, GeneratorProcessor.OPTION_STATE_MAP })
 public class GeneratorProcessor extends AbstractProcessor {
+    public static final String OPTION_STATS = "generator.stats";
+
+    /**
+     * Directory of JSON reports relative to generated source output, one report is written for each top level class
+     */
+    public static final String OPTION_REPORT = "generator.report";
+
+    /**
+     * Directory of Graphviz state graphs relative to generated source output
+     */
+    public static final String OPTION_DUMP = "generator.dump";
+
+    /**
+     * Instruments every state machine generator as if it was annotated with instrumented = true
+     */
+    public static final String OPTION_INSTRUMENT = "generator.instrument";
+
+    /**
+     * Writes source lines of each state next to class files, as Name.states.json for top level class Name
+     */
+    public static final String OPTION_STATE_MAP = "generator.stateMap";
+
     private Context cx;
     private JavacTrees trees;
     private TreeMaker treeMaker;
     private Names names;
 
+    @Nullable
+    private String reportDirectory;
+
+    @Nullable
+    private String dumpDirectory;
+
+    private boolean instrumentAll;
+    private boolean stateMap;
+
+    /**
+     * States of top level classes processed in current round
+     */
+    private final Map<TypeElement, UnitState> units = new LinkedHashMap<>();
+
     @Override
     public SourceVersion getSupportedSourceVersion() {
         return SourceVersion.latest();
@@ -50,9 +120,36 @@ public class GeneratorProcessor extends AbstractProcessor {
         Set<? extends Element> elements = roundEnv.getElementsAnnotatedWith(Generator.class);
 
         for (Element e : elements) {
-            processMethod(trees.getTree((ExecutableElement) e));
+            if (e.getAnnotation(AsyncGenerator.class) != null) {
+                processingEnv.getMessager().printMessage(Kind.ERROR,
+                        "Method cannot be annotated with both Generator and AsyncGenerator", e);
+                continue;
+            }
+
+            processMethod((ExecutableElement) e);
+        }
+
+        for (Element e : roundEnv.getElementsAnnotatedWith(AsyncGenerator.class)) {
+            // Reported above
+            if (e.getAnnotation(Generator.class) == null) {
+                processMethod((ExecutableElement) e);
+            }
         }
 
+        for (UnitState unit : units.values()) {
+            if (unit.report != null) {
+                writeResource(StandardLocation.SOURCE_OUTPUT, "",
+                        reportDirectory + unit.type.getQualifiedName() + ".json", unit.report.toJson(), unit.type);
+            }
+
+            if (unit.stateMap != null && !unit.stateMap.isEmpty()) {
+                writeResource(StandardLocation.CLASS_OUTPUT,
+                        processingEnv.getElementUtils().getPackageOf(unit.type).getQualifiedName().toString(),
+                        unit.type.getSimpleName() + ".states.json", unit.stateMap.toJson(), unit.type);
+            }
+        }
+        units.clear();
+
         return false;
     }
 
@@ -60,17 +157,214 @@ public class GeneratorProcessor extends AbstractProcessor {
     public synchronized void init(ProcessingEnvironment arg0) {
         super.init(arg0);
 
-        JavacProcessingEnvironment env = (JavacProcessingEnvironment) processingEnv;
+        // Build tools may wrap environment, filer and messager of wrapper are still used so they can track outputs
+        JavacProcessingEnvironment env = ProcessorUtil.unwrapJavacEnvironment(processingEnv);
 
         cx = env.getContext();
         treeMaker = TreeMaker.instance(cx);
         trees = JavacTrees.instance(cx);
         names = Names.instance(cx);
+
+        Map<String, String> options = processingEnv.getOptions();
+        reportDirectory = toDirectoryPath(options.get(OPTION_REPORT));
+        dumpDirectory = toDirectoryPath(options.get(OPTION_DUMP));
+        instrumentAll = options.containsKey(OPTION_INSTRUMENT) && !"false".equals(options.get(OPTION_INSTRUMENT));
+        stateMap = options.containsKey(OPTION_STATE_MAP) && !"false".equals(options.get(OPTION_STATE_MAP));
+    }
+
+    @Nullable
+    private static String toDirectoryPath(@Nullable String option) {
+        if (option == null || option.isEmpty()) {
+            return option;
+        }
+
+        return option.endsWith("/") ? option : option + "/";
+    }
+
+    /**
+     * State of top level class enclosing the element
+     */
+    private UnitState unitOf(Element element) {
+        while (element.getEnclosingElement().getKind() != ElementKind.PACKAGE) {
+            element = element.getEnclosingElement();
+        }
+
+        return units.computeIfAbsent((TypeElement) element, UnitState::new);
+    }
+
+    /**
+     * File name of source declaring the type, without directories
+     */
+    private String sourceNameOf(TypeElement type) {
+        String path = trees.getPath(type).getCompilationUnit().getSourceFile().toUri().getPath();
+        if (path == null) {
+            return type.getSimpleName() + ".java";
+        }
+
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private void writeResource(StandardLocation location, String packageName, String name, String content,
+            Element... originatingElements) {
+        try {
+            FileObject file = processingEnv.getFiler().createResource(location, packageName, name,
+                    originatingElements);
+
+            try (Writer writer = file.openWriter()) {
+                writer.write(content);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            processingEnv.getMessager().printMessage(Kind.WARNING,
+                    "Cannot write " + name + ": " + e.getMessage());
+        }
+    }
+
+    private void dumpStateGraph(UnitState unit, ExecutableElement element, GeneratorBlock block) {
+        TypeElement owner = (TypeElement) element.getEnclosingElement();
+        String name = owner.getQualifiedName() + "." + element.getSimpleName();
+
+        // Overloads are told apart by order in the class
+        writeResource(StandardLocation.SOURCE_OUTPUT, "", dumpDirectory + name + "-" + unit.dumpCount++ + ".dot",
+                StateGraph.toDot(name, block), unit.type);
+    }
+
+    private String extractReturnTypeName(ExecutableElement element) {
+        if (processingEnv.getTypeUtils().erasure(element.getReturnType()) instanceof DeclaredType returnType) {
+            return ((TypeElement) returnType.asElement()).getQualifiedName().toString();
+        }
+
+        return "";
+    }
+
+    private GeneratorOptions createOptions(UnitState unit, ExecutableElement element, String returnTypeName) {
+        GeneratorOptions options = new GeneratorOptions();
+        Generator annotation = element.getAnnotation(Generator.class);
+
+        options.returnKind = ReturnKind.fromReturnType(returnTypeName);
+
+        // Async generator has no options
+        if (annotation == null) {
+            if (instrumentAll) {
+                instrument(unit, element, options);
+            }
+
+            return options;
+        }
+
+        options.characteristics = annotation.characteristics();
+        options.estimatedSize = annotation.estimatedSize();
+        options.mode = annotation.mode();
+        options.splittable = annotation.splittable();
+
+        if (annotation.reusable()) {
+            if (options.mode == Generator.Mode.THREAD) {
+                processingEnv.getMessager().printMessage(Kind.ERROR,
+                        "Generator running on a thread cannot be reusable", element);
+            } else if (element.getModifiers().contains(Modifier.STATIC) && element.getEnclosingElement().getKind().isClass()) {
+                options.poolName = unit.memberNames.map(Constants.GENERATOR_POOL);
+            } else {
+                processingEnv.getMessager().printMessage(Kind.ERROR,
+                        "Reusable generator must be static method of a class", element);
+            }
+        }
+
+        if (annotation.instrumented() || instrumentAll) {
+            if (options.mode == Generator.Mode.THREAD) {
+                // Thread backend runs original body, there is no state machine to instrument
+                if (annotation.instrumented()) {
+                    processingEnv.getMessager().printMessage(Kind.WARNING,
+                            "Generator running on a thread is not instrumented", element);
+                }
+            } else {
+                instrument(unit, element, options);
+            }
+        }
+
+        return options;
+    }
+
+    private void instrument(UnitState unit, ExecutableElement element, GeneratorOptions options) {
+        // Probe is a private static field, interfaces cannot declare one
+        if (!element.getEnclosingElement().getKind().isClass()) {
+            processingEnv.getMessager().printMessage(Kind.WARNING,
+                    "Generator declared in an interface is not instrumented", element);
+            return;
+        }
+
+        options.probeName = unit.memberNames.map(Constants.GENERATOR_PROBE);
+        options.probeLabel = processingEnv.getElementUtils().getBinaryName((TypeElement) element.getEnclosingElement())
+                + "." + element;
+    }
+
+    private Set<Name> finalFieldNamesOf(TypeElement owner) {
+        Set<Name> fieldNames = new HashSet<>();
+        for (Element member : processingEnv.getElementUtils().getAllMembers(owner)) {
+            if (member.getKind() == ElementKind.FIELD && member.getModifiers().contains(Modifier.FINAL)) {
+                fieldNames.add(names.fromString(member.getSimpleName().toString()));
+            }
+        }
+
+        return fieldNames;
+    }
+
+    /**
+     * Static nested class can be declared if enclosing class is static and generator does not use its instance
+     */
+    private boolean canNest(UnitState unit, ExecutableElement element, JCMethodDecl method) {
+        TypeElement owner = (TypeElement) element.getEnclosingElement();
+
+        if (owner.getNestingKind() != NestingKind.TOP_LEVEL
+                && !(owner.getNestingKind() == NestingKind.MEMBER && owner.getModifiers().contains(Modifier.STATIC))) {
+            return false;
+        }
+
+        if (element.getModifiers().contains(Modifier.STATIC)) {
+            return true;
+        }
+
+        // Type variables of owner in signature are copied to fields and return type of generated class as well
+        InstanceScanner scanner = new InstanceScanner(names, unit.instanceNamesOf(owner));
+        if (scanner.usesInstance(method.restype) || scanner.usesInstance(method.typarams)
+                || scanner.usesInstance(method.thrown)) {
+            return false;
+        }
+
+        for (JCVariableDecl param : method.params) {
+            if (scanner.usesInstance(param.vartype)) {
+                return false;
+            }
+        }
+
+        return !scanner.usesInstance(method.body);
     }
 
-    private JCExpression extractIteratorType(JCMethodDecl method) {
+    private JCExpression extractIteratorType(JCMethodDecl method, ResultKind kind) {
+        if (kind.isPrimitive()) {
+            return treeMaker.TypeIdent(kind.tag);
+        }
+
         if (method.restype instanceof JCTypeApply returnType) {
-            return returnType.arguments.head;
+            // Signature is already attributed, type variables must be resolved again inside of nested class
+            int pos = treeMaker.pos;
+            JCExpression type = new TreeCopier<Void>(treeMaker).copy(returnType.arguments.head);
+            treeMaker.at(pos);
+
+            return type;
+        }
+
+        return TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "Object");
+    }
+
+    /**
+     * Type of values sent to bidirectional generator
+     */
+    private JCExpression extractSentType(JCMethodDecl method) {
+        if (method.restype instanceof JCTypeApply returnType && returnType.arguments.size() == 2) {
+            int pos = treeMaker.pos;
+            JCExpression type = new TreeCopier<Void>(treeMaker).copy(returnType.arguments.tail.head);
+            treeMaker.at(pos);
+
+            return type;
         }
 
         return TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "Object");
@@ -82,14 +376,204 @@ public class GeneratorProcessor extends AbstractProcessor {
                 List.of(treeMaker.Literal(GeneratorProcessor.class.getName())));
     }
 
-    private void processMethod(JCMethodDecl method) {
-        JCExpression iteratorType = extractIteratorType(method);
-        NameMapper nameMapper = new NameMapper(cx);
+    private void checkMethodSize(ExecutableElement element, GeneratorStats stats) {
+        if (stats.largestMethodSize > Constants.JIT_HUGE_METHOD_LIMIT) {
+            processingEnv.getMessager().printMessage(Kind.WARNING,
+                    "Generator has a method estimated at " + stats.largestMethodSize
+                            + " bytes of bytecode, it will not be JIT compiled above "
+                            + Constants.JIT_HUGE_METHOD_LIMIT + " bytes. Move large code without step into methods",
+                    element);
+        } else if (stats.outlinedStates > 0 && stats.nextMethodSize > Constants.JIT_FREQ_INLINE_SIZE) {
+            processingEnv.getMessager().printMessage(Kind.WARNING,
+                    "Generator state machine is estimated at " + stats.nextMethodSize
+                            + " bytes of bytecode after splitting, it will not be inlined above "
+                            + Constants.JIT_FREQ_INLINE_SIZE + " bytes",
+                    element);
+        }
+    }
+
+    private void addMembers(ExecutableElement element, GeneratorBuilder builder) {
+        List<JCTree> members = builder.getMembers();
+        if (!members.isEmpty()) {
+            JCClassDecl owner = trees.getTree((TypeElement) element.getEnclosingElement());
+            owner.defs = owner.defs.prependList(members);
+        }
+    }
+
+    private void processMethod(ExecutableElement element) {
+        long start = System.nanoTime();
+        UnitState unit = unitOf(element);
+        JCMethodDecl method = unit.methodTreeOf(element);
 
-        GeneratorTransformer transformer = GeneratorTransformer.createRoot(cx, nameMapper, iteratorType);
+        // Position left by previous method may point into another file
+        treeMaker.at(method.pos);
+
+        String returnTypeName = extractReturnTypeName(element);
+        boolean async = element.getAnnotation(AsyncGenerator.class) != null;
+        ReturnKind returnKind = ReturnKind.fromReturnType(returnTypeName);
+        if (async != returnKind.isAsync()) {
+            processingEnv.getMessager().printMessage(Kind.ERROR,
+                    async ? "Async generator must return Flow.Publisher, CompletableFuture or CompletionStage"
+                            : "Generator returning Flow.Publisher or future must be annotated with AsyncGenerator",
+                    element);
+            return;
+        }
+
+        ResultKind resultKind = ResultKind.fromReturnType(returnTypeName);
+        GeneratorOptions options = createOptions(unit, element, returnTypeName);
+        if (canNest(unit, element, method)) {
+            options.nestedClassName = unit.memberNames.map(Constants.GENERATOR_CLASS_NAME);
+        }
+
+        JCExpression iteratorType = extractIteratorType(method, resultKind);
+        NameMapper nameMapper = new NameMapper(cx);
         method.mods.annotations = method.mods.annotations.prepend(createGeneratedAnnotation());
-        method.body = new GeneratorBuilder(cx, nameMapper, transformer.transform(method.body)).buildMethodBlock();
 
-        System.out.println(method);
+        if (options.mode == Generator.Mode.THREAD) {
+            if (resultKind.isPrimitive() || returnKind == ReturnKind.COROUTINE) {
+                processingEnv.getMessager().printMessage(Kind.ERROR,
+                        "Generator running on a thread must yield objects and cannot receive values", element);
+                return;
+            }
+
+            GeneratorBuilder builder = GeneratorBuilder.createThreaded(cx, nameMapper, method, options, iteratorType);
+            method.body = builder.buildMethodBlock();
+            addMembers(element, builder);
+
+            if (unit.report != null) {
+                unit.report.add(element, returnKind, options.mode, System.nanoTime() - start, null);
+            }
+
+            return;
+        }
+
+        if (options.splittable) {
+            if (returnKind != ReturnKind.SPLITERATOR && returnKind != ReturnKind.STREAM) {
+                processingEnv.getMessager().printMessage(Kind.WARNING,
+                        "Only generator returning Spliterator or Stream can be split", element);
+            } else if ((options.characteristics & Spliterator.SIZED) == 0) {
+                // Exact size cannot be kept over splits
+                options.splitRange = SplitRange.extract(treeMaker, names, nameMapper, method,
+                        finalFieldNamesOf((TypeElement) element.getEnclosingElement()));
+
+                if (options.splitRange == null) {
+                    processingEnv.getMessager().printMessage(Kind.WARNING,
+                            "Generator is not split, body must be a single counted for loop with invariant bounds",
+                            element);
+                }
+            }
+        }
+
+        GeneratorTransformer transformer = switch (returnKind) {
+            case FUTURE -> GeneratorTransformer.createAsync(cx, nameMapper, iteratorType);
+            case COROUTINE -> GeneratorTransformer.createCoroutine(cx, nameMapper, iteratorType,
+                    extractSentType(method));
+            default -> GeneratorTransformer.createRoot(cx, nameMapper, iteratorType, resultKind);
+        };
+        GeneratorBlock block = transformer.transform(method.body);
+        GeneratorStats stats = transformer.getStats();
+        if (dumpDirectory != null) {
+            dumpStateGraph(unit, element, block);
+        }
+
+        if (unit.stateMap != null) {
+            LineMap lineMap = trees.getPath(unit.type).getCompilationUnit().getLineMap();
+            unit.stateMap.add(element,
+                    processingEnv.getElementUtils().getBinaryName((TypeElement) element.getEnclosingElement())
+                            .toString(),
+                    lineMap.getLineNumber(method.pos), StateSourceMap.collect(block, lineMap));
+        }
+
+        GeneratorBuilder builder = new GeneratorBuilder(cx, nameMapper, block, method, options, stats);
+        method.body = builder.buildMethodBlock();
+        addMembers(element, builder);
+
+        if (unit.report != null) {
+            unit.report.add(element, returnKind, options.mode, System.nanoTime() - start, stats);
+        }
+
+        if (processingEnv.getOptions().containsKey(OPTION_STATS)) {
+            processingEnv.getMessager().printMessage(Kind.NOTE,
+                    element.getSimpleName() + ": " + stats.statesBefore + " -> " + stats.statesAfter + " states, "
+                            + stats.localVariables + " variables kept as locals, "
+                            + stats.sharedVariables + " variables sharing fields, "
+                            + stats.outlinedStates + " states outlined",
+                    element);
+        }
+
+        checkMethodSize(element, stats);
+    }
+
+    /**
+     * Output for a top level class must not depend on other classes compiled with it, so that build tools can
+     * recompile classes one by one
+     */
+    private class UnitState {
+        public final TypeElement type;
+
+        /**
+         * Members are added to enclosing classes, their names must not clash between methods
+         */
+        public final NameMapper memberNames;
+
+        @Nullable
+        public final GeneratorReport report;
+        public int dumpCount;
+
+        @Nullable
+        public final StateMap stateMap;
+
+        /**
+         * Method trees of each enclosing class, javac finds tree of a method by scanning whole class
+         */
+        private final Map<TypeElement, Map<Element, JCMethodDecl>> methodTrees;
+
+        /**
+         * Names of instance members and type parameters of each enclosing class
+         */
+        private final Map<TypeElement, Set<Name>> instanceNames;
+
+        public UnitState(TypeElement type) {
+            this.type = type;
+            memberNames = new NameMapper(cx);
+            report = reportDirectory != null ? new GeneratorReport() : null;
+            stateMap = GeneratorProcessor.this.stateMap ? new StateMap(sourceNameOf(type)) : null;
+            methodTrees = new HashMap<>();
+            instanceNames = new HashMap<>();
+        }
+
+        public JCMethodDecl methodTreeOf(ExecutableElement element) {
+            Map<Element, JCMethodDecl> methods = methodTrees.computeIfAbsent(
+                    (TypeElement) element.getEnclosingElement(), owner -> {
+                        Map<Element, JCMethodDecl> map = new HashMap<>();
+                        for (JCTree def : trees.getTree(owner).defs) {
+                            if (def instanceof JCMethodDecl methodDecl && methodDecl.sym != null) {
+                                map.put(methodDecl.sym, methodDecl);
+                            }
+                        }
+
+                        return map;
+                    });
+
+            JCMethodDecl method = methods.get(element);
+            return method != null ? method : trees.getTree(element);
+        }
+
+        public Set<Name> instanceNamesOf(TypeElement owner) {
+            return instanceNames.computeIfAbsent(owner, key -> {
+                Set<Name> names = new HashSet<>();
+                for (Element member : processingEnv.getElementUtils().getAllMembers(owner)) {
+                    if (!member.getModifiers().contains(Modifier.STATIC)) {
+                        names.add(GeneratorProcessor.this.names.fromString(member.getSimpleName().toString()));
+                    }
+                }
+
+                for (TypeParameterElement typeParam : owner.getTypeParameters()) {
+                    names.add(GeneratorProcessor.this.names.fromString(typeParam.getSimpleName().toString()));
+                }
+
+                return names;
+            });
+        }
     }
 }
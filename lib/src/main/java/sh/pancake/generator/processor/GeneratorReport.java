@@ -0,0 +1,106 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor;
+
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+
+import sh.pancake.generator.Generator;
+import sh.pancake.generator.processor.ast.GeneratorStats;
+import sh.pancake.generator.processor.ast.ReturnKind;
+
+/**
+ * JSON report of every generator method transformed in a compilation
+ */
+class GeneratorReport {
+    private final StringBuilder methods;
+    private int count;
+
+    public GeneratorReport() {
+        methods = new StringBuilder();
+    }
+
+    /**
+     * @param stats Statistics of state machine, null if method runs on a thread
+     */
+    public void add(ExecutableElement element, ReturnKind returnKind, Generator.Mode mode, long transformNanos,
+            @Nullable GeneratorStats stats) {
+        StringBuilder entry = new StringBuilder("    {");
+
+        entry.append("\"class\": ");
+        appendString(entry, ((TypeElement) element.getEnclosingElement()).getQualifiedName().toString());
+        entry.append(", \"method\": ");
+        appendString(entry, element.toString());
+        entry.append(", \"returnKind\": ");
+        appendString(entry, returnKind.name());
+        entry.append(", \"mode\": ");
+        appendString(entry, mode.name());
+        entry.append(", \"transformNanos\": ").append(transformNanos);
+
+        if (stats != null) {
+            entry.append(", \"statesBefore\": ").append(stats.statesBefore);
+            entry.append(", \"statesAfter\": ").append(stats.statesAfter);
+            entry.append(", \"nestedBlocks\": ").append(stats.nestedBlocks);
+            entry.append(", \"localVariables\": ").append(stats.localVariables);
+            entry.append(", \"sharedVariables\": ").append(stats.sharedVariables);
+            entry.append(", \"outlinedStates\": ").append(stats.outlinedStates);
+            entry.append(", \"nextMethodSize\": ").append(stats.nextMethodSize);
+            entry.append(", \"largestMethodSize\": ").append(stats.largestMethodSize);
+
+            entry.append(", \"capturedFields\": {");
+            boolean first = true;
+            for (Map.Entry<String, Integer> captured : stats.capturedFields.entrySet()) {
+                if (!first) {
+                    entry.append(", ");
+                }
+                first = false;
+
+                appendString(entry, captured.getKey());
+                entry.append(": ").append(captured.getValue());
+            }
+            entry.append("}");
+        }
+
+        entry.append("}");
+
+        if (count++ > 0) {
+            methods.append(",\n");
+        }
+        methods.append(entry);
+    }
+
+    public String toJson() {
+        return "{\n  \"methods\": [\n" + methods + (count > 0 ? "\n" : "") + "  ]\n}\n";
+    }
+
+    static void appendString(StringBuilder builder, String value) {
+        builder.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '"' -> builder.append("\\\"");
+                case '\\' -> builder.append("\\\\");
+                case '\n' -> builder.append("\\n");
+                case '\r' -> builder.append("\\r");
+                case '\t' -> builder.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                }
+            }
+        }
+
+        builder.append('"');
+    }
+}
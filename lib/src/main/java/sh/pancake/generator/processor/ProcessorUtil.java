@@ -8,6 +8,10 @@ package sh.pancake.generator.processor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 
+import javax.annotation.processing.ProcessingEnvironment;
+
+import com.sun.tools.javac.processing.JavacProcessingEnvironment;
+
 @SuppressWarnings({"sunapi", "all"})
 class ProcessorUtil {
     public static void disableIllegalAccessWarning() {
@@ -73,4 +77,33 @@ class ProcessorUtil {
             return null;
         }
     }
+
+    /**
+     * Finds javac environment behind wrappers of build tools, such as incremental processing environment of Gradle
+     */
+    public static JavacProcessingEnvironment unwrapJavacEnvironment(ProcessingEnvironment env) {
+        while (!(env instanceof JavacProcessingEnvironment)) {
+            ProcessingEnvironment delegate = null;
+
+            for (Class<?> cls = env.getClass(); cls != null && delegate == null; cls = cls.getSuperclass()) {
+                try {
+                    Field field = cls.getDeclaredField("delegate");
+                    field.setAccessible(true);
+
+                    if (field.get(env) instanceof ProcessingEnvironment inner) {
+                        delegate = inner;
+                    }
+                } catch (Exception e) {
+                }
+            }
+
+            if (delegate == null) {
+                throw new IllegalStateException("Generator processor requires javac, cannot use " + env.getClass());
+            }
+
+            env = delegate;
+        }
+
+        return (JavacProcessingEnvironment) env;
+    }
 }
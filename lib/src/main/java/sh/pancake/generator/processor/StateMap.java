@@ -0,0 +1,69 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor;
+
+import java.util.List;
+
+import javax.lang.model.element.ExecutableElement;
+
+import sh.pancake.generator.processor.ast.StateSourceMap.Range;
+
+/**
+ * JSON map of state ids to source lines of every state machine generator in a top level class
+ */
+class StateMap {
+    private final String sourceName;
+
+    private final StringBuilder methods;
+    private int count;
+
+    /**
+     * @param sourceName File name of the source without directories, map must not depend on location of project
+     */
+    public StateMap(String sourceName) {
+        this.sourceName = sourceName;
+        methods = new StringBuilder();
+    }
+
+    public void add(ExecutableElement element, String ownerName, long line, List<Range> ranges) {
+        StringBuilder entry = new StringBuilder("    {");
+
+        entry.append("\"class\": ");
+        GeneratorReport.appendString(entry, ownerName);
+        entry.append(", \"method\": ");
+        GeneratorReport.appendString(entry, element.toString());
+        entry.append(", \"line\": ").append(line);
+        entry.append(", \"states\": {");
+
+        for (int i = 0; i < ranges.size(); i++) {
+            Range range = ranges.get(i);
+            if (i > 0) {
+                entry.append(", ");
+            }
+
+            entry.append('"').append(range.state).append("\": [")
+                    .append(range.startLine).append(", ").append(range.endLine).append(']');
+        }
+
+        entry.append("}}");
+
+        if (count++ > 0) {
+            methods.append(",\n");
+        }
+        methods.append(entry);
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public String toJson() {
+        StringBuilder builder = new StringBuilder("{\n  \"source\": ");
+        GeneratorReport.appendString(builder, sourceName);
+
+        return builder + ",\n  \"methods\": [\n" + methods + (count > 0 ? "\n" : "") + "  ]\n}\n";
+    }
+}
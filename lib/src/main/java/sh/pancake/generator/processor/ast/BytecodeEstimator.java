@@ -0,0 +1,250 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast;
+
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.tree.JCTree.*;
+
+/**
+ * Estimates bytecode size of statements before attribution.
+ * Each node is weighted by instructions javac usually emits for it, types are unknown so estimate is rough.
+ */
+public class BytecodeEstimator extends TreeScanner {
+    private int size;
+
+    public static int estimate(Iterable<? extends JCTree> trees) {
+        BytecodeEstimator estimator = new BytecodeEstimator();
+
+        for (JCTree tree : trees) {
+            estimator.scan(tree);
+        }
+
+        return estimator.size;
+    }
+
+    @Override
+    public void visitIdent(JCIdent tree) {
+        // Field load through this or local load
+        size += 2;
+    }
+
+    @Override
+    public void visitLiteral(JCLiteral tree) {
+        size += 2;
+    }
+
+    @Override
+    public void visitSelect(JCFieldAccess tree) {
+        size += 3;
+        super.visitSelect(tree);
+    }
+
+    @Override
+    public void visitApply(JCMethodInvocation tree) {
+        size += 3;
+
+        if (tree.meth instanceof JCFieldAccess select) {
+            scan(select.selected);
+        } else {
+            // Receiver this
+            size += 1;
+        }
+
+        scan(tree.args);
+    }
+
+    @Override
+    public void visitNewClass(JCNewClass tree) {
+        // new, dup and invokespecial
+        size += 7;
+        scan(tree.encl);
+        scan(tree.args);
+    }
+
+    @Override
+    public void visitNewArray(JCNewArray tree) {
+        size += 4;
+        scan(tree.dims);
+
+        if (tree.elems != null) {
+            // dup, index and store for every element
+            size += tree.elems.size() * 3;
+            scan(tree.elems);
+        }
+    }
+
+    @Override
+    public void visitAssign(JCAssign tree) {
+        size += 3;
+        super.visitAssign(tree);
+    }
+
+    @Override
+    public void visitAssignop(JCAssignOp tree) {
+        size += 5;
+        super.visitAssignop(tree);
+    }
+
+    @Override
+    public void visitUnary(JCUnary tree) {
+        size += 3;
+        super.visitUnary(tree);
+    }
+
+    @Override
+    public void visitBinary(JCBinary tree) {
+        // Comparison compiles to branch
+        size += 3;
+        super.visitBinary(tree);
+    }
+
+    @Override
+    public void visitTypeCast(JCTypeCast tree) {
+        size += 3;
+        scan(tree.expr);
+    }
+
+    @Override
+    public void visitTypeTest(JCInstanceOf tree) {
+        size += 3;
+        scan(tree.expr);
+    }
+
+    @Override
+    public void visitConditional(JCConditional tree) {
+        size += 6;
+        super.visitConditional(tree);
+    }
+
+    @Override
+    public void visitIndexed(JCArrayAccess tree) {
+        size += 1;
+        super.visitIndexed(tree);
+    }
+
+    @Override
+    public void visitVarDef(JCVariableDecl tree) {
+        if (tree.init != null) {
+            size += 2;
+            scan(tree.init);
+        }
+    }
+
+    @Override
+    public void visitExec(JCExpressionStatement tree) {
+        // Discarded value is popped
+        size += 1;
+        super.visitExec(tree);
+    }
+
+    @Override
+    public void visitIf(JCIf tree) {
+        size += 3;
+
+        if (tree.elsepart != null) {
+            size += 3;
+        }
+
+        super.visitIf(tree);
+    }
+
+    @Override
+    public void visitWhileLoop(JCWhileLoop tree) {
+        size += 6;
+        super.visitWhileLoop(tree);
+    }
+
+    @Override
+    public void visitDoLoop(JCDoWhileLoop tree) {
+        size += 3;
+        super.visitDoLoop(tree);
+    }
+
+    @Override
+    public void visitForLoop(JCForLoop tree) {
+        size += 6;
+        super.visitForLoop(tree);
+    }
+
+    @Override
+    public void visitForeachLoop(JCEnhancedForLoop tree) {
+        // Iterator creation, hasNext, next and cast
+        size += 20;
+        scan(tree.expr);
+        scan(tree.body);
+    }
+
+    @Override
+    public void visitSwitch(JCSwitch tree) {
+        // Opcode with padding, default and bounds
+        size += 16 + tree.cases.size() * 8;
+        super.visitSwitch(tree);
+    }
+
+    @Override
+    public void visitBreak(JCBreak tree) {
+        size += 3;
+    }
+
+    @Override
+    public void visitContinue(JCContinue tree) {
+        size += 3;
+    }
+
+    @Override
+    public void visitReturn(JCReturn tree) {
+        size += 1;
+        super.visitReturn(tree);
+    }
+
+    @Override
+    public void visitThrow(JCThrow tree) {
+        size += 1;
+        super.visitThrow(tree);
+    }
+
+    @Override
+    public void visitTry(JCTry tree) {
+        size += 3 + tree.catchers.size() * 5;
+        super.visitTry(tree);
+
+        // Finalizer is copied into every exit, count it once more for exceptional path
+        if (tree.finalizer != null) {
+            scan(tree.finalizer);
+        }
+    }
+
+    @Override
+    public void visitSynchronized(JCSynchronized tree) {
+        size += 20;
+        super.visitSynchronized(tree);
+    }
+
+    @Override
+    public void visitLambda(JCLambda tree) {
+        // Body is compiled into separate method
+        size += 5;
+    }
+
+    @Override
+    public void visitReference(JCMemberReference tree) {
+        size += 5;
+        scan(tree.expr);
+    }
+
+    @Override
+    public void visitClassDef(JCClassDecl tree) {
+    }
+
+    @Override
+    public void visitTypeApply(JCTypeApply tree) {
+    }
+
+    @Override
+    public void visitTypeArray(JCArrayTypeTree tree) {
+    }
+}
@@ -13,14 +13,56 @@ public class Constants {
 
     public static final String GENERATOR_YIELD = "step";
     public static final String GENERATOR_YIELD_ALL = "stepAll";
+    public static final String GENERATOR_AWAIT = "await";
 
     public static final String GENERATOR_INNER_NEXT = "__next";
+    public static final String GENERATOR_INNER_FOR_EACH = "__forEach";
+    public static final String GENERATOR_INNER_STATE = "__state";
+    public static final String GENERATOR_INNER_REGION = "__region";
+    public static final String GENERATOR_INNER_CLOSE = "__close";
+    public static final String GENERATOR_INNER_THROW = "__throw";
+    public static final String GENERATOR_INNER_RESET = "__reset";
+    public static final String GENERATOR_INNER_PULL = "__pull";
+    public static final String GENERATOR_INNER_BOUND = "__bound";
 
     public static final String GENERATOR_STATE = "state";
     public static final String GENERATOR_LOOP = "loop";
     public static final String GENERATOR_TMP = "tmp";
     public static final String GENERATOR_RESULT = "result";
+    public static final String GENERATOR_VALUE = "value";
+    public static final String GENERATOR_SENT = "sent";
+    public static final String GENERATOR_HAS_RESULT = "hasResult";
+    public static final String GENERATOR_REMAINING = "remaining";
+    public static final String GENERATOR_SINK = "sink";
+    public static final String GENERATOR_THROWN = "thrown";
+    public static final String GENERATOR_EXIT = "exit";
+    public static final String GENERATOR_ITERATED = "iterated";
+    public static final String GENERATOR_ARGUMENT = "argument";
+    public static final String GENERATOR_POOL = "pool";
+    public static final String GENERATOR_INSTANCE = "generator";
+    public static final String GENERATOR_DELEGATE = "delegate";
+    public static final String GENERATOR_TRAMPOLINE = "trampoline";
+    public static final String GENERATOR_ORIGIN = "origin";
+    public static final String GENERATOR_FENCE = "fence";
+    public static final String GENERATOR_BOUNDED = "bounded";
+    public static final String GENERATOR_PROBE = "probe";
+    public static final String GENERATOR_RUN = "run";
+
+    /**
+     * HotSpot HugeMethodLimit, methods larger than this are never JIT compiled
+     */
+    public static final int JIT_HUGE_METHOD_LIMIT = 8000;
+    /**
+     * HotSpot FreqInlineSize, hot methods larger than this are not inlined
+     */
+    public static final int JIT_FREQ_INLINE_SIZE = 325;
+    /**
+     * Estimated size of __next above which states are moved into helper methods.
+     * Estimate is rough, so it leaves headroom below HugeMethodLimit.
+     */
+    public static final int GENERATOR_SPLIT_SIZE = JIT_HUGE_METHOD_LIMIT / 2;
 
     public static final String ERR_NEXT_ON_FINISH_MESSAGE = "Called next on finished generator";
+    public static final String ERR_SEND_ON_BUFFERED_MESSAGE = "Called send while hasNext buffered a value";
     public static final String ERR_UNREACHABLE = "Unreachable generator step";
 }
@@ -6,12 +6,18 @@
 package sh.pancake.generator.processor.ast;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
 import com.sun.source.tree.CaseTree.CaseKind;
 import com.sun.tools.javac.code.TypeTag;
+import com.sun.tools.javac.tree.TreeCopier;
 import com.sun.tools.javac.tree.TreeMaker;
 import com.sun.tools.javac.tree.JCTree.*;
 import com.sun.tools.javac.util.List;
@@ -20,28 +26,47 @@ import com.sun.tools.javac.util.Name;
 import com.sun.tools.javac.util.Names;
 
 import sh.pancake.generator.processor.TreeMakerUtil;
+import sh.pancake.generator.processor.ast.TryRegion.Handler;
 
 public class GeneratorBlock {
     private final JCVariableDecl stateField;
+    public final JCVariableDecl resultField;
     public final JCExpression resultType;
+    public final ResultKind resultKind;
 
     public final Name loopLabel;
 
     private int nextStateId;
     private final ArrayList<GeneratorState> states;
 
-    private final ListBuffer<JCVariableDecl> capturedVar;
+    private final ArrayList<JCVariableDecl> capturedVar;
 
-    public GeneratorBlock(JCVariableDecl stateField, JCExpression resultType, Name loopLabel) {
+    private boolean exceptionTable;
+    private boolean resourceClose;
+
+    @Nullable
+    private Name delegateName;
+
+    @Nullable
+    private JCVariableDecl returnField;
+
+    @Nullable
+    private JCVariableDecl sentField;
+
+    @Nullable
+    private Name runName;
+
+    public GeneratorBlock(JCVariableDecl stateField, JCVariableDecl resultField, ResultKind resultKind,
+            Name loopLabel) {
         this.stateField = stateField;
-        this.resultType = resultType;
+        this.resultField = resultField;
+        this.resultType = resultField.vartype;
+        this.resultKind = resultKind;
         this.loopLabel = loopLabel;
 
         nextStateId = Constants.GENERATOR_STEP_START;
         states = new ArrayList<>();
-        capturedVar = new ListBuffer<>();
-
-        capturedVar.add(stateField);
+        capturedVar = new ArrayList<>();
     }
 
     public Name getStateFieldName() {
@@ -58,23 +83,123 @@ public class GeneratorBlock {
     }
 
     public GeneratorState nextState() {
-        GeneratorState next = new GeneratorState(nextStateId++, new ListBuffer<>());
+        GeneratorState next = new GeneratorState(nextStateId++, new ListBuffer<>(), false, null);
         states.add(next);
         return next;
     }
 
+    ArrayList<GeneratorState> getStates() {
+        return states;
+    }
+
+    public int stateCount() {
+        return states.size();
+    }
+
     public void captureVariable(JCVariableDecl decl) {
         capturedVar.add(decl);
     }
 
-    public void captureAll(Collection<JCVariableDecl> collection) {
-        for (JCVariableDecl decl : collection) {
-            capturedVar.add(decl);
+    /**
+     * Variables captured by this block, excluding state field
+     */
+    ArrayList<JCVariableDecl> getCapturedVariables() {
+        return capturedVar;
+    }
+
+    /**
+     * Fields written by exception dispatch, they are assigned outside of any state
+     */
+    Set<Name> exceptionVariables() {
+        Set<Name> variables = new HashSet<>();
+        // Nested regions share their parents, each is walked once
+        Set<TryRegion> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (GeneratorState state : states) {
+            for (TryRegion region = state.region; region != null && visited.add(region); region = region.parent) {
+                for (Handler handler : region.handlers) {
+                    variables.add(handler.name);
+                }
+            }
         }
+
+        return variables;
+    }
+
+    public void useExceptionTable() {
+        exceptionTable = true;
+    }
+
+    /**
+     * @return true if block has try regions, exceptions are rethrown without checking then
+     */
+    public boolean usesExceptionTable() {
+        return exceptionTable;
+    }
+
+    public void useResourceClose() {
+        resourceClose = true;
+    }
+
+    public boolean usesResourceClose() {
+        return resourceClose;
+    }
+
+    public void useDelegation(Name delegateName) {
+        this.delegateName = delegateName;
+    }
+
+    /**
+     * @return Field stepAll stores generator delegated to, null if block never delegates
+     */
+    @Nullable
+    public Name getDelegateName() {
+        return delegateName;
+    }
+
+    public void useInstrumentation(Name runName) {
+        this.runName = runName;
+    }
+
+    /**
+     * @return Field of GeneratorProbe.Run counting states and exceptions of the loop, null if not instrumented
+     */
+    @Nullable
+    public Name getRunName() {
+        return runName;
+    }
+
+    public void useReturnValue(JCVariableDecl returnField) {
+        this.returnField = returnField;
+    }
+
+    /**
+     * @return Field holding value returned by async generator, null if block cannot return a value
+     */
+    @Nullable
+    public JCVariableDecl getReturnField() {
+        return returnField;
+    }
+
+    public void useSentValue(JCVariableDecl sentField) {
+        this.sentField = sentField;
+    }
+
+    /**
+     * @return Field holding value sent to bidirectional generator, null if step has no value
+     */
+    @Nullable
+    public JCVariableDecl getSentField() {
+        return sentField;
     }
 
     public List<JCVariableDecl> capturedList() {
-        return capturedVar.toList();
+        ListBuffer<JCVariableDecl> buf = new ListBuffer<>();
+
+        buf.add(stateField);
+        buf.addAll(capturedVar);
+
+        return buf.toList();
     }
 
     public JCStatement createNextStatement(TreeMaker treeMaker, Names names) {
@@ -104,15 +229,25 @@ public class GeneratorBlock {
                         null))),
                 null));
 
+        return createLoop(treeMaker, names,
+                List.of(treeMaker.Switch(treeMaker.Ident(stateField.name), cases.toList())));
+    }
+
+    /**
+     * Creates generator loop running given dispatch statements.
+     * Exception thrown in a try region enters its handler state, otherwise generator finishes.
+     */
+    public JCStatement createLoop(TreeMaker treeMaker, Names names, List<JCStatement> dispatch) {
+        if (runName != null) {
+            dispatch = dispatch.prepend(createRunCall(treeMaker, names, "transition"));
+        }
+
         return treeMaker.Labelled(
                 loopLabel,
                 treeMaker.WhileLoop(
                         treeMaker.Literal(TypeTag.BOOLEAN, 1),
                         treeMaker.Try(
-                                treeMaker.Block(0,
-                                        List.of(treeMaker.Switch(
-                                                treeMaker.Ident(stateField.name),
-                                                cases.toList()))),
+                                treeMaker.Block(0, dispatch),
                                 List.of(createCatch(treeMaker, names)),
                                 null)));
     }
@@ -127,11 +262,113 @@ public class GeneratorBlock {
 
         ListBuffer<JCStatement> catchBuf = new ListBuffer<>();
 
+        if (runName != null) {
+            catchBuf.add(createRunCall(treeMaker, names, "thrown"));
+        }
+        catchBuf.addAll(createExceptionDispatch(treeMaker, names, throwableDecl.name));
         catchBuf.add(treeMaker.Exec(treeMaker.Assign(
                 treeMaker.Ident(stateField.name),
                 treeMaker.Literal(TypeTag.INT, Constants.GENERATOR_STEP_FINISH))));
-        catchBuf.add(treeMaker.Throw(treeMaker.Ident(throwableDecl.name)));
+
+        if (exceptionTable) {
+            // Checked exceptions of try bodies reach here, they are rethrown as is
+            catchBuf.add(treeMaker.Throw(treeMaker.Apply(
+                    List.nil(),
+                    treeMaker.Ident(names.fromString(Constants.GENERATOR_INNER_THROW)),
+                    List.of(treeMaker.Ident(throwableDecl.name)))));
+        } else {
+            catchBuf.add(treeMaker.Throw(treeMaker.Ident(throwableDecl.name)));
+        }
 
         return treeMaker.Catch(throwableDecl, treeMaker.Block(0, catchBuf.toList()));
     }
+
+    private JCStatement createRunCall(TreeMaker treeMaker, Names names, String method) {
+        return treeMaker.Exec(treeMaker.Apply(
+                List.nil(),
+                treeMaker.Select(treeMaker.Ident(runName), names.fromString(method)),
+                List.nil()));
+    }
+
+    /**
+     * Exception table, states of each try region jump to the first matching handler
+     */
+    private List<JCStatement> createExceptionDispatch(TreeMaker treeMaker, Names names, Name throwableName) {
+        Map<TryRegion, ListBuffer<Integer>> regionStates = new LinkedHashMap<>();
+        for (GeneratorState state : states) {
+            if (state.region != null) {
+                regionStates.computeIfAbsent(state.region, (region) -> new ListBuffer<>()).add(state.id);
+            }
+        }
+
+        if (regionStates.isEmpty()) {
+            return List.nil();
+        }
+
+        ListBuffer<JCCase> cases = new ListBuffer<>();
+        for (Map.Entry<TryRegion, ListBuffer<Integer>> entry : regionStates.entrySet()) {
+            List<Integer> ids = entry.getValue().toList();
+
+            for (Integer id : ids.take(ids.size() - 1)) {
+                cases.add(treeMaker.Case(CaseKind.STATEMENT,
+                        List.of(treeMaker.Literal(TypeTag.INT, id)),
+                        List.nil(),
+                        null));
+            }
+
+            cases.add(treeMaker.Case(CaseKind.STATEMENT,
+                    List.of(treeMaker.Literal(TypeTag.INT, ids.last())),
+                    createHandlerDispatch(treeMaker, entry.getKey(), throwableName),
+                    null));
+        }
+
+        return List.of(treeMaker.Switch(treeMaker.Ident(stateField.name), cases.toList()));
+    }
+
+    private static boolean isThrowableType(JCExpression type) {
+        String name = type.toString();
+        return name.equals("Throwable") || name.equals("java.lang.Throwable");
+    }
+
+    private List<JCStatement> createHandlerDispatch(TreeMaker treeMaker, TryRegion region, Name throwableName) {
+        // Copier moves position of tree maker, later trees must not start inside of the method body
+        int pos = treeMaker.pos;
+        TreeCopier<Void> copier = new TreeCopier<>(treeMaker);
+        ListBuffer<JCStatement> buf = new ListBuffer<>();
+
+        for (Handler handler : region.dispatchOrder()) {
+            JCExpression value = treeMaker.Ident(throwableName);
+            // Cast to Throwable would be redundant and warned in user code
+            if (handler.types.size() == 1 && !isThrowableType(handler.types.head)) {
+                value = treeMaker.TypeCast(copier.copy(handler.types.head), value);
+            }
+
+            List<JCStatement> enter = List.of(
+                    treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(handler.name), value)),
+                    treeMaker.Exec(treeMaker.Assign(
+                            treeMaker.Ident(stateField.name),
+                            treeMaker.Literal(TypeTag.INT, handler.state.id))),
+                    treeMaker.Continue(loopLabel));
+
+            if (handler.types.isEmpty()) {
+                buf.addAll(enter);
+                break;
+            }
+
+            JCExpression cond = null;
+            for (JCExpression type : handler.types) {
+                JCExpression test = treeMaker.TypeTest(treeMaker.Ident(throwableName), copier.copy(type));
+                cond = cond != null ? treeMaker.Binary(Tag.OR, cond, test) : test;
+            }
+
+            buf.add(treeMaker.If(cond, treeMaker.Block(0, enter), null));
+        }
+
+        if (buf.isEmpty() || GeneratorOptimizer.canCompleteNormally(buf.last())) {
+            buf.add(treeMaker.Break(null));
+        }
+
+        treeMaker.at(pos);
+        return buf.toList();
+    }
 }
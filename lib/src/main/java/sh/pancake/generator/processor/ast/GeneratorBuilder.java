@@ -6,10 +6,18 @@
 
 package sh.pancake.generator.processor.ast;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Spliterator;
+
+import javax.annotation.Nullable;
+
+import com.sun.tools.javac.code.BoundKind;
 import com.sun.tools.javac.code.TypeTag;
 import com.sun.tools.javac.code.Flags;
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.tree.JCTree.*;
+import com.sun.tools.javac.tree.TreeCopier;
 import com.sun.tools.javac.tree.TreeMaker;
 import com.sun.tools.javac.util.Context;
 import com.sun.tools.javac.util.List;
@@ -18,23 +26,112 @@ import com.sun.tools.javac.util.Name;
 import com.sun.tools.javac.util.Names;
 
 import sh.pancake.generator.processor.TreeMakerUtil;
+import sh.pancake.generator.processor.ast.visitor.ParamAssignScanner;
+import sh.pancake.generator.processor.ast.visitor.SinkTransformer;
 
 public class GeneratorBuilder {
     private final TreeMaker treeMaker;
     private final Names names;
 
+    /**
+     * State machine of generator, null if body runs on a thread
+     */
+    @Nullable
     private final GeneratorBlock block;
 
+    private final GeneratorOptions options;
+    private final List<JCVariableDecl> params;
+
+    /**
+     * Fields keeping original arguments of parameters assigned in body
+     */
+    private final Map<Name, Name> argumentNames;
+
+    private final Name className;
+    private final List<JCTypeParameter> typeParams;
+
+    private final ListBuffer<JCTree> members;
+
     private final JCVariableDecl resultDecl;
+    private final Name hasResultName;
+    private final Name remainingName;
+    private final Name iteratedName;
+    private final Name instanceName;
+
+    private final Name sinkName;
+    @Nullable
+    private final JCBlock forEachBody;
 
-    public GeneratorBuilder(Context cx, NameMapper alloc, GeneratorBlock block) {
+    @Nullable
+    private final StateSplitter splitter;
+
+    public GeneratorBuilder(Context cx, NameMapper alloc, GeneratorBlock block, JCMethodDecl method,
+            GeneratorOptions options, GeneratorStats stats) {
+        this(cx, alloc, block, block.resultField, method, options);
+
+        for (JCVariableDecl captured : block.getCapturedVariables()) {
+            stats.capturedFields.merge(captured.vartype != null ? captured.vartype.toString() : "var", 1,
+                    Integer::sum);
+        }
+
+        splitter.split(stats);
+    }
+
+    private GeneratorBuilder(Context cx, NameMapper alloc, @Nullable GeneratorBlock block,
+            JCVariableDecl resultDecl, JCMethodDecl method, GeneratorOptions options) {
         treeMaker = TreeMaker.instance(cx);
         names = Names.instance(cx);
 
         this.block = block;
+        this.options = options;
+        params = method.params;
+
+        argumentNames = new LinkedHashMap<>();
+        for (Name assigned : new ParamAssignScanner(params).scanAssigned(method.body)) {
+            argumentNames.put(assigned, alloc.map(Constants.GENERATOR_ARGUMENT));
+        }
 
-        resultDecl = treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE),
-                alloc.map(Constants.GENERATOR_RESULT), block.resultType, null);
+        if (options.nestedClassName != null) {
+            className = options.nestedClassName;
+            typeParams = copy(method.typarams);
+        } else {
+            className = names.fromString(Constants.GENERATOR_CLASS_NAME);
+            typeParams = List.nil();
+        }
+
+        members = new ListBuffer<>();
+
+        this.resultDecl = resultDecl;
+        hasResultName = alloc.map(Constants.GENERATOR_HAS_RESULT);
+        remainingName = alloc.map(Constants.GENERATOR_REMAINING);
+        iteratedName = alloc.map(Constants.GENERATOR_ITERATED);
+        instanceName = alloc.map(Constants.GENERATOR_INSTANCE);
+
+        sinkName = alloc.map(Constants.GENERATOR_SINK);
+        // Awaiting generator has no values to push, bidirectional generator needs values sent to its steps.
+        // Instrumented generator always runs state machine so every value is seen by its probe.
+        forEachBody = options.returnKind != ReturnKind.FUTURE && options.returnKind != ReturnKind.COROUTINE
+                && options.probeName == null
+                        ? new SinkTransformer(treeMaker, names, sinkName).transform(method.body)
+                        : null;
+
+        if (block != null && options.probeName != null) {
+            block.useInstrumentation(alloc.map(Constants.GENERATOR_RUN));
+        }
+
+        splitter = block != null ? new StateSplitter(treeMaker, names, block) : null;
+    }
+
+    /**
+     * Creates builder of generator running original body on a thread instead of state machine
+     */
+    public static GeneratorBuilder createThreaded(Context cx, NameMapper alloc, JCMethodDecl method,
+            GeneratorOptions options, JCExpression valueType) {
+        TreeMaker treeMaker = TreeMaker.instance(cx);
+        JCVariableDecl resultDecl = treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE),
+                alloc.map(Constants.GENERATOR_RESULT), valueType, null);
+
+        return new GeneratorBuilder(cx, alloc, null, resultDecl, method, options);
     }
 
     private JCAnnotation createOverride() {
@@ -49,51 +146,893 @@ public class GeneratorBuilder {
             JCExpression retType,
             String name,
             JCBlock block) {
+        return createMethod(mods, retType, name, List.nil(), block);
+    }
+
+    private JCMethodDecl createMethod(
+            JCModifiers mods,
+            JCExpression retType,
+            String name,
+            List<JCVariableDecl> params,
+            JCBlock block) {
         return treeMaker.MethodDef(
                 mods,
                 names.fromString(name),
                 retType,
                 List.nil(),
-                List.nil(),
+                params,
                 List.nil(),
                 block,
                 null);
     }
 
-    public JCBlock buildMethodBlock() {
-        JCClassDecl classDecl = buildClassDecl();
+    private JCVariableDecl createParam(String name, JCExpression type) {
+        return treeMaker.VarDef(treeMaker.Modifiers(Flags.PARAMETER), names.fromString(name), type, null);
+    }
+
+    private JCExpression createConsumerType() {
+        // Thread backend only runs reference generators
+        ResultKind resultKind = block != null ? block.resultKind : ResultKind.OBJECT;
+        if (resultKind.isPrimitive()) {
+            return resultKind.createConsumerType(treeMaker, names);
+        }
+
+        return treeMaker.TypeApply(resultKind.createConsumerType(treeMaker, names),
+                List.of(treeMaker.Wildcard(treeMaker.TypeBoundKind(BoundKind.SUPER), resultDecl.vartype)));
+    }
+
+    private JCMethodDecl createForEachDecl() {
+        JCBlock body = forEachBody;
+
+        if (isReusable()) {
+            // Generator can be rewound while consumer runs, parameters are read once
+            ListBuffer<JCStatement> buf = new ListBuffer<>();
+            for (JCVariableDecl param : params) {
+                buf.add(treeMaker.VarDef(treeMaker.Modifiers(0), param.name, copy(param.vartype),
+                        treeMaker.Select(treeMaker.Ident(names._this), param.name)));
+            }
+            buf.addAll(forEachBody.stats);
+
+            body = treeMaker.Block(0, buf.toList());
+        }
+
+        return createMethod(
+                treeMaker.Modifiers(Flags.PRIVATE),
+                treeMaker.TypeIdent(TypeTag.VOID),
+                Constants.GENERATOR_INNER_FOR_EACH,
+                List.of(treeMaker.VarDef(treeMaker.Modifiers(Flags.PARAMETER), sinkName, createConsumerType(), null)),
+                body);
+    }
+
+    private boolean isReusable() {
+        return options.poolName != null;
+    }
+
+    private boolean isNested() {
+        return options.nestedClassName != null;
+    }
+
+    /**
+     * Parameters are passed to generator instead of being captured.
+     * Captured parameter cannot be assigned, so body assigning one needs fields as well.
+     */
+    private boolean hasParamFields() {
+        return isNested() || isReusable() || !argumentNames.isEmpty();
+    }
+
+    private <T extends JCTree> T copy(T tree) {
+        // Copier moves position of tree maker, later trees must not start inside of the method body
+        int pos = treeMaker.pos;
+        T copied = new TreeCopier<Void>(treeMaker).copy(tree);
+        treeMaker.at(pos);
+
+        return copied;
+    }
+
+    private <T extends JCTree> List<T> copy(List<T> trees) {
+        int pos = treeMaker.pos;
+        List<T> copied = new TreeCopier<Void>(treeMaker).copy(trees);
+        treeMaker.at(pos);
+
+        return copied;
+    }
+
+    private JCExpression createClassType() {
+        if (typeParams.isEmpty()) {
+            return treeMaker.Ident(className);
+        }
+
+        ListBuffer<JCExpression> args = new ListBuffer<>();
+        for (JCTypeParameter param : typeParams) {
+            args.add(treeMaker.Ident(param.name));
+        }
+
+        return treeMaker.TypeApply(treeMaker.Ident(className), args.toList());
+    }
+
+    /**
+     * Instance created inside of generator starts over with original arguments, not with working parameter fields
+     */
+    private JCExpression createNewInstance(boolean fromGenerator) {
+        JCExpression clazz = treeMaker.Ident(className);
+        if (!typeParams.isEmpty()) {
+            clazz = treeMaker.TypeApply(clazz, List.nil());
+        }
+
+        return treeMaker.NewClass(
+                null,
+                List.nil(),
+                clazz,
+                hasParamFields() ? createParamArgs(fromGenerator) : List.nil(),
+                null);
+    }
+
+    /**
+     * Fields shadowing parameters, fields of original arguments and constructor assigning them
+     */
+    private List<JCTree> createParamMembers() {
+        ListBuffer<JCTree> buf = new ListBuffer<>();
+
+        for (JCVariableDecl param : params) {
+            buf.add(treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE), param.name, copy(param.vartype), null));
+        }
+
+        // Reused generator takes new arguments on reset
+        long argumentFlags = isReusable() ? Flags.PRIVATE : Flags.PRIVATE | Flags.FINAL;
+        for (JCVariableDecl param : params) {
+            Name argumentName = argumentNames.get(param.name);
+            if (argumentName != null) {
+                buf.add(treeMaker.VarDef(treeMaker.Modifiers(argumentFlags), argumentName, copy(param.vartype),
+                        null));
+            }
+        }
+
+        buf.add(treeMaker.MethodDef(
+                treeMaker.Modifiers(0),
+                names.init,
+                null,
+                List.nil(),
+                createParamDecls(),
+                List.nil(),
+                treeMaker.Block(0, createArgumentAssigns().appendList(createParamAssigns())),
+                null));
+
+        return buf.toList();
+    }
+
+    private List<JCVariableDecl> createParamDecls() {
+        ListBuffer<JCVariableDecl> buf = new ListBuffer<>();
+        for (JCVariableDecl param : params) {
+            buf.add(treeMaker.VarDef(treeMaker.Modifiers(Flags.PARAMETER), param.name, copy(param.vartype), null));
+        }
+
+        return buf.toList();
+    }
+
+    /**
+     * Working copies of assigned parameters start from original arguments
+     */
+    private List<JCStatement> createParamAssigns() {
+        ListBuffer<JCStatement> buf = new ListBuffer<>();
+        for (JCVariableDecl param : params) {
+            Name argumentName = argumentNames.get(param.name);
+            buf.add(treeMaker.Exec(treeMaker.Assign(
+                    treeMaker.Select(treeMaker.Ident(names._this), param.name),
+                    argumentName != null
+                            ? treeMaker.Select(treeMaker.Ident(names._this), argumentName)
+                            : treeMaker.Ident(param.name))));
+        }
+
+        return buf.toList();
+    }
+
+    private List<JCStatement> createArgumentAssigns() {
+        ListBuffer<JCStatement> buf = new ListBuffer<>();
+        for (JCVariableDecl param : params) {
+            Name argumentName = argumentNames.get(param.name);
+            if (argumentName != null) {
+                buf.add(treeMaker.Exec(treeMaker.Assign(
+                        treeMaker.Select(treeMaker.Ident(names._this), argumentName),
+                        treeMaker.Ident(param.name))));
+            }
+        }
+
+        return buf.toList();
+    }
+
+    /**
+     * Reset of reusable generator, rewinds generator to first step with new parameters
+     */
+    private JCMethodDecl createResetDecl(List<JCStatement> resetStatements) {
+        ListBuffer<JCStatement> buf = new ListBuffer<>();
+
+        buf.addAll(createArgumentAssigns());
+        buf.addAll(createParamAssigns());
+        buf.add(treeMaker.Exec(treeMaker.Assign(
+                treeMaker.Ident(block.getStateFieldName()),
+                treeMaker.Literal(TypeTag.INT, Constants.GENERATOR_STEP_START))));
+        buf.addAll(resetStatements);
+
+        if (block.getRunName() != null) {
+            buf.add(treeMaker.Exec(treeMaker.Apply(
+                    List.nil(),
+                    treeMaker.Select(treeMaker.Ident(block.getRunName()), names.fromString("restart")),
+                    List.of(treeMaker.Ident(names._this)))));
+        }
+
+        return createMethod(
+                treeMaker.Modifiers(0),
+                treeMaker.TypeIdent(TypeTag.VOID),
+                Constants.GENERATOR_INNER_RESET,
+                createParamDecls(),
+                treeMaker.Block(0, buf.toList()));
+    }
+
+    /**
+     * Fields of parameters and reset of reusable generator
+     */
+    private List<JCTree> createGeneratorMembers(List<JCStatement> resetStatements) {
+        ListBuffer<JCTree> buf = new ListBuffer<>();
+
+        if (hasParamFields()) {
+            buf.addAll(createParamMembers());
+        }
+
+        if (block != null && block.getRunName() != null) {
+            buf.add(createRunDecl());
+        }
+
+        if (isReusable()) {
+            buf.add(createResetDecl(resetStatements));
+        }
+
+        return buf.toList();
+    }
+
+    private List<JCExpression> createParamArgs(boolean fromGenerator) {
+        ListBuffer<JCExpression> buf = new ListBuffer<>();
+        for (JCVariableDecl param : params) {
+            Name argumentName = fromGenerator ? argumentNames.get(param.name) : null;
+            buf.add(treeMaker.Ident(argumentName != null ? argumentName : param.name));
+        }
+
+        return buf.toList();
+    }
+
+    /**
+     * Pooled generator can be rewound only after it is finished and nothing is buffered
+     */
+    private JCExpression createFinishedCond(Name instanceName) {
+        JCExpression cond = treeMaker.Binary(Tag.EQ,
+                treeMaker.Select(treeMaker.Ident(instanceName), block.getStateFieldName()),
+                treeMaker.Literal(TypeTag.INT, Constants.GENERATOR_STEP_FINISH));
+
+        if (options.returnKind == ReturnKind.SPLITERATOR || options.returnKind == ReturnKind.STREAM) {
+            return cond;
+        }
+
+        if (block.resultKind.isPrimitive()) {
+            return treeMaker.Binary(Tag.AND, cond, treeMaker.Unary(Tag.NOT,
+                    treeMaker.Select(treeMaker.Ident(instanceName), hasResultName)));
+        }
+
+        return treeMaker.Binary(Tag.AND, cond, treeMaker.Binary(Tag.EQ,
+                treeMaker.Select(treeMaker.Ident(instanceName), resultDecl.name),
+                treeMaker.Literal(TypeTag.BOT, null)));
+    }
+
+    /**
+     * Thread local field of enclosing class holding last generator of each thread.
+     * Local class cannot be named by a field, so its generators are kept as objects.
+     */
+    private JCVariableDecl createPoolDecl() {
+        JCExpression pooledType;
+        if (!isNested()) {
+            pooledType = TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "Object");
+        } else if (typeParams.isEmpty()) {
+            pooledType = treeMaker.Ident(className);
+        } else {
+            ListBuffer<JCExpression> args = new ListBuffer<>();
+            for (int i = 0; i < typeParams.size(); i++) {
+                args.add(treeMaker.Wildcard(treeMaker.TypeBoundKind(BoundKind.UNBOUND), null));
+            }
+
+            pooledType = treeMaker.TypeApply(treeMaker.Ident(className), args.toList());
+        }
+
+        return treeMaker.VarDef(
+                treeMaker.Modifiers(Flags.PRIVATE | Flags.STATIC | Flags.FINAL),
+                options.poolName,
+                treeMaker.TypeApply(
+                        TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "ThreadLocal"),
+                        List.of(pooledType)),
+                treeMaker.NewClass(null, List.nil(),
+                        treeMaker.TypeApply(
+                                TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "ThreadLocal"),
+                                List.nil()),
+                        List.nil(), null));
+    }
+
+    /**
+     * Static field of enclosing class holding probe shared by generators of the method
+     */
+    private JCVariableDecl createProbeDecl() {
+        return treeMaker.VarDef(
+                treeMaker.Modifiers(Flags.PRIVATE | Flags.STATIC | Flags.FINAL),
+                options.probeName,
+                TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator", "GeneratorProbe"),
+                treeMaker.Apply(
+                        List.nil(),
+                        TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator",
+                                "GeneratorProbe", "register"),
+                        List.of(treeMaker.Literal(options.probeLabel))));
+    }
+
+    /**
+     * Run of generator, tracking starts once generator is created
+     */
+    private JCVariableDecl createRunDecl() {
+        return treeMaker.VarDef(
+                treeMaker.Modifiers(Flags.PRIVATE | Flags.FINAL),
+                block.getRunName(),
+                TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator", "GeneratorProbe",
+                        "Run"),
+                treeMaker.Apply(
+                        List.nil(),
+                        treeMaker.Select(treeMaker.Ident(options.probeName), names.fromString("start")),
+                        List.of(treeMaker.Ident(names._this))));
+    }
+
+    /**
+     * Body of __next running state machine, instrumented generator reports state it resumed and suspended at
+     */
+    private JCBlock createInnerNextBody(JCExpression finishValue) {
+        JCStatement next = splitter.createNextStatement();
+        Name runName = block.getRunName();
+
+        if (runName == null) {
+            return treeMaker.Block(0, List.of(next, treeMaker.Return(finishValue)));
+        }
 
         return treeMaker.Block(0, List.of(
-                classDecl,
-                treeMaker.Return(treeMaker.NewClass(
-                        null,
+                treeMaker.Exec(treeMaker.Apply(
+                        List.nil(),
+                        treeMaker.Select(treeMaker.Ident(runName), names.fromString("resume")),
+                        List.of(treeMaker.Ident(block.getStateFieldName())))),
+                treeMaker.Try(
+                        treeMaker.Block(0, List.of(next, treeMaker.Return(finishValue))),
                         List.nil(),
-                        treeMaker.Ident(classDecl.name),
+                        treeMaker.Block(0, List.of(treeMaker.Exec(treeMaker.Apply(
+                                List.nil(),
+                                treeMaker.Select(treeMaker.Ident(runName), names.fromString("suspend")),
+                                List.of(treeMaker.Ident(block.getStateFieldName())))))))));
+    }
+
+    /**
+     * Methods called from __next, states moved out of it and shared paths of try statements
+     */
+    private List<JCTree> createInnerMethods() {
+        ListBuffer<JCTree> buf = new ListBuffer<>();
+        buf.addAll(splitter.getMethods());
+
+        if (block.usesExceptionTable()) {
+            buf.add(createThrowDecl());
+        }
+
+        if (block.usesResourceClose()) {
+            buf.add(createCloseDecl());
+        }
+
+        return buf.toList();
+    }
+
+    /**
+     * Rethrows exception without checking, thrown type is inferred as RuntimeException at call site
+     */
+    private JCMethodDecl createThrowDecl() {
+        Name typeName = names.fromString("E");
+        JCVariableDecl throwableDecl = createParam("t",
+                TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "Throwable"));
+
+        JCAnnotation suppressWarnings = treeMaker.Annotation(
+                TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "SuppressWarnings"),
+                List.of(treeMaker.Literal("unchecked")));
+
+        return treeMaker.MethodDef(
+                treeMaker.Modifiers(Flags.PRIVATE, List.of(suppressWarnings)),
+                names.fromString(Constants.GENERATOR_INNER_THROW),
+                TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "RuntimeException"),
+                List.of(treeMaker.TypeParameter(typeName, List.of(
+                        TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "Throwable")))),
+                List.of(throwableDecl),
+                List.of(treeMaker.Ident(typeName)),
+                treeMaker.Block(0, List.of(treeMaker.Throw(
+                        treeMaker.TypeCast(treeMaker.Ident(typeName), treeMaker.Ident(throwableDecl.name))))),
+                null);
+    }
+
+    /**
+     * Closes resource of try-with-resources.
+     * Exception from close is suppressed into exception thrown in body if there is one, otherwise it is thrown.
+     */
+    private JCMethodDecl createCloseDecl() {
+        JCVariableDecl resourceDecl = createParam("resource",
+                TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "AutoCloseable"));
+        JCVariableDecl throwableDecl = createParam("t",
+                TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "Throwable"));
+
+        JCVariableDecl suppressedDecl = treeMaker.VarDef(treeMaker.Modifiers(0), names.fromString("suppressed"),
+                TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "Throwable"), null);
+
+        JCStatement closeStatement = treeMaker.Try(
+                treeMaker.Block(0, List.of(treeMaker.Exec(treeMaker.Apply(
                         List.nil(),
+                        treeMaker.Select(treeMaker.Ident(resourceDecl.name), names.close),
+                        List.nil())))),
+                List.of(treeMaker.Catch(suppressedDecl, treeMaker.Block(0, List.of(
+                        treeMaker.If(
+                                treeMaker.Binary(Tag.EQ, treeMaker.Ident(throwableDecl.name),
+                                        treeMaker.Literal(TypeTag.BOT, null)),
+                                treeMaker.Throw(treeMaker.Apply(
+                                        List.nil(),
+                                        treeMaker.Ident(names.fromString(Constants.GENERATOR_INNER_THROW)),
+                                        List.of(treeMaker.Ident(suppressedDecl.name)))),
+                                null),
+                        treeMaker.Exec(treeMaker.Apply(
+                                List.nil(),
+                                treeMaker.Select(treeMaker.Ident(throwableDecl.name), names.addSuppressed),
+                                List.of(treeMaker.Ident(suppressedDecl.name)))))))),
+                null);
+
+        return createMethod(
+                treeMaker.Modifiers(Flags.PRIVATE),
+                treeMaker.TypeIdent(TypeTag.VOID),
+                Constants.GENERATOR_INNER_CLOSE,
+                List.of(resourceDecl, throwableDecl),
+                treeMaker.Block(0, List.of(treeMaker.If(
+                        treeMaker.Binary(Tag.NE, treeMaker.Ident(resourceDecl.name),
+                                treeMaker.Literal(TypeTag.BOT, null)),
+                        closeStatement,
                         null))));
     }
 
+    private JCExpression createDelegatingType() {
+        return treeMaker.TypeApply(
+                TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator", "Delegating"),
+                List.of(resultDecl.vartype));
+    }
+
+    /**
+     * Members letting trampoline drive generator.
+     * If generator itself delegates, values are pulled through its trampoline once it delegated first time.
+     */
+    private List<JCTree> createDelegatingMembers(boolean buffered) {
+        ListBuffer<JCTree> buf = new ListBuffer<>();
+        Name delegateName = block.getDelegateName();
+        Name resName = names.fromString("res");
+        JCExpression nullExpr = treeMaker.Literal(TypeTag.BOT, null);
+
+        JCMethodInvocation invInnerNext = treeMaker.Apply(List.nil(),
+                treeMaker.Ident(names.fromString(Constants.GENERATOR_INNER_NEXT)), List.nil());
+
+        ListBuffer<JCStatement> advanceBuf = new ListBuffer<>();
+        if (buffered) {
+            advanceBuf.add(treeMaker.If(treeMaker.Binary(Tag.NE, treeMaker.Ident(resultDecl.name), nullExpr),
+                    treeMaker.Block(0, List.of(
+                            treeMaker.VarDef(treeMaker.Modifiers(0), resName, resultDecl.vartype,
+                                    treeMaker.Ident(resultDecl.name)),
+                            treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(resultDecl.name), nullExpr)),
+                            treeMaker.Return(treeMaker.Ident(resName)))),
+                    null));
+        }
+        advanceBuf.add(treeMaker.Return(invInnerNext));
+
+        buf.add(createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                resultDecl.vartype,
+                "advance",
+                treeMaker.Block(0, advanceBuf.toList())));
+
+        buf.add(createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                treeMaker.TypeIdent(TypeTag.VOID),
+                "finish",
+                treeMaker.Block(0, List.of(treeMaker.Exec(treeMaker.Assign(
+                        treeMaker.Ident(block.getStateFieldName()),
+                        treeMaker.Literal(TypeTag.INT, Constants.GENERATOR_STEP_FINISH)))))));
+
+        if (delegateName == null) {
+            buf.add(createMethod(
+                    treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                    createDelegatingType(),
+                    "takeDelegate",
+                    treeMaker.Block(0, List.of(treeMaker.Return(nullExpr)))));
+
+            return buf.toList();
+        }
+
+        Name trampolineName = names.fromString(Constants.GENERATOR_TRAMPOLINE);
+        JCExpression trampolineType = TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator",
+                "Trampoline");
+
+        buf.add(treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE), delegateName, createDelegatingType(), null));
+        buf.add(treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE), trampolineName,
+                treeMaker.TypeApply(trampolineType, List.of(resultDecl.vartype)), null));
+
+        buf.add(createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                createDelegatingType(),
+                "takeDelegate",
+                treeMaker.Block(0, List.of(
+                        treeMaker.VarDef(treeMaker.Modifiers(0), resName, createDelegatingType(),
+                                treeMaker.Ident(delegateName)),
+                        treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(delegateName), nullExpr)),
+                        treeMaker.Return(treeMaker.Ident(resName))))));
+
+        JCStatement startTrampoline = treeMaker.Block(0, List.of(
+                treeMaker.VarDef(treeMaker.Modifiers(0), resName, resultDecl.vartype, invInnerNext),
+                treeMaker.If(
+                        treeMaker.Binary(Tag.OR,
+                                treeMaker.Binary(Tag.NE, treeMaker.Ident(resName), nullExpr),
+                                treeMaker.Binary(Tag.EQ, treeMaker.Ident(delegateName), nullExpr)),
+                        treeMaker.Return(treeMaker.Ident(resName)),
+                        null),
+                treeMaker.Exec(treeMaker.Assign(
+                        treeMaker.Ident(trampolineName),
+                        treeMaker.NewClass(null, List.nil(),
+                                treeMaker.TypeApply(TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake",
+                                        "generator", "Trampoline"), List.nil()),
+                                List.of(
+                                        treeMaker.Ident(names._this),
+                                        treeMaker.Apply(List.nil(),
+                                                treeMaker.Ident(names.fromString("takeDelegate")), List.nil())),
+                                null)))));
+
+        buf.add(createMethod(
+                treeMaker.Modifiers(Flags.PRIVATE),
+                resultDecl.vartype,
+                Constants.GENERATOR_INNER_PULL,
+                treeMaker.Block(0, List.of(
+                        treeMaker.If(treeMaker.Binary(Tag.EQ, treeMaker.Ident(trampolineName), nullExpr),
+                                startTrampoline,
+                                null),
+                        treeMaker.Return(treeMaker.Apply(List.nil(),
+                                treeMaker.Select(treeMaker.Ident(trampolineName), names.fromString("pull")),
+                                List.nil()))))));
+
+        return buf.toList();
+    }
+
+    /**
+     * Name of method entry points run state machine with
+     */
+    private Name getPullName() {
+        return names.fromString(block.getDelegateName() != null
+                ? Constants.GENERATOR_INNER_PULL
+                : Constants.GENERATOR_INNER_NEXT);
+    }
+
+    /**
+     * Fills array in one call, value buffered by hasNext is written first and state machine is run for the rest
+     */
+    private JCMethodDecl createNextBatchDecl(JCExpression bufferedCond, JCStatement clearBuffered,
+            List<JCStatement> valueDecls, JCExpression nextCond, Name valueName) {
+        JCVariableDecl bufDecl = createParam("buf", treeMaker.TypeArray(resultDecl.vartype));
+        JCVariableDecl offDecl = createParam("off", treeMaker.TypeIdent(TypeTag.INT));
+        JCVariableDecl lenDecl = createParam("len", treeMaker.TypeIdent(TypeTag.INT));
+
+        Name countName = names.fromString("count");
+
+        ListBuffer<JCStatement> buf = new ListBuffer<>();
+        buf.add(treeMaker.VarDef(treeMaker.Modifiers(0), countName, treeMaker.TypeIdent(TypeTag.INT),
+                treeMaker.Literal(TypeTag.INT, 0)));
+        buf.add(treeMaker.If(
+                treeMaker.Binary(Tag.AND,
+                        treeMaker.Binary(Tag.GT, treeMaker.Ident(lenDecl.name), treeMaker.Literal(TypeTag.INT, 0)),
+                        bufferedCond),
+                treeMaker.Block(0, List.of(
+                        treeMaker.Exec(treeMaker.Assign(
+                                treeMaker.Indexed(treeMaker.Ident(bufDecl.name), treeMaker.Ident(offDecl.name)),
+                                treeMaker.Ident(resultDecl.name))),
+                        clearBuffered,
+                        treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(countName),
+                                treeMaker.Literal(TypeTag.INT, 1))))),
+                null));
+        buf.addAll(valueDecls);
+        buf.add(treeMaker.WhileLoop(
+                treeMaker.Binary(Tag.AND,
+                        treeMaker.Binary(Tag.LT, treeMaker.Ident(countName), treeMaker.Ident(lenDecl.name)),
+                        nextCond),
+                treeMaker.Exec(treeMaker.Assign(
+                        treeMaker.Indexed(treeMaker.Ident(bufDecl.name), treeMaker.Binary(Tag.PLUS,
+                                treeMaker.Ident(offDecl.name),
+                                treeMaker.Unary(Tag.POSTINC, treeMaker.Ident(countName)))),
+                        treeMaker.Ident(valueName)))));
+        buf.add(treeMaker.Return(treeMaker.Ident(countName)));
+
+        return createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                treeMaker.TypeIdent(TypeTag.INT),
+                "nextBatch",
+                List.of(bufDecl, offDecl, lenDecl),
+                treeMaker.Block(0, buf.toList()));
+    }
+
+    /**
+     * Resumes bidirectional generator with value, it is cleared once the step reading it has run
+     */
+    private JCMethodDecl createSendDecl(JCVariableDecl sentDecl, JCExpression notBufferedCond,
+            JCExpression invInnerNext) {
+        JCVariableDecl valueDecl = createParam("value", sentDecl.vartype);
+        Name resName = names.fromString("res");
+
+        return createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                resultDecl.vartype,
+                "send",
+                List.of(valueDecl),
+                treeMaker.Block(0, List.of(
+                        treeMaker.If(treeMaker.Unary(Tag.NOT, treeMaker.Parens(notBufferedCond)),
+                                treeMaker.Throw(treeMaker.NewClass(null, List.nil(),
+                                        TreeMakerUtil.createClassName(treeMaker, names, "java", "lang",
+                                                "IllegalStateException"),
+                                        List.of(treeMaker.Literal(Constants.ERR_SEND_ON_BUFFERED_MESSAGE)),
+                                        null)),
+                                null),
+                        treeMaker.VarDef(treeMaker.Modifiers(0), resName, resultDecl.vartype, null),
+                        treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(sentDecl.name),
+                                treeMaker.Ident(valueDecl.name))),
+                        treeMaker.Try(
+                                treeMaker.Block(0, List.of(treeMaker.Exec(treeMaker.Assign(
+                                        treeMaker.Ident(resName), invInnerNext)))),
+                                List.nil(),
+                                treeMaker.Block(0, List.of(treeMaker.Exec(treeMaker.Assign(
+                                        treeMaker.Ident(sentDecl.name),
+                                        treeMaker.Literal(TypeTag.BOT, null)))))),
+                        treeMaker.If(
+                                treeMaker.Binary(Tag.EQ, treeMaker.Ident(resName),
+                                        treeMaker.Literal(TypeTag.BOT, null)),
+                                treeMaker.Throw(createNewNoSuchElementException()),
+                                null),
+                        treeMaker.Return(treeMaker.Ident(resName)))));
+    }
+
+    /**
+     * Runs push style method instead of state machine if iteration is not started yet, empty if there is none
+     */
+    private JCStatement createPushStatement(@Nullable JCExpression notBufferedCond, Name actionName,
+            List<JCStatement> after) {
+        if (forEachBody == null) {
+            return treeMaker.Skip();
+        }
+
+        JCExpression notStartedCond = createNotStartedCond();
+
+        if (notBufferedCond != null) {
+            notStartedCond = treeMaker.Binary(Tag.AND, notStartedCond, notBufferedCond);
+        }
+
+        ListBuffer<JCStatement> buf = new ListBuffer<>();
+
+        buf.add(treeMaker.Exec(treeMaker.Assign(
+                treeMaker.Ident(block.getStateFieldName()),
+                treeMaker.Literal(TypeTag.INT, Constants.GENERATOR_STEP_FINISH))));
+        buf.add(treeMaker.Exec(treeMaker.Apply(
+                List.nil(),
+                treeMaker.Ident(names.fromString(Constants.GENERATOR_INNER_FOR_EACH)),
+                List.of(treeMaker.Ident(actionName)))));
+        buf.addAll(after);
+        buf.add(treeMaker.Return(null));
+
+        return treeMaker.If(notStartedCond, treeMaker.Block(0, buf.toList()), null);
+    }
+
+    /**
+     * Members added to enclosing class, available after building method block
+     */
+    public List<JCTree> getMembers() {
+        return members.toList();
+    }
+
+    public JCBlock buildMethodBlock() {
+        if (block == null) {
+            return buildThreadMethodBlock();
+        }
+
+        ListBuffer<JCStatement> buf = new ListBuffer<>();
+
+        JCClassDecl classDecl = buildClassDecl();
+        if (isNested()) {
+            members.add(classDecl);
+        } else {
+            buf.add(classDecl);
+        }
+
+        JCExpression instance = createNewInstance(false);
+
+        if (options.probeName != null) {
+            members.add(createProbeDecl());
+        }
+
+        if (isReusable()) {
+            members.add(createPoolDecl());
+
+            // Cast to generic generator is unchecked
+            List<JCAnnotation> annotations = typeParams.isEmpty() ? List.nil()
+                    : List.of(treeMaker.Annotation(
+                            TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "SuppressWarnings"),
+                            List.of(treeMaker.Literal("unchecked"))));
+
+            JCExpression pooled = treeMaker.Apply(
+                    List.nil(),
+                    treeMaker.Select(treeMaker.Ident(options.poolName), names.fromString("get")),
+                    List.nil());
+            if (!isNested() || !typeParams.isEmpty()) {
+                pooled = treeMaker.TypeCast(createClassType(), pooled);
+            }
+
+            buf.add(treeMaker.VarDef(treeMaker.Modifiers(0, annotations), instanceName, createClassType(), pooled));
+
+            buf.add(treeMaker.If(
+                    treeMaker.Binary(Tag.OR,
+                            treeMaker.Binary(Tag.EQ, treeMaker.Ident(instanceName),
+                                    treeMaker.Literal(TypeTag.BOT, null)),
+                            treeMaker.Unary(Tag.NOT, treeMaker.Parens(createFinishedCond(instanceName)))),
+                    treeMaker.Block(0, List.of(
+                            treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(instanceName), instance)),
+                            treeMaker.Exec(treeMaker.Apply(
+                                    List.nil(),
+                                    treeMaker.Select(treeMaker.Ident(options.poolName), names.fromString("set")),
+                                    List.of(treeMaker.Ident(instanceName)))))),
+                    treeMaker.Exec(treeMaker.Apply(
+                            List.nil(),
+                            treeMaker.Select(treeMaker.Ident(instanceName),
+                                    names.fromString(Constants.GENERATOR_INNER_RESET)),
+                            createParamArgs(false)))));
+
+            instance = treeMaker.Ident(instanceName);
+        }
+
+        if (options.returnKind == ReturnKind.FUTURE) {
+            instance = treeMaker.Apply(
+                    List.nil(),
+                    TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator", "AsyncTask",
+                            "start"),
+                    List.of(instance));
+        } else if (options.returnKind == ReturnKind.PUBLISHER) {
+            // Every subscriber runs its own generator
+            instance = treeMaker.NewClass(
+                    null,
+                    List.nil(),
+                    treeMaker.TypeApply(
+                            TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator",
+                                    "GeneratorPublisher"),
+                            List.nil()),
+                    List.of(treeMaker.Lambda(List.nil(), instance)),
+                    null);
+        } else if (options.returnKind == ReturnKind.STREAM) {
+            instance = treeMaker.Apply(
+                    List.nil(),
+                    TreeMakerUtil.createClassName(treeMaker, names, "java", "util", "stream", "StreamSupport",
+                            block.resultKind.streamFactoryName),
+                    List.of(instance, treeMaker.Literal(TypeTag.BOOLEAN, 0)));
+        }
+
+        buf.add(treeMaker.Return(instance));
+
+        return treeMaker.Block(0, buf.toList());
+    }
+
+    /**
+     * Generator class holds original body, thread backend runs it for each iterator
+     */
+    private JCBlock buildThreadMethodBlock() {
+        ListBuffer<JCTree> classBuf = new ListBuffer<>();
+        classBuf.addAll(createGeneratorMembers(List.nil()));
+        classBuf.add(createForEachDecl());
+
+        JCVariableDecl sinkDecl = createParam("sink", createConsumerType());
+        classBuf.add(createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                treeMaker.TypeIdent(TypeTag.VOID),
+                "run",
+                List.of(sinkDecl),
+                treeMaker.Block(0, List.of(treeMaker.Exec(treeMaker.Apply(
+                        List.nil(),
+                        treeMaker.Ident(names.fromString(Constants.GENERATOR_INNER_FOR_EACH)),
+                        List.of(treeMaker.Ident(sinkDecl.name))))))));
+
+        JCClassDecl classDecl = treeMaker.ClassDef(
+                createClassModifiers(),
+                className,
+                typeParams,
+                null,
+                List.of(treeMaker.TypeApply(
+                        TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator",
+                                "ThreadGenerator", "Body"),
+                        List.of(resultDecl.vartype))),
+                List.nil(),
+                classBuf.toList());
+
+        ListBuffer<JCStatement> buf = new ListBuffer<>();
+        if (isNested()) {
+            members.add(classDecl);
+        } else {
+            buf.add(classDecl);
+        }
+
+        String factoryName = switch (options.returnKind) {
+            case SPLITERATOR -> "spliterator";
+            case STREAM -> "stream";
+            default -> "iterator";
+        };
+
+        List<JCExpression> args = List.of(createNewInstance(false));
+        if (options.returnKind == ReturnKind.SPLITERATOR || options.returnKind == ReturnKind.STREAM) {
+            args = args.append(treeMaker.Literal(TypeTag.INT, options.characteristics));
+        }
+
+        JCExpression instance = treeMaker.Apply(
+                List.nil(),
+                TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator", "ThreadGenerator",
+                        factoryName),
+                args);
+
+        if (options.returnKind == ReturnKind.ITERABLE) {
+            // Every iterator runs body on its own thread
+            instance = treeMaker.Lambda(List.nil(), instance);
+        }
+
+        buf.add(treeMaker.Return(instance));
+
+        return treeMaker.Block(0, buf.toList());
+    }
+
     public JCClassDecl buildClassDecl() {
+        if (options.returnKind == ReturnKind.FUTURE) {
+            return buildAsyncClassDecl();
+        }
+
+        if (options.returnKind == ReturnKind.SPLITERATOR || options.returnKind == ReturnKind.STREAM) {
+            return buildSpliteratorClassDecl();
+        }
+
+        if (block.resultKind.isPrimitive()) {
+            return buildPrimitiveClassDecl();
+        }
+
         ListBuffer<JCTree> classBuf = new ListBuffer<>();
 
+        boolean iterable = options.returnKind == ReturnKind.ITERABLE;
+
         classBuf.addAll(block.capturedList());
         classBuf.add(resultDecl);
 
+        if (iterable) {
+            classBuf.add(treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE),
+                    iteratedName, treeMaker.TypeIdent(TypeTag.BOOLEAN), null));
+        }
+
+        classBuf.addAll(createGeneratorMembers(iterable
+                ? List.of(treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(iteratedName),
+                        treeMaker.Literal(TypeTag.BOOLEAN, 0))))
+                : List.nil()));
+
         JCModifiers privateModifiers = treeMaker.Modifiers(Flags.PRIVATE);
 
         JCMethodDecl innerNextDecl = createMethod(
                 privateModifiers,
                 resultDecl.vartype,
                 Constants.GENERATOR_INNER_NEXT,
-                treeMaker.Block(0, List.of(
-                        block.createNextStatement(treeMaker, names),
-                        treeMaker.Return(treeMaker.Literal(TypeTag.BOT, null)))));
+                createInnerNextBody(treeMaker.Literal(TypeTag.BOT, null)));
 
         classBuf.add(innerNextDecl);
+        classBuf.addAll(createInnerMethods());
+        classBuf.addAll(createDelegatingMembers(true));
 
         JCMethodInvocation invInnerNext = treeMaker.Apply(
                 List.nil(),
-                treeMaker.Ident(innerNextDecl.name),
+                treeMaker.Ident(getPullName()),
                 List.nil());
 
         JCExpression nullExpr = treeMaker.Literal(TypeTag.BOT, null);
@@ -142,6 +1081,97 @@ public class GeneratorBuilder {
 
         classBuf.add(nextDecl);
 
+        classBuf.add(createNextBatchDecl(
+                treeMaker.Binary(Tag.NE, resultFieldIdent, nullExpr),
+                treeMaker.Exec(treeMaker.Assign(resultFieldIdent, nullExpr)),
+                List.of(treeMaker.VarDef(treeMaker.Modifiers(0), resTempName, resultDecl.vartype, null)),
+                treeMaker.Binary(Tag.NE,
+                        treeMaker.Parens(treeMaker.Assign(treeMaker.Ident(resTempName), invInnerNext)),
+                        nullExpr),
+                resTempName));
+
+        JCVariableDecl actionDecl = createParam("action", createConsumerType());
+
+        JCStatement acceptStatement = treeMaker.Exec(treeMaker.Apply(
+                List.nil(),
+                treeMaker.Select(treeMaker.Ident(actionDecl.name), names.fromString("accept")),
+                List.of(treeMaker.Ident(resTempName))));
+
+        ListBuffer<JCStatement> forEachRemainingBuf = new ListBuffer<>();
+        if (forEachBody != null) {
+            classBuf.add(createForEachDecl());
+            forEachRemainingBuf.add(createPushStatement(shouldGetCond, actionDecl.name, List.nil()));
+        }
+
+        JCMethodDecl forEachRemainingDecl = createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                treeMaker.TypeIdent(TypeTag.VOID),
+                "forEachRemaining",
+                List.of(actionDecl),
+                treeMaker.Block(0, forEachRemainingBuf.appendList(List.of(
+                        treeMaker.VarDef(treeMaker.Modifiers(0), resTempName,
+                                resultDecl.vartype,
+                                resultFieldIdent),
+                        treeMaker.Exec(treeMaker.Assign(
+                                resultFieldIdent, nullExpr)),
+                        treeMaker.If(treeMaker.Binary(Tag.NE, treeMaker.Ident(resTempName), nullExpr),
+                                acceptStatement,
+                                null),
+                        treeMaker.WhileLoop(
+                                treeMaker.Binary(Tag.NE,
+                                        treeMaker.Parens(treeMaker.Assign(treeMaker.Ident(resTempName),
+                                                invInnerNext)),
+                                        nullExpr),
+                                acceptStatement))).toList()));
+
+        classBuf.add(forEachRemainingDecl);
+
+        JCVariableDecl forEachActionDecl = createParam("action", createConsumerType());
+
+        // Iterable runs on its own iterator, so it can be iterated again
+        JCExpression forEachTarget = iterable
+                ? treeMaker.Apply(List.nil(), treeMaker.Ident(names.iterator), List.nil())
+                : treeMaker.Ident(names._this);
+
+        JCMethodDecl forEachDecl = createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                treeMaker.TypeIdent(TypeTag.VOID),
+                "forEach",
+                List.of(forEachActionDecl),
+                treeMaker.Block(0, List.of(treeMaker.Exec(treeMaker.Apply(
+                        List.nil(),
+                        treeMaker.Select(forEachTarget, forEachRemainingDecl.name),
+                        List.of(treeMaker.Ident(forEachActionDecl.name)))))));
+
+        classBuf.add(forEachDecl);
+
+        ListBuffer<JCExpression> implementing = new ListBuffer<>();
+        implementing.add(treeMaker.TypeApply(
+                TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "Iterable"),
+                List.of(resultDecl.vartype)));
+        implementing.add(treeMaker.TypeApply(
+                block.resultKind.createBatchIteratorType(treeMaker, names),
+                List.of(resultDecl.vartype)));
+        implementing.add(createDelegatingType());
+
+        JCVariableDecl sentDecl = block.getSentField();
+        if (sentDecl != null) {
+            classBuf.add(sentDecl);
+            classBuf.add(createSendDecl(sentDecl, shouldGetCond, invInnerNext));
+            implementing.add(treeMaker.TypeApply(
+                    TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator", "Coroutine"),
+                    List.of(resultDecl.vartype, sentDecl.vartype)));
+        }
+
+        ListBuffer<JCStatement> iteratorBuf = new ListBuffer<>();
+        if (iterable) {
+            // First iterator is generator itself, later ones start over with same arguments
+            iteratorBuf.add(treeMaker.If(treeMaker.Ident(iteratedName), treeMaker.Return(createNewInstance(true)), null));
+            iteratorBuf.add(treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(iteratedName),
+                    treeMaker.Literal(TypeTag.BOOLEAN, 1))));
+        }
+        iteratorBuf.add(treeMaker.Return(treeMaker.Ident(names._this)));
+
         JCMethodDecl iteratorDecl = createMethod(
                 treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
                 treeMaker.TypeApply(
@@ -149,24 +1179,446 @@ public class GeneratorBuilder {
                                 "Iterator"),
                         List.of(resultDecl.vartype)),
                 "iterator",
-                treeMaker.Block(0, List.of(treeMaker.Return(treeMaker.Ident(names._this)))));
+                treeMaker.Block(0, iteratorBuf.toList()));
 
         classBuf.add(iteratorDecl);
 
         return treeMaker.ClassDef(
-                treeMaker.Modifiers(Flags.FINAL),
-                names.fromString(Constants.GENERATOR_CLASS_NAME),
+                createClassModifiers(),
+                className,
+                typeParams,
+                null,
+                implementing.toList(),
                 List.nil(),
+                classBuf.toList());
+    }
+
+    /**
+     * State machine of async generator, it yields futures it awaits and is driven by AsyncTask
+     */
+    private JCClassDecl buildAsyncClassDecl() {
+        ListBuffer<JCTree> classBuf = new ListBuffer<>();
+        JCVariableDecl returnDecl = block.getReturnField();
+
+        classBuf.addAll(block.capturedList());
+        classBuf.add(returnDecl);
+        classBuf.addAll(createGeneratorMembers(List.nil()));
+
+        classBuf.add(createMethod(
+                treeMaker.Modifiers(Flags.PRIVATE),
+                resultDecl.vartype,
+                Constants.GENERATOR_INNER_NEXT,
+                createInnerNextBody(treeMaker.Literal(TypeTag.BOT, null))));
+        classBuf.addAll(createInnerMethods());
+
+        classBuf.add(createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                resultDecl.vartype,
+                "advance",
+                treeMaker.Block(0, List.of(treeMaker.Return(treeMaker.Apply(
+                        List.nil(),
+                        treeMaker.Ident(names.fromString(Constants.GENERATOR_INNER_NEXT)),
+                        List.nil()))))));
+
+        classBuf.add(createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                returnDecl.vartype,
+                "result",
+                treeMaker.Block(0, List.of(treeMaker.Return(treeMaker.Ident(returnDecl.name))))));
+
+        return treeMaker.ClassDef(
+                createClassModifiers(),
+                className,
+                typeParams,
                 null,
-                List.of(
-                        TreeMakerUtil.createClassName(treeMaker, names, "java", "lang",
-                                "Iterable"),
-                        TreeMakerUtil.createClassName(treeMaker, names, "java", "util",
-                                "Iterator")),
+                List.of(treeMaker.TypeApply(
+                        TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator", "AsyncTask",
+                                "Body"),
+                        List.of(returnDecl.vartype))),
                 List.nil(),
                 classBuf.toList());
     }
 
+    private JCClassDecl buildPrimitiveClassDecl() {
+        ListBuffer<JCTree> classBuf = new ListBuffer<>();
+
+        JCVariableDecl hasResultDecl = treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE),
+                hasResultName, treeMaker.TypeIdent(TypeTag.BOOLEAN), null);
+
+        classBuf.addAll(block.capturedList());
+        classBuf.add(resultDecl);
+        classBuf.add(hasResultDecl);
+
+        classBuf.addAll(createGeneratorMembers(List.nil()));
+
+        JCMethodDecl innerNextDecl = createMethod(
+                treeMaker.Modifiers(Flags.PRIVATE),
+                treeMaker.TypeIdent(TypeTag.BOOLEAN),
+                Constants.GENERATOR_INNER_NEXT,
+                createInnerNextBody(treeMaker.Literal(TypeTag.BOOLEAN, 0)));
+
+        classBuf.add(innerNextDecl);
+        classBuf.addAll(createInnerMethods());
+
+        JCMethodInvocation invInnerNext = treeMaker.Apply(
+                List.nil(),
+                treeMaker.Ident(innerNextDecl.name),
+                List.nil());
+
+        JCIdent resultFieldIdent = treeMaker.Ident(resultDecl.name);
+        JCIdent hasResultIdent = treeMaker.Ident(hasResultDecl.name);
+
+        JCMethodDecl hasNextDecl = createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                treeMaker.TypeIdent(TypeTag.BOOLEAN),
+                "hasNext",
+                treeMaker.Block(0, List.of(
+                        treeMaker.If(treeMaker.Unary(Tag.NOT, hasResultIdent),
+                                treeMaker.Exec(treeMaker.Assign(hasResultIdent, invInnerNext)),
+                                null),
+                        treeMaker.Return(hasResultIdent))));
+
+        classBuf.add(hasNextDecl);
+
+        JCMethodDecl nextDecl = createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                resultDecl.vartype,
+                block.resultKind.nextName,
+                treeMaker.Block(0, List.of(
+                        treeMaker.If(
+                                treeMaker.Binary(Tag.AND,
+                                        treeMaker.Unary(Tag.NOT, hasResultIdent),
+                                        treeMaker.Unary(Tag.NOT, invInnerNext)),
+                                treeMaker.Throw(createNewNoSuchElementException()),
+                                null),
+                        treeMaker.Exec(treeMaker.Assign(hasResultIdent, treeMaker.Literal(TypeTag.BOOLEAN, 0))),
+                        treeMaker.Return(resultFieldIdent))));
+
+        classBuf.add(nextDecl);
+
+        classBuf.add(createNextBatchDecl(
+                hasResultIdent,
+                treeMaker.Exec(treeMaker.Assign(hasResultIdent, treeMaker.Literal(TypeTag.BOOLEAN, 0))),
+                List.nil(),
+                invInnerNext,
+                resultDecl.name));
+
+        if (forEachBody != null) {
+            classBuf.add(createForEachDecl());
+        }
+
+        JCVariableDecl actionDecl = createParam("action", createConsumerType());
+
+        JCStatement acceptStatement = treeMaker.Exec(treeMaker.Apply(
+                List.nil(),
+                treeMaker.Select(treeMaker.Ident(actionDecl.name), names.fromString("accept")),
+                List.of(resultFieldIdent)));
+
+        JCMethodDecl forEachRemainingDecl = createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                treeMaker.TypeIdent(TypeTag.VOID),
+                "forEachRemaining",
+                List.of(actionDecl),
+                treeMaker.Block(0, List.of(
+                        createPushStatement(treeMaker.Unary(Tag.NOT, hasResultIdent), actionDecl.name, List.nil()),
+                        treeMaker.If(hasResultIdent,
+                                treeMaker.Block(0, List.of(
+                                        treeMaker.Exec(treeMaker.Assign(hasResultIdent,
+                                                treeMaker.Literal(TypeTag.BOOLEAN, 0))),
+                                        acceptStatement)),
+                                null),
+                        treeMaker.WhileLoop(invInnerNext, acceptStatement))));
+
+        classBuf.add(forEachRemainingDecl);
+
+        return treeMaker.ClassDef(
+                createClassModifiers(),
+                className,
+                typeParams,
+                null,
+                List.of(block.resultKind.createBatchIteratorType(treeMaker, names)),
+                List.nil(),
+                classBuf.toList());
+    }
+
+    private JCClassDecl buildSpliteratorClassDecl() {
+        ListBuffer<JCTree> classBuf = new ListBuffer<>();
+
+        boolean primitive = block.resultKind.isPrimitive();
+        boolean sized = (options.characteristics & Spliterator.SIZED) != 0;
+
+        classBuf.addAll(block.capturedList());
+        if (primitive) {
+            classBuf.add(resultDecl);
+        }
+
+        JCMethodDecl innerNextDecl = createMethod(
+                treeMaker.Modifiers(Flags.PRIVATE),
+                primitive ? treeMaker.TypeIdent(TypeTag.BOOLEAN) : resultDecl.vartype,
+                Constants.GENERATOR_INNER_NEXT,
+                createInnerNextBody(primitive
+                        ? treeMaker.Literal(TypeTag.BOOLEAN, 0)
+                        : treeMaker.Literal(TypeTag.BOT, null)));
+
+        classBuf.add(innerNextDecl);
+        classBuf.addAll(createInnerMethods());
+
+        JCVariableDecl remainingDecl = null;
+        if (sized) {
+            remainingDecl = treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE),
+                    remainingName, treeMaker.TypeIdent(TypeTag.LONG),
+                    treeMaker.Literal(TypeTag.LONG, options.estimatedSize));
+            classBuf.add(remainingDecl);
+        }
+
+        SplitRange range = options.splitRange;
+
+        ListBuffer<JCStatement> resetBuf = new ListBuffer<>();
+        if (sized) {
+            resetBuf.add(treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(remainingName),
+                    treeMaker.Literal(TypeTag.LONG, options.estimatedSize))));
+        }
+
+        if (range != null) {
+            classBuf.addAll(createRangeMembers(range));
+            resetBuf.add(treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(range.boundedName),
+                    treeMaker.Literal(TypeTag.BOOLEAN, 0))));
+        }
+
+        classBuf.addAll(createGeneratorMembers(resetBuf.toList()));
+
+        // Spliterator is never delegated to, it only drives generators it delegates to
+        boolean delegating = block.getDelegateName() != null;
+        if (delegating) {
+            classBuf.addAll(createDelegatingMembers(false));
+        }
+
+        JCMethodInvocation invInnerNext = treeMaker.Apply(
+                List.nil(),
+                treeMaker.Ident(getPullName()),
+                List.nil());
+
+        if (forEachBody != null) {
+            classBuf.add(createForEachDecl());
+        }
+
+        JCExpression consumerType = createConsumerType();
+
+        Name resTempName = names.fromString("res");
+
+        // Value is handed to consumer directly from __next, nothing is buffered between calls
+        Name valueName = primitive ? resultDecl.name : resTempName;
+
+        JCExpression advanceCond;
+        ListBuffer<JCStatement> tryAdvanceBuf = new ListBuffer<>();
+        if (primitive) {
+            advanceCond = treeMaker.Unary(Tag.NOT, invInnerNext);
+        } else {
+            tryAdvanceBuf.add(treeMaker.VarDef(treeMaker.Modifiers(0), resTempName, resultDecl.vartype, invInnerNext));
+            advanceCond = treeMaker.Binary(Tag.EQ, treeMaker.Ident(resTempName), treeMaker.Literal(TypeTag.BOT, null));
+        }
+
+        JCVariableDecl actionDecl = createParam("action", consumerType);
+
+        tryAdvanceBuf.add(treeMaker.If(advanceCond, treeMaker.Return(treeMaker.Literal(TypeTag.BOOLEAN, 0)), null));
+        if (sized) {
+            tryAdvanceBuf.add(treeMaker.Exec(treeMaker.Unary(Tag.PREDEC, treeMaker.Ident(remainingDecl.name))));
+        }
+        tryAdvanceBuf.add(treeMaker.Exec(treeMaker.Apply(
+                List.nil(),
+                treeMaker.Select(treeMaker.Ident(actionDecl.name), names.fromString("accept")),
+                List.of(treeMaker.Ident(valueName)))));
+        tryAdvanceBuf.add(treeMaker.Return(treeMaker.Literal(TypeTag.BOOLEAN, 1)));
+
+        classBuf.add(createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                treeMaker.TypeIdent(TypeTag.BOOLEAN),
+                "tryAdvance",
+                List.of(actionDecl),
+                treeMaker.Block(0, tryAdvanceBuf.toList())));
+
+        JCVariableDecl forEachActionDecl = createParam("action", consumerType);
+        JCStatement forEachAccept = treeMaker.Exec(treeMaker.Apply(
+                List.nil(),
+                treeMaker.Select(treeMaker.Ident(forEachActionDecl.name), names.fromString("accept")),
+                List.of(treeMaker.Ident(valueName))));
+
+        ListBuffer<JCStatement> forEachBuf = new ListBuffer<>();
+        forEachBuf.add(createPushStatement(null, forEachActionDecl.name, sized
+                ? List.of(treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(remainingDecl.name),
+                        treeMaker.Literal(TypeTag.LONG, 0L))))
+                : List.nil()));
+        if (primitive) {
+            forEachBuf.add(treeMaker.WhileLoop(invInnerNext, forEachAccept));
+        } else {
+            forEachBuf.add(treeMaker.VarDef(treeMaker.Modifiers(0), resTempName, resultDecl.vartype, null));
+            forEachBuf.add(treeMaker.WhileLoop(
+                    treeMaker.Binary(Tag.NE,
+                            treeMaker.Parens(treeMaker.Assign(treeMaker.Ident(resTempName), invInnerNext)),
+                            treeMaker.Literal(TypeTag.BOT, null)),
+                    forEachAccept));
+        }
+        if (sized) {
+            forEachBuf.add(treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(remainingDecl.name),
+                    treeMaker.Literal(TypeTag.LONG, 0L))));
+        }
+
+        classBuf.add(createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                treeMaker.TypeIdent(TypeTag.VOID),
+                "forEachRemaining",
+                List.of(forEachActionDecl),
+                treeMaker.Block(0, forEachBuf.toList())));
+
+        JCExpression spliteratorType = primitive
+                ? block.resultKind.createSpliteratorType(treeMaker, names)
+                : treeMaker.TypeApply(
+                        TreeMakerUtil.createClassName(treeMaker, names, "java", "util", "Spliterator"),
+                        List.of(resultDecl.vartype));
+
+        classBuf.add(createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                spliteratorType,
+                "trySplit",
+                treeMaker.Block(0, range != null
+                        ? createRangeSplit(range)
+                        : List.of(treeMaker.Return(treeMaker.Literal(TypeTag.BOT, null))))));
+
+        ListBuffer<JCStatement> estimateBuf = new ListBuffer<>();
+        if (range != null) {
+            // Iterations left in range are known until traversal starts
+            estimateBuf.add(treeMaker.If(createNotStartedCond(), treeMaker.Block(0, List.of(
+                    createBoundStatement(),
+                    treeMaker.Return(treeMaker.Apply(
+                            List.nil(),
+                            TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "Math", "max"),
+                            List.of(treeMaker.Literal(TypeTag.LONG, 0L), createRangeSize(range)))))),
+                    null));
+        }
+        estimateBuf.add(treeMaker.Return(sized
+                ? treeMaker.Ident(remainingDecl.name)
+                : treeMaker.Literal(TypeTag.LONG, options.estimatedSize)));
+
+        classBuf.add(createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                treeMaker.TypeIdent(TypeTag.LONG),
+                "estimateSize",
+                treeMaker.Block(0, estimateBuf.toList())));
+
+        int characteristics = options.characteristics;
+        if (sized) {
+            characteristics |= Spliterator.SUBSIZED;
+        }
+
+        classBuf.add(createMethod(
+                treeMaker.Modifiers(Flags.PUBLIC, List.of(createOverride())),
+                treeMaker.TypeIdent(TypeTag.INT),
+                "characteristics",
+                treeMaker.Block(0, List.of(treeMaker.Return(treeMaker.Literal(TypeTag.INT, characteristics))))));
+
+        return treeMaker.ClassDef(
+                createClassModifiers(),
+                className,
+                typeParams,
+                null,
+                delegating ? List.of(spliteratorType, createDelegatingType()) : List.of(spliteratorType),
+                List.nil(),
+                classBuf.toList());
+    }
+
+    private JCExpression createNotStartedCond() {
+        return treeMaker.Binary(Tag.EQ,
+                treeMaker.Ident(block.getStateFieldName()),
+                treeMaker.Literal(TypeTag.INT, Constants.GENERATOR_STEP_START));
+    }
+
+    private JCStatement createBoundStatement() {
+        return treeMaker.Exec(treeMaker.Apply(
+                List.nil(),
+                treeMaker.Ident(names.fromString(Constants.GENERATOR_INNER_BOUND)),
+                List.nil()));
+    }
+
+    private JCExpression createRangeSize(SplitRange range) {
+        return treeMaker.Binary(Tag.MINUS,
+                treeMaker.TypeCast(treeMaker.TypeIdent(TypeTag.LONG), treeMaker.Ident(range.fenceName)),
+                treeMaker.Ident(range.originName));
+    }
+
+    /**
+     * Range fields and method evaluating bounds of loop into them, loop reads range fields instead of its bounds
+     */
+    private List<JCTree> createRangeMembers(SplitRange range) {
+        ListBuffer<JCTree> buf = new ListBuffer<>();
+
+        buf.add(treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE), range.originName,
+                treeMaker.TypeIdent(TypeTag.INT), null));
+        buf.add(treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE), range.fenceName,
+                treeMaker.TypeIdent(TypeTag.INT), null));
+        buf.add(treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE), range.boundedName,
+                treeMaker.TypeIdent(TypeTag.BOOLEAN), null));
+
+        buf.add(createMethod(
+                treeMaker.Modifiers(Flags.PRIVATE),
+                treeMaker.TypeIdent(TypeTag.VOID),
+                Constants.GENERATOR_INNER_BOUND,
+                treeMaker.Block(0, List.of(treeMaker.If(
+                        treeMaker.Unary(Tag.NOT, treeMaker.Ident(range.boundedName)),
+                        treeMaker.Block(0, List.of(
+                                treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(range.originName), range.lo)),
+                                treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(range.fenceName), range.hi)),
+                                treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(range.boundedName),
+                                        treeMaker.Literal(TypeTag.BOOLEAN, 1))))),
+                        null)))));
+
+        return buf.toList();
+    }
+
+    /**
+     * Hands first half of range to a new generator, possible only before traversal starts
+     */
+    private List<JCStatement> createRangeSplit(SplitRange range) {
+        Name midName = names.fromString("mid");
+        Name prefixName = names.fromString("prefix");
+        JCExpression nullExpr = treeMaker.Literal(TypeTag.BOT, null);
+
+        ListBuffer<JCStatement> buf = new ListBuffer<>();
+        buf.add(treeMaker.If(treeMaker.Unary(Tag.NOT, treeMaker.Parens(createNotStartedCond())),
+                treeMaker.Return(nullExpr), null));
+        buf.add(createBoundStatement());
+        buf.add(treeMaker.If(
+                treeMaker.Binary(Tag.LT, createRangeSize(range), treeMaker.Literal(TypeTag.LONG, 2L)),
+                treeMaker.Return(nullExpr),
+                null));
+
+        buf.add(treeMaker.VarDef(treeMaker.Modifiers(0), midName, treeMaker.TypeIdent(TypeTag.INT),
+                treeMaker.TypeCast(treeMaker.TypeIdent(TypeTag.INT), treeMaker.Binary(Tag.DIV,
+                        treeMaker.Parens(treeMaker.Binary(Tag.PLUS,
+                                treeMaker.TypeCast(treeMaker.TypeIdent(TypeTag.LONG),
+                                        treeMaker.Ident(range.originName)),
+                                treeMaker.Ident(range.fenceName))),
+                        treeMaker.Literal(TypeTag.LONG, 2L)))));
+
+        buf.add(treeMaker.VarDef(treeMaker.Modifiers(0), prefixName, createClassType(), createNewInstance(true)));
+        buf.add(treeMaker.Exec(treeMaker.Assign(
+                treeMaker.Select(treeMaker.Ident(prefixName), range.originName),
+                treeMaker.Ident(range.originName))));
+        buf.add(treeMaker.Exec(treeMaker.Assign(
+                treeMaker.Select(treeMaker.Ident(prefixName), range.fenceName),
+                treeMaker.Ident(midName))));
+        buf.add(treeMaker.Exec(treeMaker.Assign(
+                treeMaker.Select(treeMaker.Ident(prefixName), range.boundedName),
+                treeMaker.Literal(TypeTag.BOOLEAN, 1))));
+        buf.add(treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(range.originName), treeMaker.Ident(midName))));
+        buf.add(treeMaker.Return(treeMaker.Ident(prefixName)));
+
+        return buf.toList();
+    }
+
+    private JCModifiers createClassModifiers() {
+        return treeMaker.Modifiers(isNested() ? Flags.STATIC | Flags.FINAL : Flags.FINAL);
+    }
+
     private JCNewClass createNewNoSuchElementException() {
         return treeMaker
                 .NewClass(null, List
@@ -0,0 +1,473 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.sun.tools.javac.tree.JCTree.*;
+import com.sun.tools.javac.util.List;
+import com.sun.tools.javac.util.ListBuffer;
+
+import sh.pancake.generator.processor.ast.TryRegion.Handler;
+import sh.pancake.generator.processor.ast.visitor.StateReferenceScanner;
+import sh.pancake.generator.processor.ast.visitor.StateReferenceScanner.StateReference;
+
+/**
+ * Optimizes state graph of a generator block before it is built.
+ * Threads jumps through trivial states, drops unreachable states, merges states into their only predecessor and
+ * renumbers remaining states densely so dispatch switch compiles to tableswitch.
+ * States of different try regions are never merged, state field must tell the region of running code.
+ */
+public class GeneratorOptimizer {
+    /**
+     * Resolved target of states forwarding into a cycle
+     */
+    private static final int CYCLE = Integer.MIN_VALUE;
+
+    private final ArrayList<GeneratorState> states;
+
+    private final StateReferenceScanner scanner;
+
+    public GeneratorOptimizer(GeneratorBlock block) {
+        this.states = block.getStates();
+
+        scanner = new StateReferenceScanner(block.getStateFieldName(), block.loopLabel);
+    }
+
+    public void optimize() {
+        if (states.isEmpty()) {
+            return;
+        }
+
+        for (GeneratorState state : states) {
+            trimUnreachable(state);
+        }
+
+        boolean changed;
+        do {
+            changed = threadJumps();
+            changed |= removeDeadStates();
+            changed |= mergeStates();
+        } while (changed);
+
+        renumber();
+    }
+
+    private void trimUnreachable(GeneratorState state) {
+        ListBuffer<JCStatement> trimmed = new ListBuffer<>();
+
+        for (JCStatement statement : state.statements) {
+            trimmed.add(statement);
+
+            if (isTerminal(statement)) {
+                break;
+            }
+        }
+
+        if (trimmed.size() != state.statements.size()) {
+            state.statements = trimmed;
+        }
+    }
+
+    private boolean threadJumps() {
+        Map<Integer, Integer> forward = new HashMap<>();
+
+        for (int i = 0; i < states.size(); i++) {
+            GeneratorState state = states.get(i);
+
+            if (isStart(state)) {
+                continue;
+            }
+
+            List<JCStatement> statements = state.statements.toList();
+            if (statements.isEmpty()) {
+                if (i + 1 < states.size()) {
+                    forward.put(state.id, states.get(i + 1).id);
+                }
+            } else if (statements.size() == 2
+                    && scanner.isStateAssign(statements.head)
+                    && scanner.isLoopContinue(statements.tail.head)) {
+                forward.put(state.id, targetOf(statements.head));
+            }
+        }
+
+        if (forward.isEmpty()) {
+            return false;
+        }
+
+        Map<Integer, Integer> resolvedTargets = new HashMap<>();
+        boolean changed = false;
+        for (GeneratorState state : states) {
+            for (StateReference reference : scanner.scanStatements(state.statements.toList())) {
+                int target = reference.target();
+                int resolved = resolve(forward, resolvedTargets, target);
+
+                if (resolved != target) {
+                    reference.literal.value = resolved;
+                    changed = true;
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Follows chain of trivial states, every state on the chain is resolved at once so chains are walked only once
+     */
+    private int resolve(Map<Integer, Integer> forward, Map<Integer, Integer> resolved, int id) {
+        Set<Integer> visited = new HashSet<>();
+
+        int current = id;
+        while (forward.containsKey(current) && !resolved.containsKey(current) && visited.add(current)) {
+            current = forward.get(current);
+        }
+
+        int end;
+        if (resolved.containsKey(current)) {
+            end = resolved.get(current);
+        } else if (forward.containsKey(current)) {
+            end = CYCLE;
+        } else {
+            end = current;
+        }
+
+        for (int state : visited) {
+            resolved.put(state, end);
+        }
+
+        // Cycle of trivial states, keep the jump as is
+        return end == CYCLE ? id : end;
+    }
+
+    private boolean removeDeadStates() {
+        Map<Integer, GeneratorState> byId = new HashMap<>();
+        for (GeneratorState state : states) {
+            byId.put(state.id, state);
+        }
+
+        Map<Integer, Integer> referenceCount = new HashMap<>();
+        Set<GeneratorState> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<GeneratorState> queue = new ArrayDeque<>();
+
+        reachable.add(states.get(0));
+        queue.add(states.get(0));
+        while (!queue.isEmpty()) {
+            GeneratorState state = queue.poll();
+
+            if (state.region != null) {
+                for (Handler handler : state.region.dispatchOrder()) {
+                    referenceCount.merge(handler.state.id, 1, Integer::sum);
+
+                    if (reachable.add(handler.state)) {
+                        queue.add(handler.state);
+                    }
+                }
+            }
+
+            for (StateReference reference : scanner.scanStatements(state.statements.toList())) {
+                referenceCount.merge(reference.target(), 1, Integer::sum);
+
+                GeneratorState target = byId.get(reference.target());
+                if (target != null && reachable.add(target)) {
+                    queue.add(target);
+                }
+            }
+
+            int index = states.indexOf(state);
+            if (index + 1 < states.size() && canCompleteNormally(state)) {
+                GeneratorState next = states.get(index + 1);
+                if (reachable.add(next)) {
+                    queue.add(next);
+                }
+            }
+        }
+
+        boolean changed = false;
+        for (int i = states.size() - 1; i > 0; i--) {
+            GeneratorState state = states.get(i);
+            if (containsDeclaration(state)) {
+                continue;
+            }
+
+            boolean unreferencedEmpty = state.statements.isEmpty() && !referenceCount.containsKey(state.id);
+            if (!reachable.contains(state) || unreferencedEmpty) {
+                states.remove(i);
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    private boolean mergeStates() {
+        Map<Integer, Integer> referenceCount = new HashMap<>();
+        for (GeneratorState state : states) {
+            for (StateReference reference : scanner.scanStatements(state.statements.toList())) {
+                referenceCount.merge(reference.target(), 1, Integer::sum);
+            }
+        }
+
+        // Entry from exception table
+        Set<Handler> handlers = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (GeneratorState state : states) {
+            if (state.region != null) {
+                handlers.addAll(state.region.dispatchOrder());
+            }
+        }
+        for (Handler handler : handlers) {
+            referenceCount.merge(handler.state.id, 1, Integer::sum);
+        }
+
+        boolean changed = false;
+        for (int i = 0; i < states.size(); i++) {
+            GeneratorState state = states.get(i);
+
+            if (i + 1 < states.size()
+                    && referenceCount.getOrDefault(states.get(i + 1).id, 0) == 0
+                    && states.get(i + 1).region == state.region
+                    && canCompleteNormally(state)) {
+                // Next state is only entered by falling through
+                state.statements.addAll(states.remove(i + 1).statements);
+                changed = true;
+                i--;
+                continue;
+            }
+
+            GeneratorState target = trailingJumpTarget(state);
+            if (target == null || isStart(target) || target.region != state.region) {
+                continue;
+            }
+
+            int targetIndex = states.indexOf(target);
+            boolean onlyReference = referenceCount.getOrDefault(target.id, 0) == 1;
+
+            if (targetIndex == i + 1) {
+                // Fall through instead of jumping to next state
+                state.statements = dropTrailingJump(state);
+                referenceCount.merge(target.id, -1, Integer::sum);
+
+                if (onlyReference && !containsClassDef(target)) {
+                    state.statements.addAll(target.statements);
+                    states.remove(targetIndex);
+                }
+
+                changed = true;
+            } else if (onlyReference
+                    && !canCompleteNormally(states.get(targetIndex - 1))
+                    && target.statements.nonEmpty()
+                    && isTerminal(target.statements.last())
+                    && !containsDeclaration(target)) {
+                // Move the only entry of target into its predecessor
+                ListBuffer<JCStatement> merged = dropTrailingJump(state);
+                merged.addAll(target.statements);
+                state.statements = merged;
+
+                states.remove(targetIndex);
+                if (targetIndex < i) {
+                    i--;
+                }
+
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    private void renumber() {
+        Map<Integer, Integer> renumbered = new HashMap<>();
+
+        int nextId = Constants.GENERATOR_STEP_START;
+        for (GeneratorState state : states) {
+            renumbered.put(state.id, nextId++);
+        }
+
+        Set<JCLiteral> updated = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (GeneratorState state : states) {
+            for (StateReference reference : scanner.scanStatements(state.statements.toList())) {
+                Integer id = renumbered.get(reference.target());
+
+                if (id != null && updated.add(reference.literal)) {
+                    reference.literal.value = id;
+                }
+            }
+        }
+
+        for (GeneratorState state : states) {
+            state.id = renumbered.get(state.id);
+        }
+    }
+
+    @Nullable
+    private GeneratorState trailingJumpTarget(GeneratorState state) {
+        if (state.statements.size() < 2) {
+            return null;
+        }
+
+        List<JCStatement> statements = state.statements.toList();
+        JCStatement assign = statements.get(statements.size() - 2);
+        if (!scanner.isStateAssign(assign) || !scanner.isLoopContinue(statements.last())) {
+            return null;
+        }
+
+        int target = targetOf(assign);
+        for (GeneratorState candidate : states) {
+            if (candidate.id == target) {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    private ListBuffer<JCStatement> dropTrailingJump(GeneratorState state) {
+        ListBuffer<JCStatement> buf = new ListBuffer<>();
+        buf.addAll(state.statements.toList().take(state.statements.size() - 2));
+        return buf;
+    }
+
+    private boolean isStart(GeneratorState state) {
+        return state == states.get(0);
+    }
+
+    private int targetOf(JCStatement stateAssign) {
+        return (Integer) ((JCLiteral) ((JCAssign) ((JCExpressionStatement) stateAssign).expr).rhs).value;
+    }
+
+    private boolean isTerminal(JCStatement statement) {
+        return scanner.isLoopContinue(statement)
+                || scanner.isLoopBreak(statement)
+                || statement instanceof JCReturn
+                || statement instanceof JCThrow;
+    }
+
+    private boolean containsClassDef(GeneratorState state) {
+        for (JCStatement statement : state.statements) {
+            if (statement instanceof JCClassDecl) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean containsDeclaration(GeneratorState state) {
+        for (JCStatement statement : state.statements) {
+            if (statement instanceof JCClassDecl || statement instanceof JCVariableDecl) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean canCompleteNormally(GeneratorState state) {
+        if (state.statements.isEmpty()) {
+            return true;
+        }
+
+        return canCompleteNormally(state.statements.last());
+    }
+
+    /**
+     * Conservative check, returns true if not sure
+     */
+    static boolean canCompleteNormally(JCStatement statement) {
+        if (statement instanceof JCContinue
+                || statement instanceof JCBreak
+                || statement instanceof JCReturn
+                || statement instanceof JCThrow) {
+            return false;
+        }
+
+        if (statement instanceof JCBlock block) {
+            return block.stats.isEmpty() || canCompleteNormally(block.stats.last());
+        }
+
+        if (statement instanceof JCIf ifStatement) {
+            return ifStatement.elsepart == null
+                    || canCompleteNormally(ifStatement.thenpart)
+                    || canCompleteNormally(ifStatement.elsepart);
+        }
+
+        if (statement instanceof JCSynchronized sync) {
+            return canCompleteNormally(sync.body);
+        }
+
+        if (statement instanceof JCTry tryStatement) {
+            if (tryStatement.finalizer != null && !canCompleteNormally(tryStatement.finalizer)) {
+                return false;
+            }
+
+            if (canCompleteNormally(tryStatement.body)) {
+                return true;
+            }
+
+            for (JCCatch catcher : tryStatement.catchers) {
+                if (canCompleteNormally(catcher.body)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        if (statement instanceof JCSwitch switchStatement) {
+            return canSwitchCompleteNormally(switchStatement);
+        }
+
+        return true;
+    }
+
+    private static boolean canSwitchCompleteNormally(JCSwitch switchStatement) {
+        if (switchStatement.cases.isEmpty()) {
+            return true;
+        }
+
+        boolean hasDefault = false;
+        for (JCCase switchCase : switchStatement.cases) {
+            for (JCCaseLabel label : switchCase.labels) {
+                if (label instanceof JCDefaultCaseLabel) {
+                    hasDefault = true;
+                }
+            }
+
+            if (containsBreak(switchCase.stats)) {
+                return true;
+            }
+        }
+
+        List<JCStatement> lastStats = switchStatement.cases.last().stats;
+        return !hasDefault || lastStats.isEmpty() || canCompleteNormally(lastStats.last());
+    }
+
+    private static boolean containsBreak(List<JCStatement> statements) {
+        boolean[] found = { false };
+
+        new com.sun.tools.javac.tree.TreeScanner() {
+            @Override
+            public void visitBreak(JCBreak tree) {
+                found[0] = true;
+            }
+
+            @Override
+            public void visitClassDef(JCClassDecl tree) {
+            }
+        }.scan(statements);
+
+        return found[0];
+    }
+}
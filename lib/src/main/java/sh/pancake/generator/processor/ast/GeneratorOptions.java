@@ -0,0 +1,55 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast;
+
+import java.util.Spliterator;
+
+import javax.annotation.Nullable;
+
+import com.sun.tools.javac.util.Name;
+
+import sh.pancake.generator.Generator;
+
+public class GeneratorOptions {
+    public ReturnKind returnKind = ReturnKind.ITERATOR;
+
+    public int characteristics = Spliterator.ORDERED | Spliterator.NONNULL;
+    public long estimatedSize = Long.MAX_VALUE;
+
+    public Generator.Mode mode = Generator.Mode.STATE_MACHINE;
+
+    public boolean splittable;
+
+    /**
+     * Static field of enclosing class keeping generator of each thread, null if generator is not reusable
+     */
+    @Nullable
+    public Name poolName;
+
+    /**
+     * Name of static nested class generator is declared as, null if it is a local class of the method
+     */
+    @Nullable
+    public Name nestedClassName;
+
+    /**
+     * Index range spliterator is split by, null if generator cannot be split
+     */
+    @Nullable
+    public SplitRange splitRange;
+
+    /**
+     * Static field of enclosing class holding GeneratorProbe of the method, null if generator is not instrumented
+     */
+    @Nullable
+    public Name probeName;
+
+    /**
+     * Name probe is registered with, qualified name and signature of the method
+     */
+    @Nullable
+    public String probeLabel;
+}
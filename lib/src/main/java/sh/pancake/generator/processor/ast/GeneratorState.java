@@ -5,6 +5,8 @@
  */
 package sh.pancake.generator.processor.ast;
 
+import javax.annotation.Nullable;
+
 import com.sun.tools.javac.tree.JCTree.*;
 import com.sun.tools.javac.util.ListBuffer;
 
@@ -14,4 +16,15 @@ import lombok.AllArgsConstructor;
 public class GeneratorState {
     public int id;
     public ListBuffer<JCStatement> statements;
+
+    /**
+     * State is rarely entered, such as catch handler
+     */
+    public boolean cold;
+
+    /**
+     * Innermost try region protecting the state, null if exception finishes generator
+     */
+    @Nullable
+    public TryRegion region;
 }
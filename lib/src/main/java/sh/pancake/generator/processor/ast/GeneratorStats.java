@@ -0,0 +1,43 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Optimization statistics of a generator method
+ */
+public class GeneratorStats {
+    public int statesBefore;
+    public int statesAfter;
+
+    public int localVariables;
+    public int sharedVariables;
+
+    public int outlinedStates;
+
+    /**
+     * Blocks nested in generator body
+     */
+    public int nestedBlocks;
+
+    /**
+     * Number of fields captured from locals, by declared type
+     */
+    public final Map<String, Integer> capturedFields = new TreeMap<>();
+
+    /**
+     * Estimated bytecode size of __next and of largest method generated for states
+     */
+    public int nextMethodSize;
+    public int largestMethodSize;
+
+    public void add(int before, int after) {
+        statesBefore += before;
+        statesAfter += after;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeMaker;
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.tree.JCTree.*;
+import com.sun.tools.javac.util.ListBuffer;
+import com.sun.tools.javac.util.Name;
+
+/**
+ * Keeps captured variables which are never live across a suspension point as locals of __next.
+ * Every state runs from its start until it jumps, yields or finishes, so variable referenced by only one state and
+ * assigned before any read in it is dead on every state boundary.
+ */
+public class LivenessAnalyzer {
+    private final TreeMaker treeMaker;
+    private final GeneratorBlock block;
+
+    public LivenessAnalyzer(TreeMaker treeMaker, GeneratorBlock block) {
+        this.treeMaker = treeMaker;
+        this.block = block;
+    }
+
+    /**
+     * @return Number of variables turned into locals
+     */
+    public int localize() {
+        ArrayList<JCVariableDecl> captured = block.getCapturedVariables();
+        if (captured.isEmpty()) {
+            return 0;
+        }
+
+        Map<Name, Usage> usages = new HashMap<>();
+        for (JCVariableDecl decl : captured) {
+            usages.put(decl.name, new Usage());
+        }
+
+        for (GeneratorState state : block.getStates()) {
+            UsageScanner scanner = new UsageScanner(usages, state);
+
+            for (JCStatement statement : state.statements) {
+                scanner.statement = statement;
+                scanner.scan(statement);
+            }
+        }
+
+        for (Name name : block.exceptionVariables()) {
+            Usage usage = usages.get(name);
+            if (usage != null) {
+                usage.pinned = true;
+            }
+        }
+
+        // Candidates grouped by state and their first statement, so each state is rebuilt once
+        Map<GeneratorState, Map<JCStatement, ArrayList<JCVariableDecl>>> candidates = new IdentityHashMap<>();
+        for (JCVariableDecl decl : captured) {
+            Usage usage = usages.get(decl.name);
+
+            if (!usage.pinned && usage.state != null) {
+                candidates.computeIfAbsent(usage.state, state -> new IdentityHashMap<>())
+                        .computeIfAbsent(usage.first, statement -> new ArrayList<>())
+                        .add(decl);
+            }
+        }
+
+        Set<JCVariableDecl> localized = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Map.Entry<GeneratorState, Map<JCStatement, ArrayList<JCVariableDecl>>> entry : candidates.entrySet()) {
+            declareLocals(entry.getKey(), entry.getValue(), localized);
+        }
+
+        captured.removeIf(localized::contains);
+        return localized.size();
+    }
+
+    /**
+     * Replaces first statement using a variable with its declaration if the statement assigns it
+     */
+    private void declareLocals(GeneratorState state, Map<JCStatement, ArrayList<JCVariableDecl>> firstUses,
+            Set<JCVariableDecl> localized) {
+        ListBuffer<JCStatement> buf = new ListBuffer<>();
+        int pos = treeMaker.pos;
+
+        for (JCStatement statement : state.statements) {
+            JCStatement replaced = statement;
+
+            ArrayList<JCVariableDecl> decls = firstUses.get(statement);
+            if (decls != null) {
+                for (JCVariableDecl decl : decls) {
+                    JCExpression init = initializerOf(statement, decl.name);
+                    if (init == null || references(init, decl.name)) {
+                        continue;
+                    }
+
+                    replaced = treeMaker.at(statement.pos).VarDef(treeMaker.Modifiers(0), decl.name, decl.vartype,
+                            init);
+                    localized.add(decl);
+                }
+            }
+
+            buf.add(replaced);
+        }
+        treeMaker.at(pos);
+
+        state.statements = buf;
+    }
+
+    @Nullable
+    private static JCExpression initializerOf(JCStatement statement, Name name) {
+        if (statement instanceof JCExpressionStatement exec
+                && exec.expr instanceof JCAssign assign
+                && assign.lhs instanceof JCIdent ident
+                && ident.name == name) {
+            return assign.rhs;
+        }
+
+        return null;
+    }
+
+    private static boolean references(JCTree tree, Name name) {
+        boolean[] found = { false };
+
+        new TreeScanner() {
+            @Override
+            public void visitIdent(JCIdent tree) {
+                if (tree.name == name) {
+                    found[0] = true;
+                }
+            }
+
+            @Override
+            public void visitSelect(JCFieldAccess tree) {
+                if (tree.name == name) {
+                    found[0] = true;
+                }
+
+                super.visitSelect(tree);
+            }
+
+            @Override
+            public void visitVarDef(JCVariableDecl tree) {
+                if (tree.name == name) {
+                    found[0] = true;
+                }
+
+                super.visitVarDef(tree);
+            }
+        }.scan(tree);
+
+        return found[0];
+    }
+
+    private static class Usage {
+        @Nullable
+        public GeneratorState state;
+
+        /**
+         * First statement of the state using variable
+         */
+        @Nullable
+        public JCStatement first;
+
+        /**
+         * Variable must stay as field
+         */
+        public boolean pinned;
+
+        public void use(GeneratorState state, JCStatement statement, boolean escaping) {
+            if (escaping || this.state != null && this.state != state) {
+                pinned = true;
+            }
+
+            if (this.state == null) {
+                first = statement;
+            }
+
+            this.state = state;
+        }
+    }
+
+    private class UsageScanner extends TreeScanner {
+        private final Map<Name, Usage> usages;
+        private final GeneratorState state;
+
+        /**
+         * Top level statement of the state being scanned
+         */
+        public JCStatement statement;
+
+        /**
+         * Depth of lambdas and classes, variables used inside of them must be effectively final.
+         */
+        private int escapeDepth;
+
+        public UsageScanner(Map<Name, Usage> usages, GeneratorState state) {
+            this.usages = usages;
+            this.state = state;
+        }
+
+        private void use(Name name) {
+            Usage usage = usages.get(name);
+            if (usage != null) {
+                usage.use(state, statement, escapeDepth > 0);
+            }
+        }
+
+        @Override
+        public void visitIdent(JCIdent tree) {
+            use(tree.name);
+        }
+
+        @Override
+        public void visitSelect(JCFieldAccess tree) {
+            use(tree.name);
+            super.visitSelect(tree);
+        }
+
+        @Override
+        public void visitVarDef(JCVariableDecl tree) {
+            use(tree.name);
+            super.visitVarDef(tree);
+        }
+
+        @Override
+        public void visitLambda(JCLambda tree) {
+            escapeDepth++;
+            super.visitLambda(tree);
+            escapeDepth--;
+        }
+
+        @Override
+        public void visitClassDef(JCClassDecl tree) {
+            escapeDepth++;
+            super.visitClassDef(tree);
+            escapeDepth--;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast;
+
+import javax.annotation.Nullable;
+
+import com.sun.tools.javac.code.TypeTag;
+import com.sun.tools.javac.tree.TreeMaker;
+import com.sun.tools.javac.tree.JCTree.*;
+import com.sun.tools.javac.util.Names;
+
+import lombok.AllArgsConstructor;
+import sh.pancake.generator.processor.TreeMakerUtil;
+
+/**
+ * Kind of value yielded by a generator.
+ * Primitive kinds store the yielded value in a primitive field so stepping never boxes.
+ */
+@AllArgsConstructor
+public enum ResultKind {
+    OBJECT(null, null, "Consumer", "next", "Stream", "stream"),
+    INT(TypeTag.INT, "OfInt", "IntConsumer", "nextInt", "IntStream", "intStream"),
+    LONG(TypeTag.LONG, "OfLong", "LongConsumer", "nextLong", "LongStream", "longStream"),
+    DOUBLE(TypeTag.DOUBLE, "OfDouble", "DoubleConsumer", "nextDouble", "DoubleStream", "doubleStream");
+
+    @Nullable
+    public final TypeTag tag;
+
+    @Nullable
+    public final String nestedName;
+
+    public final String consumerName;
+    public final String nextName;
+
+    public final String streamName;
+    public final String streamFactoryName;
+
+    public boolean isPrimitive() {
+        return tag != null;
+    }
+
+    public JCExpression createIteratorType(TreeMaker treeMaker, Names names) {
+        return TreeMakerUtil.createClassName(treeMaker, names, "java", "util", "PrimitiveIterator", nestedName);
+    }
+
+    public JCExpression createBatchIteratorType(TreeMaker treeMaker, Names names) {
+        if (isPrimitive()) {
+            return TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator", "BatchIterator",
+                    nestedName);
+        }
+
+        return TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator", "BatchIterator");
+    }
+
+    public JCExpression createSpliteratorType(TreeMaker treeMaker, Names names) {
+        return TreeMakerUtil.createClassName(treeMaker, names, "java", "util", "Spliterator", nestedName);
+    }
+
+    public JCExpression createConsumerType(TreeMaker treeMaker, Names names) {
+        return TreeMakerUtil.createClassName(treeMaker, names, "java", "util", "function", consumerName);
+    }
+
+    public static ResultKind fromReturnType(String qualifiedName) {
+        for (ResultKind kind : values()) {
+            if (!kind.isPrimitive()) {
+                continue;
+            }
+
+            if (qualifiedName.equals("java.util.PrimitiveIterator." + kind.nestedName)
+                    || qualifiedName.equals("sh.pancake.generator.BatchIterator." + kind.nestedName)
+                    || qualifiedName.equals("java.util.Spliterator." + kind.nestedName)
+                    || qualifiedName.equals("java.util.stream." + kind.streamName)) {
+                return kind;
+            }
+        }
+
+        return OBJECT;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast;
+
+/**
+ * Protocol exposed by the generated class, decided by the declared return type of generator method.
+ */
+public enum ReturnKind {
+    ITERATOR,
+    ITERABLE,
+    SPLITERATOR,
+    STREAM,
+    PUBLISHER,
+    FUTURE,
+    COROUTINE;
+
+    public static ReturnKind fromReturnType(String qualifiedName) {
+        if (qualifiedName.equals("java.lang.Iterable")) {
+            return ITERABLE;
+        }
+
+        if (qualifiedName.startsWith("java.util.Spliterator")) {
+            return SPLITERATOR;
+        }
+
+        if (qualifiedName.startsWith("java.util.stream.") && qualifiedName.endsWith("Stream")) {
+            return STREAM;
+        }
+
+        if (qualifiedName.equals("java.util.concurrent.Flow.Publisher")) {
+            return PUBLISHER;
+        }
+
+        if (qualifiedName.equals("sh.pancake.generator.Coroutine")) {
+            return COROUTINE;
+        }
+
+        if (qualifiedName.equals("java.util.concurrent.CompletableFuture")
+                || qualifiedName.equals("java.util.concurrent.CompletionStage")) {
+            return FUTURE;
+        }
+
+        return ITERATOR;
+    }
+
+    /**
+     * Generator method must be annotated with AsyncGenerator
+     */
+    public boolean isAsync() {
+        return this == PUBLISHER || this == FUTURE;
+    }
+}
@@ -0,0 +1,865 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.sun.tools.javac.code.TypeTag;
+import com.sun.tools.javac.tree.TreeMaker;
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.tree.JCTree.*;
+import com.sun.tools.javac.util.List;
+import com.sun.tools.javac.util.ListBuffer;
+import com.sun.tools.javac.util.Name;
+
+import lombok.AllArgsConstructor;
+import sh.pancake.generator.processor.ast.TryRegion.Handler;
+import sh.pancake.generator.processor.ast.visitor.StateReferenceScanner;
+import sh.pancake.generator.processor.ast.visitor.StateReferenceScanner.StateReference;
+
+/**
+ * Allocates fields of captured variables using liveness over the state graph.
+ * Variables of same type which are never live at the same time share one field, and reference fields are cleared
+ * at suspension points where they are dead so suspended generators do not keep them reachable.
+ * Every statement of a try region may leave to its handlers, variables live in a handler stay live over the region.
+ * Variables are numbered and sets of them are bitsets, so the interference graph is built in one pass over statements.
+ * Data flow revisits only states whose successors or predecessors changed, nested loops do not add passes over the
+ * whole generator.
+ */
+public class SlotAllocator {
+    private final TreeMaker treeMaker;
+    private final GeneratorBlock block;
+
+    private final ArrayList<GeneratorState> states;
+    private final StateReferenceScanner scanner;
+
+    public SlotAllocator(TreeMaker treeMaker, GeneratorBlock block) {
+        this.treeMaker = treeMaker;
+        this.block = block;
+
+        states = block.getStates();
+        scanner = new StateReferenceScanner(block.getStateFieldName(), block.loopLabel);
+    }
+
+    /**
+     * @return Number of variables moved into field of another variable
+     */
+    public int allocate() {
+        if (states.isEmpty()) {
+            return 0;
+        }
+
+        int shared = share(analyze());
+        clearDeadReferences(analyze());
+
+        return shared;
+    }
+
+    private int share(Analysis analysis) {
+        Map<Name, Name> renamed = new HashMap<>();
+        // Slots of each type in order of creation
+        Map<String, ArrayList<Slot>> slots = new HashMap<>();
+
+        BitSet[] interference = analysis.computeInterference();
+        for (Iterator<JCVariableDecl> iter = block.getCapturedVariables().iterator(); iter.hasNext();) {
+            JCVariableDecl decl = iter.next();
+            if (analysis.pinned.contains(decl.name)
+                    || analysis.exceptionVariables.contains(decl.name)
+                    || decl.vartype == null) {
+                continue;
+            }
+
+            int index = analysis.indexOf(decl.name);
+            ArrayList<Slot> candidates = slots.computeIfAbsent(decl.vartype.toString(), type -> new ArrayList<>());
+
+            Slot slot = null;
+            for (Slot candidate : candidates) {
+                if (!candidate.members.intersects(interference[index])) {
+                    slot = candidate;
+                    break;
+                }
+            }
+
+            if (slot == null) {
+                slot = new Slot(decl.name, new BitSet());
+                slot.members.set(index);
+                candidates.add(slot);
+                continue;
+            }
+
+            slot.members.set(index);
+            renamed.put(decl.name, slot.name);
+            iter.remove();
+        }
+
+        if (!renamed.isEmpty()) {
+            Renamer renamer = new Renamer(renamed);
+            for (GeneratorState state : states) {
+                renamer.scan(state.statements.toList());
+            }
+        }
+
+        return renamed.size();
+    }
+
+    private void clearDeadReferences(Analysis analysis) {
+        Set<Name> clearable = new HashSet<>();
+        for (JCVariableDecl decl : block.capturedList()) {
+            if (decl.name == block.getStateFieldName()
+                    || decl.vartype instanceof JCPrimitiveTypeTree
+                    || analysis.pinned.contains(decl.name)) {
+                continue;
+            }
+
+            clearable.add(decl.name);
+        }
+
+        if (clearable.isEmpty()) {
+            return;
+        }
+
+        Map<Object, Set<Name>> clears = analysis.computeClears(clearable);
+        if (clears.isEmpty()) {
+            return;
+        }
+
+        List<JCVariableDecl> order = block.capturedList();
+        for (GeneratorState state : states) {
+            ListBuffer<JCStatement> buf = new ListBuffer<>();
+            buf.addAll(insertClears(state.statements.toList(), clears, order));
+
+            Set<Name> endClears = clears.get(state);
+            if (endClears != null) {
+                buf.addAll(createClears(endClears, order, state.statements.isEmpty() ? treeMaker.pos
+                        : state.statements.last().pos));
+            }
+
+            state.statements = buf;
+        }
+    }
+
+    private List<JCStatement> insertClears(List<JCStatement> statements, Map<Object, Set<Name>> clears,
+            List<JCVariableDecl> order) {
+        ListBuffer<JCStatement> buf = new ListBuffer<>();
+
+        for (JCStatement statement : statements) {
+            Set<Name> names = clears.get(statement);
+            if (names != null) {
+                buf.addAll(createClears(names, order, statement.pos));
+            }
+
+            if (statement instanceof JCBlock blockStatement) {
+                blockStatement.stats = insertClears(blockStatement.stats, clears, order);
+            } else if (statement instanceof JCIf ifStatement) {
+                if (ifStatement.thenpart instanceof JCBlock thenBlock) {
+                    thenBlock.stats = insertClears(thenBlock.stats, clears, order);
+                }
+
+                if (ifStatement.elsepart instanceof JCBlock elseBlock) {
+                    elseBlock.stats = insertClears(elseBlock.stats, clears, order);
+                }
+            }
+
+            buf.add(statement);
+        }
+
+        return buf.toList();
+    }
+
+    /**
+     * @param pos Position of statement clears are inserted next to
+     */
+    private List<JCStatement> createClears(Set<Name> names, List<JCVariableDecl> order, int pos) {
+        ListBuffer<JCStatement> buf = new ListBuffer<>();
+        int prevPos = treeMaker.pos;
+        treeMaker.at(pos);
+
+        for (JCVariableDecl decl : order) {
+            if (names.contains(decl.name)) {
+                buf.add(treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(decl.name),
+                        treeMaker.Literal(TypeTag.BOT, null))));
+            }
+        }
+        treeMaker.at(prevPos);
+
+        return buf.toList();
+    }
+
+    private Analysis analyze() {
+        Analysis analysis = new Analysis();
+        for (JCVariableDecl decl : block.getCapturedVariables()) {
+            analysis.indices.putIfAbsent(decl.name, analysis.indices.size());
+        }
+
+        analysis.exceptionVariables.addAll(block.exceptionVariables());
+        UsageScanner usageScanner = new UsageScanner(analysis.indices, analysis.pinned);
+
+        Map<Integer, GeneratorState> byId = new HashMap<>();
+        for (GeneratorState state : states) {
+            byId.put(state.id, state);
+        }
+
+        for (GeneratorState state : states) {
+            StateInfo info = new StateInfo();
+            if (state.region != null) {
+                info.handlers.addAll(state.region.dispatchOrder());
+            }
+
+            JCStatement previous = null;
+            JCLiteral marker = null;
+            for (JCStatement statement : state.statements) {
+                StatementInfo statementInfo = usageScanner.analyze(statement);
+                marker = findPoints(List.of(statement), marker, state, byId, analysis, statementInfo.points);
+
+                for (StateReference reference : scanner.scanStatements(List.of(statement))) {
+                    GeneratorState target = byId.get(reference.target());
+
+                    if (target != null && reference.jump) {
+                        statementInfo.exits.add(target);
+                    }
+                }
+
+                // Jump on top level leaves the state at continue
+                if (previous != null && scanner.isStateAssign(previous) && scanner.isLoopContinue(statement)) {
+                    GeneratorState target = byId.get(targetOf(previous));
+
+                    if (target != null) {
+                        statementInfo.exits.add(target);
+                    }
+                }
+                previous = statement;
+
+                for (Point point : statementInfo.points) {
+                    if (point.target == state) {
+                        info.resumesItself = true;
+                    }
+                }
+
+                info.statements.add(statementInfo);
+            }
+
+            analysis.infos.put(state, info);
+        }
+
+        for (GeneratorState state : states) {
+            for (Handler handler : analysis.infos.get(state).handlers) {
+                // Exception dispatch writes the field before entering handler
+                Integer index = analysis.indices.get(handler.name);
+                if (index != null) {
+                    analysis.infos.get(handler.state).dirtyIn.set(index);
+                }
+            }
+        }
+
+        for (int i = 0; i + 1 < states.size(); i++) {
+            GeneratorState state = states.get(i);
+
+            List<JCStatement> statements = state.statements.toList();
+            if (statements.nonEmpty() && !GeneratorOptimizer.canCompleteNormally(statements.last())) {
+                continue;
+            }
+
+            GeneratorState next = states.get(i + 1);
+            StateInfo info = analysis.infos.get(state);
+            info.fallthrough = next;
+
+            // Clear before falling into a state which suspends without leaving it
+            if (analysis.infos.get(next).resumesItself) {
+                info.entry = new Point(null, next, new BitSet());
+            }
+        }
+
+        analysis.computeLiveness();
+        return analysis;
+    }
+
+    /**
+     * @return Last state assigned on top level of given statements
+     */
+    @Nullable
+    private JCLiteral findPoints(List<JCStatement> statements, @Nullable JCLiteral marker, GeneratorState state,
+            Map<Integer, GeneratorState> byId, Analysis analysis, ArrayList<Point> points) {
+        for (JCStatement statement : statements) {
+            if (scanner.isStateAssign(statement)) {
+                marker = (JCLiteral) ((JCAssign) ((JCExpressionStatement) statement).expr).rhs;
+            } else if (statement instanceof JCReturn ret) {
+                // Return without marker resumes current state
+                GeneratorState target = marker != null ? byId.get((Integer) marker.value) : state;
+                points.add(new Point(statement, target, UsageScanner.readsOf(ret.expr, analysis.indices)));
+            } else if (scanner.isLoopBreak(statement)) {
+                points.add(new Point(statement, null, new BitSet()));
+            } else if (statement instanceof JCBlock blockStatement) {
+                findPoints(blockStatement.stats, marker, state, byId, analysis, points);
+            } else if (statement instanceof JCIf ifStatement) {
+                findPoints(List.of(ifStatement.thenpart), marker, state, byId, analysis, points);
+
+                if (ifStatement.elsepart != null) {
+                    findPoints(List.of(ifStatement.elsepart), marker, state, byId, analysis, points);
+                }
+            }
+        }
+
+        return marker;
+    }
+
+    private int targetOf(JCStatement stateAssign) {
+        return (Integer) ((JCLiteral) ((JCAssign) ((JCExpressionStatement) stateAssign).expr).rhs).value;
+    }
+
+    /**
+     * Point where generator leaves current state and references can be cleared
+     */
+    @AllArgsConstructor
+    private static class Point {
+        /**
+         * Statement to clear before, null if clearing at end of the state
+         */
+        @Nullable
+        public final JCStatement statement;
+
+        /**
+         * State entered after this point, null if generator finishes
+         */
+        @Nullable
+        public final GeneratorState target;
+
+        /**
+         * Variables read by the statement itself, they must not be cleared before it
+         */
+        public final BitSet reads;
+    }
+
+    /**
+     * Field shared by variables of same type
+     */
+    @AllArgsConstructor
+    private static class Slot {
+        public final Name name;
+        public final BitSet members;
+    }
+
+    private static class StatementInfo {
+        public final BitSet reads = new BitSet();
+        public final BitSet writes = new BitSet();
+
+        /**
+         * Variable which is overwritten on every path through this statement, -1 if none
+         */
+        public int kill = -1;
+
+        public final Set<GeneratorState> exits = new HashSet<>();
+        public final ArrayList<Point> points = new ArrayList<>();
+
+        public BitSet liveIn = new BitSet();
+    }
+
+    private static class StateInfo {
+        public final ArrayList<StatementInfo> statements = new ArrayList<>();
+
+        /**
+         * Handlers entered if any statement of the state throws
+         */
+        public final ArrayList<Handler> handlers = new ArrayList<>();
+
+        @Nullable
+        public GeneratorState fallthrough;
+        @Nullable
+        public Point entry;
+
+        public boolean resumesItself;
+
+        public BitSet liveIn = new BitSet();
+        public final BitSet dirtyIn = new BitSet();
+    }
+
+    private class Analysis {
+        public final Map<GeneratorState, StateInfo> infos = new IdentityHashMap<>();
+        public final Set<Name> pinned = new HashSet<>();
+        public final Set<Name> exceptionVariables = new HashSet<>();
+
+        /**
+         * Bit index of each captured variable
+         */
+        public final Map<Name, Integer> indices = new HashMap<>();
+
+        public int indexOf(Name name) {
+            return indices.get(name);
+        }
+
+        public void computeLiveness() {
+            Map<GeneratorState, ArrayList<GeneratorState>> predecessors = new IdentityHashMap<>();
+            for (GeneratorState state : states) {
+                for (GeneratorState successor : successorsOf(infos.get(state))) {
+                    predecessors.computeIfAbsent(successor, key -> new ArrayList<>()).add(state);
+                }
+            }
+
+            Worklist worklist = new Worklist();
+            for (int i = states.size() - 1; i >= 0; i--) {
+                worklist.add(states.get(i));
+            }
+
+            GeneratorState state;
+            while ((state = worklist.poll()) != null) {
+                if (updateLiveness(infos.get(state))) {
+                    for (GeneratorState predecessor : predecessors.getOrDefault(state, new ArrayList<>())) {
+                        worklist.add(predecessor);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return true if variables live on entry of the state changed
+         */
+        private boolean updateLiveness(StateInfo info) {
+            BitSet handlerLive = handlerLive(info);
+
+            BitSet live = (BitSet) handlerLive.clone();
+            if (info.fallthrough != null) {
+                live.or(infos.get(info.fallthrough).liveIn);
+            }
+
+            for (int j = info.statements.size() - 1; j >= 0; j--) {
+                StatementInfo statement = info.statements.get(j);
+                for (GeneratorState exit : statement.exits) {
+                    live.or(infos.get(exit).liveIn);
+                }
+
+                for (Point point : statement.points) {
+                    if (point.target != null) {
+                        live.or(infos.get(point.target).liveIn);
+                    }
+                }
+
+                if (statement.kill != -1) {
+                    live.clear(statement.kill);
+                }
+
+                live.or(statement.reads);
+                live.or(handlerLive);
+                statement.liveIn = (BitSet) live.clone();
+            }
+
+            if (live.equals(info.liveIn)) {
+                return false;
+            }
+
+            info.liveIn = live;
+            return true;
+        }
+
+        /**
+         * States entered from given state by falling through, jumping, resuming or throwing
+         */
+        private ArrayList<GeneratorState> successorsOf(StateInfo info) {
+            ArrayList<GeneratorState> successors = new ArrayList<>();
+            if (info.fallthrough != null) {
+                successors.add(info.fallthrough);
+            }
+
+            for (Handler handler : info.handlers) {
+                successors.add(handler.state);
+            }
+
+            for (StatementInfo statement : info.statements) {
+                successors.addAll(statement.exits);
+
+                for (Point point : statement.points) {
+                    if (point.target != null) {
+                        successors.add(point.target);
+                    }
+                }
+            }
+
+            return successors;
+        }
+
+        /**
+         * Variables read by handlers of the state before they are written
+         */
+        private BitSet handlerLive(StateInfo info) {
+            BitSet live = new BitSet();
+
+            for (Handler handler : info.handlers) {
+                BitSet handlerIn = (BitSet) infos.get(handler.state).liveIn.clone();
+                Integer index = indices.get(handler.name);
+                if (index != null) {
+                    handlerIn.clear(index);
+                }
+
+                live.or(handlerIn);
+            }
+
+            return live;
+        }
+
+        /**
+         * Variables which are live while each variable is written, they cannot share a field with it.
+         * Written variable conflicts with everything live after or used by the statement, the graph is made symmetric
+         * at the end.
+         */
+        public BitSet[] computeInterference() {
+            BitSet[] interference = new BitSet[indices.size()];
+            for (int i = 0; i < interference.length; i++) {
+                interference[i] = new BitSet();
+            }
+
+            for (GeneratorState state : states) {
+                StateInfo info = infos.get(state);
+                BitSet handlerLive = handlerLive(info);
+
+                for (int i = 0; i < info.statements.size(); i++) {
+                    StatementInfo statement = info.statements.get(i);
+                    if (statement.writes.isEmpty()) {
+                        continue;
+                    }
+
+                    BitSet conflicts = liveOut(info, i, handlerLive);
+                    conflicts.or(statement.reads);
+                    conflicts.or(statement.writes);
+
+                    for (int written = statement.writes.nextSetBit(0); written >= 0;
+                            written = statement.writes.nextSetBit(written + 1)) {
+                        interference[written].or(conflicts);
+                    }
+                }
+            }
+
+            for (int i = 0; i < interference.length; i++) {
+                for (int j = interference[i].nextSetBit(0); j >= 0; j = interference[i].nextSetBit(j + 1)) {
+                    interference[j].set(i);
+                }
+            }
+
+            for (int i = 0; i < interference.length; i++) {
+                interference[i].clear(i);
+            }
+
+            return interference;
+        }
+
+        private BitSet liveOut(StateInfo info, int index, BitSet handlerLive) {
+            StatementInfo statement = info.statements.get(index);
+
+            BitSet live = (BitSet) handlerLive.clone();
+            if (index + 1 < info.statements.size()) {
+                live.or(info.statements.get(index + 1).liveIn);
+            } else if (info.fallthrough != null) {
+                live.or(infos.get(info.fallthrough).liveIn);
+            }
+
+            for (GeneratorState exit : statement.exits) {
+                live.or(infos.get(exit).liveIn);
+            }
+
+            for (Point point : statement.points) {
+                if (point.target != null) {
+                    live.or(infos.get(point.target).liveIn);
+                }
+            }
+
+            return live;
+        }
+
+        /**
+         * Computes references to clear before each point, keyed by statement or by state for end of state.
+         * Reference is cleared if it may hold a value and is dead after the point.
+         */
+        public Map<Object, Set<Name>> computeClears(Set<Name> clearable) {
+            BitSet clearableBits = new BitSet();
+            for (Name name : clearable) {
+                clearableBits.set(indexOf(name));
+            }
+
+            Map<Object, BitSet> clears = new IdentityHashMap<>();
+
+            Worklist worklist = new Worklist();
+            for (GeneratorState state : states) {
+                worklist.add(state);
+            }
+
+            GeneratorState state;
+            while ((state = worklist.poll()) != null) {
+                StateInfo info = infos.get(state);
+                BitSet dirty = (BitSet) info.dirtyIn.clone();
+
+                for (StatementInfo statement : info.statements) {
+                    dirty.or(statement.writes);
+
+                    for (Handler handler : info.handlers) {
+                        addDirty(handler.state, dirty, worklist);
+                    }
+
+                    for (Point point : statement.points) {
+                        if (clear(point, point.statement, dirty, clearableBits, clears)) {
+                            worklist.add(point.target);
+                        }
+                    }
+
+                    for (GeneratorState exit : statement.exits) {
+                        addDirty(exit, dirty, worklist);
+                    }
+                }
+
+                if (info.entry != null) {
+                    if (clear(info.entry, state, dirty, clearableBits, clears)) {
+                        worklist.add(info.entry.target);
+                    }
+                } else if (info.fallthrough != null) {
+                    addDirty(info.fallthrough, dirty, worklist);
+                }
+            }
+
+            Name[] byIndex = new Name[indices.size()];
+            for (Map.Entry<Name, Integer> entry : indices.entrySet()) {
+                byIndex[entry.getValue()] = entry.getKey();
+            }
+
+            Map<Object, Set<Name>> clearNames = new IdentityHashMap<>();
+            for (Map.Entry<Object, BitSet> entry : clears.entrySet()) {
+                Set<Name> names = new HashSet<>();
+                for (int i = entry.getValue().nextSetBit(0); i >= 0; i = entry.getValue().nextSetBit(i + 1)) {
+                    names.add(byIndex[i]);
+                }
+
+                clearNames.put(entry.getKey(), names);
+            }
+
+            return clearNames;
+        }
+
+        private boolean clear(Point point, Object key, BitSet dirty, BitSet clearable, Map<Object, BitSet> clears) {
+            BitSet cleared = (BitSet) dirty.clone();
+            cleared.and(clearable);
+            cleared.andNot(point.reads);
+            if (point.target != null) {
+                cleared.andNot(infos.get(point.target).liveIn);
+            }
+
+            if (!cleared.isEmpty()) {
+                clears.put(key, cleared);
+            } else {
+                clears.remove(key);
+            }
+
+            if (point.target == null) {
+                return false;
+            }
+
+            BitSet remaining = (BitSet) dirty.clone();
+            remaining.andNot(cleared);
+            return addAll(infos.get(point.target).dirtyIn, remaining);
+        }
+
+        private void addDirty(GeneratorState state, BitSet dirty, Worklist worklist) {
+            if (addAll(infos.get(state).dirtyIn, dirty)) {
+                worklist.add(state);
+            }
+        }
+
+        /**
+         * @return true if target changed
+         */
+        private boolean addAll(BitSet target, BitSet bits) {
+            int cardinality = target.cardinality();
+            target.or(bits);
+
+            return target.cardinality() != cardinality;
+        }
+    }
+
+    /**
+     * States waiting to be visited again, state already waiting is not queued twice
+     */
+    private static class Worklist {
+        private final ArrayDeque<GeneratorState> queue = new ArrayDeque<>();
+        private final Set<GeneratorState> queued = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        public void add(GeneratorState state) {
+            if (queued.add(state)) {
+                queue.add(state);
+            }
+        }
+
+        @Nullable
+        public GeneratorState poll() {
+            GeneratorState state = queue.poll();
+            if (state != null) {
+                queued.remove(state);
+            }
+
+            return state;
+        }
+    }
+
+    private static class UsageScanner extends TreeScanner {
+        private final Map<Name, Integer> tracked;
+        private final Set<Name> pinned;
+
+        private final Set<Name> shadowed;
+        private int escapeDepth;
+
+        private StatementInfo info;
+
+        public UsageScanner(Map<Name, Integer> tracked, Set<Name> pinned) {
+            this.tracked = tracked;
+            this.pinned = pinned;
+
+            shadowed = new HashSet<>();
+        }
+
+        public StatementInfo analyze(JCStatement statement) {
+            info = new StatementInfo();
+            scan(statement);
+
+            if (statement instanceof JCExpressionStatement exec
+                    && exec.expr instanceof JCAssign assign
+                    && assign.lhs instanceof JCIdent ident
+                    && tracked.containsKey(ident.name)) {
+                info.kill = tracked.get(ident.name);
+            }
+
+            return info;
+        }
+
+        public static BitSet readsOf(@Nullable JCExpression expr, Map<Name, Integer> tracked) {
+            BitSet reads = new BitSet();
+
+            if (expr != null) {
+                new TreeScanner() {
+                    @Override
+                    public void visitIdent(JCIdent tree) {
+                        Integer index = tracked.get(tree.name);
+                        if (index != null) {
+                            reads.set(index);
+                        }
+                    }
+                }.scan(expr);
+            }
+
+            return reads;
+        }
+
+        @Nullable
+        private Name trackedName(JCExpression expr) {
+            Name name = null;
+            if (expr instanceof JCIdent ident && !shadowed.contains(ident.name)) {
+                name = ident.name;
+            } else if (expr instanceof JCFieldAccess select
+                    && select.selected instanceof JCIdent selected
+                    && selected.name == selected.name.table.names._this) {
+                name = select.name;
+            }
+
+            return name != null && tracked.containsKey(name) ? name : null;
+        }
+
+        private void use(Name name, boolean write) {
+            if (write) {
+                info.writes.set(tracked.get(name));
+            } else {
+                info.reads.set(tracked.get(name));
+            }
+
+            if (escapeDepth > 0) {
+                pinned.add(name);
+            }
+        }
+
+        @Override
+        public void visitIdent(JCIdent tree) {
+            Name name = trackedName(tree);
+            if (name != null) {
+                use(name, false);
+            }
+        }
+
+        @Override
+        public void visitSelect(JCFieldAccess tree) {
+            Name name = trackedName(tree);
+            if (name != null) {
+                use(name, false);
+                return;
+            }
+
+            super.visitSelect(tree);
+        }
+
+        @Override
+        public void visitAssign(JCAssign tree) {
+            Name name = trackedName(tree.lhs);
+            if (name != null) {
+                use(name, true);
+                scan(tree.rhs);
+                return;
+            }
+
+            super.visitAssign(tree);
+        }
+
+        @Override
+        public void visitCatch(JCCatch tree) {
+            boolean shadow = tracked.containsKey(tree.param.name) && shadowed.add(tree.param.name);
+
+            super.visitCatch(tree);
+
+            if (shadow) {
+                shadowed.remove(tree.param.name);
+            }
+        }
+
+        @Override
+        public void visitLambda(JCLambda tree) {
+            escapeDepth++;
+            super.visitLambda(tree);
+            escapeDepth--;
+        }
+
+        @Override
+        public void visitClassDef(JCClassDecl tree) {
+            escapeDepth++;
+            super.visitClassDef(tree);
+            escapeDepth--;
+        }
+    }
+
+    private static class Renamer extends TreeScanner {
+        private final Map<Name, Name> renamed;
+
+        public Renamer(Map<Name, Name> renamed) {
+            this.renamed = renamed;
+        }
+
+        @Override
+        public void visitIdent(JCIdent tree) {
+            tree.name = renamed.getOrDefault(tree.name, tree.name);
+        }
+
+        @Override
+        public void visitSelect(JCFieldAccess tree) {
+            tree.name = renamed.getOrDefault(tree.name, tree.name);
+            super.visitSelect(tree);
+        }
+
+        @Override
+        public void visitVarDef(JCVariableDecl tree) {
+            tree.name = renamed.getOrDefault(tree.name, tree.name);
+            super.visitVarDef(tree);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.sun.tools.javac.code.TypeTag;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeMaker;
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.tree.JCTree.*;
+import com.sun.tools.javac.util.List;
+import com.sun.tools.javac.util.Name;
+import com.sun.tools.javac.util.Names;
+
+import lombok.AllArgsConstructor;
+
+/**
+ * Index range of generator whose body is a single counted for loop.
+ * Iterations are independent of each other, so generator can be split into generators running parts of the range.
+ */
+@AllArgsConstructor
+public class SplitRange {
+    /**
+     * Fields holding first index and index after the last one of the range
+     */
+    public final Name originName;
+    public final Name fenceName;
+
+    /**
+     * Field set once bounds of loop are evaluated into range fields
+     */
+    public final Name boundedName;
+
+    /**
+     * Bounds of original loop, evaluated once in generator class
+     */
+    public final JCExpression lo;
+    public final JCExpression hi;
+
+    /**
+     * Rewrites body of form {@code for (int i = lo; i < hi; i++) ...} to iterate range fields.
+     * Bounds may only use literals, parameters never assigned and final fields, and loop must not leave early.
+     *
+     * @param finalFields Names of final fields of enclosing class
+     * @return Range of loop, null if body is not such a loop
+     */
+    @Nullable
+    public static SplitRange extract(TreeMaker treeMaker, Names names, NameMapper nameMapper, JCMethodDecl method,
+            Set<Name> finalFields) {
+        JCBlock body = method.body;
+        if (body.stats.size() != 1 || !(body.stats.head instanceof JCForLoop loop)) {
+            return null;
+        }
+
+        if (loop.init.size() != 1 || !(loop.init.head instanceof JCVariableDecl indexDecl)
+                || !(indexDecl.vartype instanceof JCPrimitiveTypeTree indexType)
+                || indexType.typetag != TypeTag.INT || indexDecl.init == null) {
+            return null;
+        }
+
+        Name index = indexDecl.name;
+        if (!(loop.cond instanceof JCBinary cond) || cond.getTag() != Tag.LT
+                || !(cond.lhs instanceof JCIdent condIdent) || condIdent.name != index) {
+            return null;
+        }
+
+        if (loop.step.size() != 1 || !isIncrement(loop.step.head.expr, index)) {
+            return null;
+        }
+
+        LoopScanner scanner = new LoopScanner();
+        scanner.scan(loop.body);
+        if (scanner.exits || scanner.assigned.contains(index)) {
+            return null;
+        }
+
+        // Loop is the whole body, so a name not declared as parameter refers to a field
+        Set<Name> params = new HashSet<>();
+        for (JCVariableDecl param : method.params) {
+            params.add(param.name);
+        }
+
+        Invariance invariance = new Invariance(params, scanner.assigned, finalFields, index);
+        if (!invariance.test(indexDecl.init) || !invariance.test(cond.rhs)) {
+            return null;
+        }
+
+        SplitRange range = new SplitRange(
+                nameMapper.map(Constants.GENERATOR_ORIGIN),
+                nameMapper.map(Constants.GENERATOR_FENCE),
+                nameMapper.map(Constants.GENERATOR_BOUNDED),
+                indexDecl.init,
+                cond.rhs);
+
+        // Bounding runs where the loop starts
+        int pos = treeMaker.pos;
+        treeMaker.at(loop.pos);
+        indexDecl.init = treeMaker.Ident(range.originName);
+        cond.rhs = treeMaker.Ident(range.fenceName);
+        body.stats = body.stats.prepend(treeMaker.Exec(treeMaker.Apply(
+                List.nil(),
+                treeMaker.Ident(names.fromString(Constants.GENERATOR_INNER_BOUND)),
+                List.nil())));
+        treeMaker.at(pos);
+
+        return range;
+    }
+
+    private static boolean isIncrement(JCExpression expr, Name index) {
+        if (expr instanceof JCUnary unary && (unary.getTag() == Tag.POSTINC || unary.getTag() == Tag.PREINC)) {
+            return unary.arg instanceof JCIdent ident && ident.name == index;
+        }
+
+        return expr instanceof JCAssignOp assignOp && assignOp.getTag() == Tag.PLUS_ASG
+                && assignOp.lhs instanceof JCIdent ident && ident.name == index
+                && assignOp.rhs instanceof JCLiteral literal && Integer.valueOf(1).equals(literal.value);
+    }
+
+    /**
+     * Bound is invariant if it is built from literals, parameters never assigned and final fields.
+     * Trees are not attributed, so a field is only known to be final by its name.
+     */
+    @AllArgsConstructor
+    private static class Invariance {
+        private final Set<Name> params;
+        private final Set<Name> assigned;
+        private final Set<Name> finalFields;
+        private final Name index;
+
+        public boolean test(JCExpression expr) {
+            if (expr instanceof JCLiteral) {
+                return true;
+            }
+
+            if (expr instanceof JCIdent ident) {
+                if (ident.name == index) {
+                    return false;
+                }
+
+                if (params.contains(ident.name)) {
+                    return !assigned.contains(ident.name);
+                }
+
+                return finalFields.contains(ident.name);
+            }
+
+            if (expr instanceof JCParens parens) {
+                return test(parens.expr);
+            }
+
+            if (expr instanceof JCTypeCast cast) {
+                return test(cast.expr);
+            }
+
+            if (expr instanceof JCUnary unary) {
+                return (unary.getTag() == Tag.NEG || unary.getTag() == Tag.POS) && test(unary.arg);
+            }
+
+            if (expr instanceof JCBinary binary) {
+                return test(binary.lhs) && test(binary.rhs);
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Collects assigned names and checks if loop body can leave the loop
+     */
+    private static class LoopScanner extends TreeScanner {
+        public final Set<Name> assigned = new HashSet<>();
+        public boolean exits;
+
+        /**
+         * Number of loops and switches enclosing current statement inside of the body
+         */
+        private int depth;
+
+        private void assign(JCExpression target) {
+            if (target instanceof JCIdent ident) {
+                assigned.add(ident.name);
+            }
+        }
+
+        @Override
+        public void visitAssign(JCAssign tree) {
+            assign(tree.lhs);
+            super.visitAssign(tree);
+        }
+
+        @Override
+        public void visitAssignop(JCAssignOp tree) {
+            assign(tree.lhs);
+            super.visitAssignop(tree);
+        }
+
+        @Override
+        public void visitUnary(JCUnary tree) {
+            switch (tree.getTag()) {
+                case PREINC, PREDEC, POSTINC, POSTDEC -> assign(tree.arg);
+                default -> {
+                }
+            }
+
+            super.visitUnary(tree);
+        }
+
+        @Override
+        public void visitReturn(JCReturn tree) {
+            exits = true;
+        }
+
+        @Override
+        public void visitThrow(JCThrow tree) {
+            // Exception stops sequential iteration where it is thrown, parts split off would keep running
+            exits = true;
+        }
+
+        @Override
+        public void visitBreak(JCBreak tree) {
+            // Labelled break may target a statement outside of the body
+            if (tree.label != null || depth == 0) {
+                exits = true;
+            }
+        }
+
+        private void scanNested(JCTree tree) {
+            depth++;
+            tree.accept(this);
+            depth--;
+        }
+
+        @Override
+        public void visitForLoop(JCForLoop tree) {
+            scan(tree.init);
+            scan(tree.cond);
+            scan(tree.step);
+            scanNested(tree.body);
+        }
+
+        @Override
+        public void visitForeachLoop(JCEnhancedForLoop tree) {
+            scan(tree.expr);
+            scanNested(tree.body);
+        }
+
+        @Override
+        public void visitWhileLoop(JCWhileLoop tree) {
+            scan(tree.cond);
+            scanNested(tree.body);
+        }
+
+        @Override
+        public void visitDoLoop(JCDoWhileLoop tree) {
+            scanNested(tree.body);
+            scan(tree.cond);
+        }
+
+        @Override
+        public void visitSwitch(JCSwitch tree) {
+            scan(tree.selector);
+            depth++;
+            scan(tree.cases);
+            depth--;
+        }
+
+        @Override
+        public void visitLambda(JCLambda tree) {
+            // Returns inside of lambda do not leave the loop
+            int prevDepth = depth;
+            boolean prevExits = exits;
+            depth = 1;
+            scan(tree.body);
+            depth = prevDepth;
+            exits = prevExits;
+        }
+
+        @Override
+        public void visitClassDef(JCClassDecl tree) {
+        }
+    }
+}
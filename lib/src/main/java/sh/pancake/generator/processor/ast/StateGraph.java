@@ -0,0 +1,76 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import sh.pancake.generator.processor.ast.TryRegion.Handler;
+import sh.pancake.generator.processor.ast.visitor.StateReferenceScanner;
+import sh.pancake.generator.processor.ast.visitor.StateReferenceScanner.StateReference;
+
+/**
+ * Graphviz dump of state graph of a generator block.
+ * Jumps are solid, resume points after step are dashed, exception dispatch is dotted and falling through is gray.
+ */
+public class StateGraph {
+
+    /**
+     * Graph of block states, must be written before states are split into methods
+     */
+    public static String toDot(String name, GeneratorBlock block) {
+        ArrayList<GeneratorState> states = block.getStates();
+        StateReferenceScanner scanner = new StateReferenceScanner(block.getStateFieldName(), block.loopLabel);
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("digraph \"").append(name.replace("\\", "\\\\").replace("\"", "\\\"")).append("\" {\n");
+        builder.append("    node [shape=circle];\n");
+        builder.append("    s").append(Constants.GENERATOR_STEP_FINISH).append(" [label=\"finish\", shape=doublecircle];\n");
+
+        Set<String> edges = new LinkedHashSet<>();
+        for (int i = 0; i < states.size(); i++) {
+            GeneratorState state = states.get(i);
+
+            builder.append("    s").append(state.id).append(" [label=\"").append(state.id).append("\"");
+            if (state.cold) {
+                builder.append(", style=dashed");
+            }
+            builder.append("];\n");
+
+            for (StateReference reference : scanner.scanStatements(state.statements.toList())) {
+                edges.add(edge(state.id, reference.target(), reference.jump ? "" : "style=dashed"));
+            }
+
+            if (state.region != null) {
+                for (Handler handler : state.region.dispatchOrder()) {
+                    edges.add(edge(state.id, handler.state.id, "style=dotted"));
+                }
+            }
+
+            if (i + 1 < states.size()
+                    && (state.statements.isEmpty() || GeneratorOptimizer.canCompleteNormally(state.statements.last()))) {
+                edges.add(edge(state.id, states.get(i + 1).id, "color=gray"));
+            }
+        }
+
+        for (String edge : edges) {
+            builder.append(edge);
+        }
+        builder.append("}\n");
+
+        return builder.toString();
+    }
+
+    private static String edge(int from, int to, String attributes) {
+        String edge = "    s" + from + " -> s" + to;
+        if (!attributes.isEmpty()) {
+            edge += " [" + attributes + "]";
+        }
+
+        return edge + ";\n";
+    }
+}
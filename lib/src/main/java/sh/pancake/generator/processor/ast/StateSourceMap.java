@@ -0,0 +1,72 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast;
+
+import java.util.ArrayList;
+
+import com.sun.source.tree.LineMap;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.JCTree.JCMethodInvocation;
+import com.sun.tools.javac.tree.JCTree.JCStatement;
+import com.sun.tools.javac.tree.TreeScanner;
+
+import lombok.AllArgsConstructor;
+
+/**
+ * Source lines of each state, so state ids seen in profiles and generator events can be traced back to the body
+ */
+public class StateSourceMap {
+
+    /**
+     * Lines of block states ordered by id, must be collected before states are split into methods.
+     * State without any positioned tree has no range.
+     */
+    public static ArrayList<Range> collect(GeneratorBlock block, LineMap lineMap) {
+        ArrayList<Range> ranges = new ArrayList<>();
+        PositionScanner scanner = new PositionScanner();
+
+        for (GeneratorState state : block.getStates()) {
+            scanner.start = Integer.MAX_VALUE;
+            scanner.end = -1;
+            scanner.scan(state.statements.toList());
+
+            if (scanner.end >= 0) {
+                ranges.add(new Range(state.id, lineMap.getLineNumber(scanner.start),
+                        lineMap.getLineNumber(scanner.end)));
+            }
+        }
+
+        ranges.sort((a, b) -> Integer.compare(a.state, b.state));
+        return ranges;
+    }
+
+    @AllArgsConstructor
+    public static class Range {
+        public final int state;
+        public final long startLine;
+        public final long endLine;
+    }
+
+    private static class PositionScanner extends TreeScanner {
+        public int start;
+        public int end;
+
+        @Override
+        public void scan(JCTree tree) {
+            if (tree == null) {
+                return;
+            }
+
+            // Type trees may be shared between states, only trees starting a line number entry are counted
+            if ((tree instanceof JCStatement || tree instanceof JCMethodInvocation) && tree.pos >= 0) {
+                start = Math.min(start, tree.pos);
+                end = Math.max(end, tree.pos);
+            }
+
+            super.scan(tree);
+        }
+    }
+}
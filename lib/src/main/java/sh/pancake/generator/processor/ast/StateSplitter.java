@@ -0,0 +1,425 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.sun.source.tree.CaseTree.CaseKind;
+import com.sun.tools.javac.code.Flags;
+import com.sun.tools.javac.code.TypeTag;
+import com.sun.tools.javac.tree.TreeMaker;
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.tree.TreeTranslator;
+import com.sun.tools.javac.tree.JCTree.*;
+import com.sun.tools.javac.util.List;
+import com.sun.tools.javac.util.ListBuffer;
+import com.sun.tools.javac.util.Name;
+import com.sun.tools.javac.util.Names;
+
+import sh.pancake.generator.processor.TreeMakerUtil;
+
+/**
+ * Moves states of a large state machine out of __next so it stays under JIT compilation limits.
+ * Cold states are moved into their own methods first. If __next is still too large, consecutive states are grouped
+ * into region methods running their own dispatch loop, and __next only selects region by state range.
+ */
+public class StateSplitter {
+    /**
+     * Estimated size of generator loop, try and switch around states
+     */
+    private static final int DISPATCH_SIZE = 40;
+    private static final int CASE_SIZE = 8;
+    /**
+     * Estimated size of helper method call and check of its result
+     */
+    private static final int CALL_SIZE = 16;
+
+    private static final int REGION_SIZE = Constants.JIT_HUGE_METHOD_LIMIT / 4;
+
+    private final TreeMaker treeMaker;
+    private final Names names;
+
+    private final GeneratorBlock block;
+
+    private final ListBuffer<JCMethodDecl> methods;
+
+    @Nullable
+    private List<JCStatement> regionDispatch;
+
+    public StateSplitter(TreeMaker treeMaker, Names names, GeneratorBlock block) {
+        this.treeMaker = treeMaker;
+        this.names = names;
+        this.block = block;
+
+        methods = new ListBuffer<>();
+        regionDispatch = null;
+    }
+
+    public void split(GeneratorStats stats) {
+        ArrayList<GeneratorState> states = block.getStates();
+
+        Map<GeneratorState, Integer> sizes = new IdentityHashMap<>();
+        for (GeneratorState state : states) {
+            sizes.put(state, BytecodeEstimator.estimate(state.statements));
+        }
+
+        int nextSize = estimateDispatch(states, sizes);
+        stats.nextMethodSize = nextSize;
+        stats.largestMethodSize = nextSize;
+        if (nextSize <= Constants.GENERATOR_SPLIT_SIZE) {
+            return;
+        }
+
+        Set<Name> localClasses = collectLocalClasses(states);
+
+        int largest = 0;
+        for (int i = 0; i < states.size(); i++) {
+            GeneratorState state = states.get(i);
+            int size = sizes.get(state);
+
+            if (!state.cold || size <= CALL_SIZE || referencesLocalClass(state.statements.toList(), localClasses)) {
+                continue;
+            }
+
+            methods.add(outline(state, i + 1 < states.size() ? states.get(i + 1) : null));
+            sizes.put(state, CALL_SIZE);
+            largest = Math.max(largest, size);
+            stats.outlinedStates++;
+        }
+
+        nextSize = estimateDispatch(states, sizes);
+        if (nextSize > Constants.GENERATOR_SPLIT_SIZE) {
+            ArrayList<ArrayList<GeneratorState>> regions = partition(states, sizes);
+
+            regionDispatch = createRegionDispatch(regions);
+            for (ArrayList<GeneratorState> region : regions) {
+                largest = Math.max(largest, estimateDispatch(region, sizes));
+            }
+
+            // Every state is moved out of __next now
+            stats.outlinedStates = states.size();
+
+            nextSize = DISPATCH_SIZE + regions.size() * CALL_SIZE;
+        }
+
+        stats.nextMethodSize = nextSize;
+        stats.largestMethodSize = Math.max(nextSize, largest);
+    }
+
+    /**
+     * @return Methods called from __next
+     */
+    public List<JCMethodDecl> getMethods() {
+        return methods.toList();
+    }
+
+    public JCStatement createNextStatement() {
+        if (regionDispatch == null) {
+            return block.createNextStatement(treeMaker, names);
+        }
+
+        return block.createLoop(treeMaker, names, regionDispatch);
+    }
+
+    private static int estimateDispatch(ArrayList<GeneratorState> states, Map<GeneratorState, Integer> sizes) {
+        int size = DISPATCH_SIZE;
+        for (GeneratorState state : states) {
+            size += CASE_SIZE + sizes.get(state);
+        }
+
+        return size;
+    }
+
+    /**
+     * Moves state into its own method, state is replaced with call of it
+     */
+    private JCMethodDecl outline(GeneratorState state, @Nullable GeneratorState next) {
+        Name methodName = names.fromString(Constants.GENERATOR_INNER_STATE + state.id);
+
+        List<JCStatement> statements = new LoopExitTranslator().translate(state.statements.toList());
+        if (statements.isEmpty() || GeneratorOptimizer.canCompleteNormally(statements.last())) {
+            // Falls through into next state
+            ListBuffer<JCStatement> buf = new ListBuffer<>();
+            buf.addAll(statements);
+            if (next != null) {
+                buf.add(createStateAssign(next.id));
+            }
+            buf.add(treeMaker.Return(createResume()));
+
+            statements = buf.toList();
+        }
+
+        ListBuffer<JCStatement> dispatch = new ListBuffer<>();
+        dispatch.addAll(createCall(methodName));
+        dispatch.add(treeMaker.Continue(block.loopLabel));
+        state.statements = dispatch;
+
+        return createMethod(methodName, statements);
+    }
+
+    /**
+     * Splits states into consecutive regions under size limit.
+     * Local class is only visible to states after it in same switch, so region never ends between them.
+     */
+    private ArrayList<ArrayList<GeneratorState>> partition(ArrayList<GeneratorState> states,
+            Map<GeneratorState, Integer> sizes) {
+        ArrayList<ArrayList<GeneratorState>> regions = new ArrayList<>();
+
+        ArrayList<GeneratorState> region = new ArrayList<>();
+        int regionSize = DISPATCH_SIZE;
+        int joinedUntil = -1;
+        for (int i = 0; i < states.size(); i++) {
+            GeneratorState state = states.get(i);
+            int size = CASE_SIZE + sizes.get(state);
+
+            if (!region.isEmpty() && regionSize + size > REGION_SIZE && i > joinedUntil) {
+                regions.add(region);
+                region = new ArrayList<>();
+                regionSize = DISPATCH_SIZE;
+            }
+
+            region.add(state);
+            regionSize += size;
+
+            Set<Name> declared = collectLocalClasses(List.of(state));
+            if (declared.isEmpty()) {
+                continue;
+            }
+
+            for (int j = i + 1; j < states.size(); j++) {
+                if (referencesLocalClass(states.get(j).statements.toList(), declared)) {
+                    joinedUntil = Math.max(joinedUntil, j);
+                }
+            }
+        }
+        regions.add(region);
+
+        return regions;
+    }
+
+    /**
+     * Creates dispatch of __next selecting region method by state range
+     */
+    private List<JCStatement> createRegionDispatch(ArrayList<ArrayList<GeneratorState>> regions) {
+        JCStatement dispatch = treeMaker.Throw(treeMaker.NewClass(
+                null,
+                List.nil(),
+                TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "RuntimeException"),
+                List.of(treeMaker.Literal(Constants.ERR_UNREACHABLE)),
+                null));
+
+        for (int i = regions.size() - 1; i >= 0; i--) {
+            ArrayList<GeneratorState> region = regions.get(i);
+            Name methodName = names.fromString(Constants.GENERATOR_INNER_REGION + i);
+
+            GeneratorState next = i + 1 < regions.size() ? regions.get(i + 1).get(0) : null;
+            methods.add(createRegionMethod(methodName, region, next));
+
+            GeneratorState last = region.get(region.size() - 1);
+            dispatch = treeMaker.If(
+                    treeMaker.Binary(Tag.LE,
+                            treeMaker.Ident(block.getStateFieldName()),
+                            treeMaker.Literal(TypeTag.INT, last.id)),
+                    treeMaker.Block(0, createCall(methodName)),
+                    dispatch);
+        }
+
+        return List.of(
+                treeMaker.If(
+                        treeMaker.Binary(Tag.EQ,
+                                treeMaker.Ident(block.getStateFieldName()),
+                                treeMaker.Literal(TypeTag.INT, Constants.GENERATOR_STEP_FINISH)),
+                        treeMaker.Break(block.loopLabel),
+                        null),
+                dispatch);
+    }
+
+    /**
+     * Region method runs its states until generator suspends, finishes or leaves the region
+     */
+    private JCMethodDecl createRegionMethod(Name methodName, ArrayList<GeneratorState> region,
+            @Nullable GeneratorState next) {
+        ListBuffer<JCCase> cases = new ListBuffer<>();
+
+        for (int i = 0; i < region.size(); i++) {
+            GeneratorState state = region.get(i);
+            List<JCStatement> statements = state.statements.toList();
+
+            boolean last = i + 1 == region.size();
+            if (last && next != null
+                    && (statements.isEmpty() || GeneratorOptimizer.canCompleteNormally(statements.last()))) {
+                // Next state is in another region
+                statements = statements.append(createStateAssign(next.id));
+            }
+
+            cases.add(treeMaker.Case(CaseKind.STATEMENT,
+                    List.of(treeMaker.Literal(TypeTag.INT, state.id)),
+                    statements,
+                    null));
+        }
+
+        cases.add(treeMaker.Case(CaseKind.STATEMENT,
+                List.of(treeMaker.DefaultCaseLabel()),
+                List.of(treeMaker.Break(block.loopLabel)),
+                null));
+
+        // Generator loop label is reused, so jumps and finish in states need no change
+        return createMethod(methodName, List.of(
+                treeMaker.Labelled(
+                        block.loopLabel,
+                        treeMaker.WhileLoop(
+                                treeMaker.Literal(TypeTag.BOOLEAN, 1),
+                                treeMaker.Switch(treeMaker.Ident(block.getStateFieldName()), cases.toList()))),
+                treeMaker.Return(createResume())));
+    }
+
+    private JCMethodDecl createMethod(Name methodName, List<JCStatement> statements) {
+        // Exception of try bodies is dispatched in __next, checked ones included
+        List<JCExpression> thrown = List.nil();
+        if (block.usesExceptionTable()) {
+            thrown = List.of(TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "Throwable"));
+        }
+
+        return treeMaker.MethodDef(
+                treeMaker.Modifiers(Flags.PRIVATE),
+                methodName,
+                block.resultKind.isPrimitive() ? treeMaker.TypeIdent(TypeTag.BOOLEAN) : block.resultType,
+                List.nil(),
+                List.nil(),
+                thrown,
+                treeMaker.Block(0, statements),
+                null);
+    }
+
+    /**
+     * Calls helper method and returns from caller if generator suspended in it
+     */
+    private List<JCStatement> createCall(Name methodName) {
+        JCMethodInvocation invocation = treeMaker.Apply(List.nil(), treeMaker.Ident(methodName), List.nil());
+
+        if (block.resultKind.isPrimitive()) {
+            return List.of(treeMaker.If(invocation, treeMaker.Return(treeMaker.Literal(TypeTag.BOOLEAN, 1)), null));
+        }
+
+        Name resName = names.fromString("res");
+        JCExpression suspendedCond = treeMaker.Binary(Tag.NE, treeMaker.Ident(resName),
+                treeMaker.Literal(TypeTag.BOT, null));
+
+        if (block.getDelegateName() != null) {
+            // Delegating state suspends without value
+            suspendedCond = treeMaker.Binary(Tag.OR, suspendedCond, treeMaker.Binary(Tag.NE,
+                    treeMaker.Ident(block.getDelegateName()), treeMaker.Literal(TypeTag.BOT, null)));
+        }
+
+        return List.of(treeMaker.Block(0, List.of(
+                treeMaker.VarDef(treeMaker.Modifiers(0), resName, block.resultType, invocation),
+                treeMaker.If(
+                        suspendedCond,
+                        treeMaker.Return(treeMaker.Ident(resName)),
+                        null))));
+    }
+
+    private JCStatement createStateAssign(int id) {
+        return treeMaker.Exec(treeMaker.Assign(
+                treeMaker.Ident(block.getStateFieldName()),
+                treeMaker.Literal(TypeTag.INT, id)));
+    }
+
+    /**
+     * Value returned from helper method when generator did not suspend, caller dispatches state field again
+     */
+    private JCExpression createResume() {
+        if (block.resultKind.isPrimitive()) {
+            return treeMaker.Literal(TypeTag.BOOLEAN, 0);
+        }
+
+        return treeMaker.Literal(TypeTag.BOT, null);
+    }
+
+    private static Set<Name> collectLocalClasses(Iterable<GeneratorState> states) {
+        Set<Name> localClasses = new HashSet<>();
+
+        for (GeneratorState state : states) {
+            for (JCStatement statement : state.statements) {
+                if (statement instanceof JCClassDecl classDecl) {
+                    localClasses.add(classDecl.name);
+                }
+            }
+        }
+
+        return localClasses;
+    }
+
+    private static boolean referencesLocalClass(List<JCStatement> statements, Set<Name> localClasses) {
+        if (localClasses.isEmpty()) {
+            return false;
+        }
+
+        boolean[] found = { false };
+
+        new TreeScanner() {
+            @Override
+            public void visitIdent(JCIdent tree) {
+                if (localClasses.contains(tree.name)) {
+                    found[0] = true;
+                }
+            }
+
+            @Override
+            public void visitClassDef(JCClassDecl tree) {
+                if (localClasses.contains(tree.name)) {
+                    found[0] = true;
+                }
+
+                super.visitClassDef(tree);
+            }
+        }.scan(statements);
+
+        return found[0];
+    }
+
+    /**
+     * Turns continue and break of generator loop into return of helper method.
+     * State field is already updated before them, so caller resumes by dispatching it again.
+     */
+    private class LoopExitTranslator extends TreeTranslator {
+        @Override
+        public void visitContinue(JCContinue tree) {
+            if (tree.label == block.loopLabel) {
+                result = treeMaker.Return(createResume());
+                return;
+            }
+
+            super.visitContinue(tree);
+        }
+
+        @Override
+        public void visitBreak(JCBreak tree) {
+            if (tree.label == block.loopLabel) {
+                result = treeMaker.Return(createResume());
+                return;
+            }
+
+            super.visitBreak(tree);
+        }
+
+        @Override
+        public void visitLambda(JCLambda tree) {
+            result = tree;
+        }
+
+        @Override
+        public void visitClassDef(JCClassDecl tree) {
+            result = tree;
+        }
+    }
+}
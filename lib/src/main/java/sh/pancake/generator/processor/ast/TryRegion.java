@@ -0,0 +1,66 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast;
+
+import java.util.ArrayList;
+
+import javax.annotation.Nullable;
+
+import com.sun.tools.javac.tree.JCTree.*;
+import com.sun.tools.javac.util.List;
+import com.sun.tools.javac.util.Name;
+
+import lombok.AllArgsConstructor;
+
+/**
+ * Protected states of a try statement.
+ * Exception thrown while state field is in the region is dispatched to its handlers by catch of generator loop.
+ */
+public class TryRegion {
+    @Nullable
+    public final TryRegion parent;
+    public final ArrayList<Handler> handlers;
+
+    public TryRegion(@Nullable TryRegion parent) {
+        this.parent = parent;
+        handlers = new ArrayList<>();
+    }
+
+    /**
+     * Handlers tried in order, up to the first one catching every exception
+     */
+    public ArrayList<Handler> dispatchOrder() {
+        ArrayList<Handler> order = new ArrayList<>();
+
+        for (TryRegion region = this; region != null; region = region.parent) {
+            for (Handler handler : region.handlers) {
+                order.add(handler);
+
+                if (handler.types.isEmpty()) {
+                    return order;
+                }
+            }
+        }
+
+        return order;
+    }
+
+    @AllArgsConstructor
+    public static class Handler {
+        /**
+         * Exception types caught by the handler, empty if it catches every exception
+         */
+        public final List<JCExpression> types;
+
+        /**
+         * Field exception is stored into before entering handler state
+         */
+        public final Name name;
+
+        @Nullable
+        public GeneratorState state;
+    }
+}
@@ -5,12 +5,15 @@
  */
 package sh.pancake.generator.processor.ast.visitor;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.function.Consumer;
 
 import javax.annotation.Nullable;
 
+import com.sun.tools.javac.code.BoundKind;
 import com.sun.tools.javac.code.Flags;
 import com.sun.tools.javac.code.TypeTag;
 import com.sun.tools.javac.tree.JCTree;
@@ -31,12 +34,20 @@ import sh.pancake.generator.processor.ast.Constants;
 import sh.pancake.generator.processor.ast.NameMapper;
 import sh.pancake.generator.processor.ast.GeneratorBlock;
 import sh.pancake.generator.processor.ast.GeneratorState;
+import sh.pancake.generator.processor.ast.GeneratorOptimizer;
+import sh.pancake.generator.processor.ast.GeneratorStats;
+import sh.pancake.generator.processor.ast.LivenessAnalyzer;
+import sh.pancake.generator.processor.ast.ResultKind;
+import sh.pancake.generator.processor.ast.SlotAllocator;
+import sh.pancake.generator.processor.ast.TryRegion;
+import sh.pancake.generator.processor.ast.TryRegion.Handler;
 
 public class GeneratorTransformer {
     private final TreeMaker treeMaker;
     private final Names names;
     private final Log log;
     private final NameMapper nameMapper;
+    private final GeneratorStats stats;
 
     private final JCModifiers internalModifiers;
 
@@ -48,15 +59,37 @@ public class GeneratorTransformer {
     private StepTag defaultBreak;
     @Nullable
     private StepTag defaultContinue;
+    @Nullable
+    private Label pendingLabel;
+
+    /**
+     * Depth of catch handlers being transformed, states created inside of them are cold
+     */
+    private int coldDepth;
+
+    @Nullable
+    private TryRegion region;
+
+    /**
+     * Finally blocks enclosing current statement, innermost last
+     */
+    private final ArrayList<Finally> finallies;
+
+    /**
+     * Number of finally blocks enclosing each break, continue and return target
+     */
+    private final Map<StepTag, Integer> exitDepth;
 
+    private final TransformChecker checker;
     private final Inner inner;
 
     private GeneratorTransformer(TreeMaker treeMaker, Names names, Log log, NameMapper nameMapper,
-            JCExpression retType) {
+            GeneratorStats stats, JCVariableDecl resultField, ResultKind resultKind) {
         this.treeMaker = treeMaker;
         this.names = names;
         this.log = log;
         this.nameMapper = nameMapper;
+        this.stats = stats;
 
         internalModifiers = treeMaker.Modifiers(Flags.PRIVATE);
 
@@ -66,40 +99,116 @@ public class GeneratorTransformer {
                         nameMapper.map(Constants.GENERATOR_STATE),
                         treeMaker.TypeIdent(TypeTag.INT),
                         treeMaker.Literal(TypeTag.INT, Constants.GENERATOR_STEP_START)),
-                retType,
+                resultField,
+                resultKind,
                 nameMapper.map(Constants.GENERATOR_LOOP));
         current = block.nextState().statements;
 
         labelMap = new HashMap<>();
 
+        finallies = new ArrayList<>();
+        exitDepth = new IdentityHashMap<>();
+
+        checker = new TransformChecker();
         inner = new Inner();
     }
 
-    public static GeneratorTransformer createRoot(Context cx, NameMapper nameMapper, JCExpression retType) {
+    /**
+     * Creates transformer of async generator returning future, state machine yields futures it awaits
+     */
+    public static GeneratorTransformer createAsync(Context cx, NameMapper nameMapper, JCExpression valueType) {
+        TreeMaker treeMaker = TreeMaker.instance(cx);
+        Names names = Names.instance(cx);
+        Log log = Log.instance(cx);
+
+        JCVariableDecl resultField = treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE),
+                nameMapper.map(Constants.GENERATOR_RESULT), createFutureType(treeMaker, names), null);
+
+        GeneratorTransformer transformer = new GeneratorTransformer(treeMaker, names, log, nameMapper,
+                new GeneratorStats(), resultField, ResultKind.OBJECT);
+        transformer.block.useReturnValue(treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE),
+                nameMapper.map(Constants.GENERATOR_VALUE), valueType, null));
+
+        return transformer;
+    }
+
+    /**
+     * Creates transformer of bidirectional generator, step used as expression resumes with value sent to it
+     */
+    public static GeneratorTransformer createCoroutine(Context cx, NameMapper nameMapper, JCExpression retType,
+            JCExpression sentType) {
+        TreeMaker treeMaker = TreeMaker.instance(cx);
+
+        GeneratorTransformer transformer = createRoot(cx, nameMapper, retType, ResultKind.OBJECT);
+        transformer.block.useSentValue(treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE),
+                nameMapper.map(Constants.GENERATOR_SENT), sentType, null));
+
+        return transformer;
+    }
+
+    private static JCExpression createFutureType(TreeMaker treeMaker, Names names) {
+        return treeMaker.TypeApply(
+                TreeMakerUtil.createClassName(treeMaker, names, "java", "util", "concurrent", "CompletableFuture"),
+                List.of(treeMaker.Wildcard(treeMaker.TypeBoundKind(BoundKind.UNBOUND), null)));
+    }
+
+    public static GeneratorTransformer createRoot(Context cx, NameMapper nameMapper, JCExpression retType,
+            ResultKind resultKind) {
         TreeMaker treeMaker = TreeMaker.instance(cx);
         Names names = Names.instance(cx);
         Log log = Log.instance(cx);
 
-        return new GeneratorTransformer(treeMaker, names, log, nameMapper, retType);
+        JCVariableDecl resultField = treeMaker.VarDef(treeMaker.Modifiers(Flags.PRIVATE),
+                nameMapper.map(Constants.GENERATOR_RESULT), retType, null);
+
+        return new GeneratorTransformer(treeMaker, names, log, nameMapper, new GeneratorStats(), resultField,
+                resultKind);
     }
 
     public GeneratorBlock transform(JCStatement statement) {
+        // Copier moves position of tree maker, later trees must not start inside of the method body
+        int pos = treeMaker.pos;
         JCStatement copied = new TreeCopier<>(treeMaker).copy(statement);
+        treeMaker.at(pos);
         new VariableRemapper(nameMapper).translate(copied);
 
-        return transformInner(copied);
-    }
+        if (isAsync()) {
+            new SuspendChecker(log, Constants.GENERATOR_AWAIT).check(copied);
+        } else if (isCoroutine()) {
+            new SuspendChecker(log, Constants.GENERATOR_YIELD).check(copied);
+        }
 
-    private GeneratorBlock transformInner(JCStatement statement) {
-        inner.transform(statement);
+        checker.mark(copied);
+        inner.transform(copied);
+        if (copied instanceof JCBlock) {
+            // Body itself is not nested
+            stats.nestedBlocks--;
+        }
+
+        // Falling off the body finishes at its closing brace like an implicit return, copier does not keep it
+        if (statement instanceof JCBlock body) {
+            treeMaker.at(body.endpos);
+        }
 
         switchToNextState();
         current.add(createAssignStep(createStepTag(Constants.GENERATOR_STEP_FINISH)));
         current.add(treeMaker.Break(block.loopLabel));
+        treeMaker.at(pos);
+
+        int before = block.stateCount();
+        new GeneratorOptimizer(block).optimize();
+        stats.add(before, block.stateCount());
+
+        stats.localVariables += new LivenessAnalyzer(treeMaker, block).localize();
+        stats.sharedVariables += new SlotAllocator(treeMaker, block).allocate();
 
         return block;
     }
 
+    public GeneratorStats getStats() {
+        return stats;
+    }
+
     private void captureVariable(JCVariableDecl decl) {
         block.captureVariable(treeMaker.VarDef(internalModifiers, decl.name, decl.vartype, null));
     }
@@ -114,12 +223,6 @@ public class GeneratorTransformer {
         }
 
         consumer.accept(decl);
-
-        if (decl.vartype instanceof JCPrimitiveTypeTree) {
-            return;
-        }
-
-        current.add(treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(decl.name), treeMaker.Literal(TypeTag.BOT, null))));
     }
 
     private JCExpressionStatement createAssignStep(StepTag tag) {
@@ -141,28 +244,121 @@ public class GeneratorTransformer {
         return StepTag.create(treeMaker, id);
     }
 
+    /**
+     * Creates target of break or continue, jumps to it from inside of a try run finally blocks in between first
+     */
+    private StepTag createExitTag(int id) {
+        StepTag tag = createStepTag(id);
+        exitDepth.put(tag, finallies.size());
+        return tag;
+    }
+
+    private List<JCStatement> createFinish() {
+        return List.of(
+                createAssignStep(createStepTag(Constants.GENERATOR_STEP_FINISH)),
+                treeMaker.Break(block.loopLabel));
+    }
+
+    private List<JCStatement> createExit(StepTag target) {
+        int depth = exitDepth.getOrDefault(target, 0);
+        if (depth >= finallies.size()) {
+            return isFinish(target) ? createFinish() : createJump(target);
+        }
+
+        // Innermost finally runs first, it takes the same exit again at its end
+        Finally fin = finallies.get(finallies.size() - 1);
+        return createJump(fin.start).prepend(treeMaker.Exec(treeMaker.Assign(
+                treeMaker.Ident(fin.exitName),
+                treeMaker.Literal(TypeTag.INT, addExit(fin, target)))));
+    }
+
+    private boolean isFinish(StepTag tag) {
+        return tag.getLiteral().value.equals(Constants.GENERATOR_STEP_FINISH);
+    }
+
+    private int addExit(Finally fin, StepTag target) {
+        int index = fin.exits.indexOf(target);
+        if (index != -1) {
+            return index + 1;
+        }
+
+        if (fin.exits.isEmpty()) {
+            block.captureVariable(treeMaker.VarDef(internalModifiers, fin.exitName,
+                    treeMaker.TypeIdent(TypeTag.INT), null));
+        }
+
+        fin.exits.add(target);
+        return fin.exits.size();
+    }
+
     private GeneratorState switchToNextState() {
         GeneratorState next = block.nextState();
+        next.cold = coldDepth > 0;
+        next.region = region;
         current = next.statements;
         return next;
     }
 
+    private List<JCStatement> createYield(JCExpression valueExpr) {
+        if (!block.resultKind.isPrimitive()) {
+            return List.of(treeMaker.Return(valueExpr));
+        }
+
+        return List.of(
+                treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(block.resultField.name), valueExpr)),
+                treeMaker.Return(treeMaker.Literal(TypeTag.BOOLEAN, 1)));
+    }
+
     private void step(JCExpression stepExpr) {
+        step(stepExpr, null);
+    }
+
+    /**
+     * Yields value, sent value is assigned to target after resuming if given
+     */
+    private void step(JCExpression stepExpr, @Nullable JCExpression target) {
         StepTag nextTag = createStepTag();
         current.add(createAssignStep(nextTag));
-        current.add(treeMaker.Return(stepExpr));
+        current.addAll(createYield(stepExpr));
 
         nextTag.setStep(switchToNextState().id);
+
+        if (target != null) {
+            current.add(treeMaker.Exec(treeMaker.Assign(target, treeMaker.Ident(block.getSentField().name))));
+        }
     }
 
     private void stepAll(JCExpression stepAllExpr) {
         StepTag bodyTag = createStepTag();
         current.add(createAssignStep(bodyTag));
-        withTempVar(treeMaker.TypeApply(
-                TreeMakerUtil.createClassName(treeMaker, names, "java", "util", "Iterator"),
-                List.of(block.resultType)),
-                stepAllExpr,
+
+        JCExpression iteratorType;
+        Name nextName;
+        if (block.resultKind.isPrimitive()) {
+            iteratorType = block.resultKind.createIteratorType(treeMaker, names);
+            nextName = names.fromString(block.resultKind.nextName);
+        } else {
+            iteratorType = treeMaker.TypeApply(
+                    TreeMakerUtil.createClassName(treeMaker, names, "java", "util", "Iterator"),
+                    List.of(block.resultType));
+            nextName = names.fromString("next");
+        }
+
+        // Overload of source is chosen by javac, trees are not attributed yet
+        JCExpression iteratorExpr = treeMaker.Apply(
+                List.nil(),
+                TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator", "Sources", "iterator"),
+                List.of(stepAllExpr));
+
+        withTempVar(iteratorType,
+                iteratorExpr,
                 (decl) -> {
+                    // Exception from delegated generator does not pass this one, so try regions keep forwarding.
+                    // Values sent to bidirectional generator are not forwarded, it keeps stepping itself.
+                    if (!block.resultKind.isPrimitive() && region == null && !isCoroutine()) {
+                        current.add(createDelegation(decl.name));
+                    }
+
                     GeneratorState next = switchToNextState();
                     bodyTag.setStep(next.id);
 
@@ -171,33 +367,110 @@ public class GeneratorTransformer {
                             List.nil());
 
                     JCMethodInvocation nextInv = treeMaker.Apply(List.nil(),
-                            treeMaker.Select(treeMaker.Ident(decl.name), names.fromString("next")),
+                            treeMaker.Select(treeMaker.Ident(decl.name), nextName),
                             List.nil());
 
                     current.add(
-                            treeMaker.If(hasNextInv, treeMaker.Block(0, List.of(treeMaker.Return(nextInv))), null));
+                            treeMaker.If(hasNextInv, treeMaker.Block(0, createYield(nextInv)), null));
                 });
     }
 
-    private JCStatement nested(JCStatement statement) {
-        GeneratorTransformer sub = new GeneratorTransformer(treeMaker, names, log, nameMapper, block.resultType);
-        GeneratorBlock subBlock = sub.transformInner(statement);
+    /**
+     * Hands iteration over to driving trampoline if iterator is a generator, state resumes after it finishes
+     */
+    private JCStatement createDelegation(Name iteratorName) {
+        if (block.getDelegateName() == null) {
+            block.useDelegation(nameMapper.map(Constants.GENERATOR_DELEGATE));
+        }
 
-        block.captureAll(subBlock.capturedList());
+        // Iterator has result type already, so only Delegating.of needs an unchecked cast
+        JCExpression delegateExpr = treeMaker.Apply(
+                List.nil(),
+                TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator", "Delegating", "of"),
+                List.of(treeMaker.Ident(iteratorName)));
+
+        return treeMaker.If(
+                treeMaker.Binary(Tag.NE,
+                        treeMaker.Parens(treeMaker.Assign(treeMaker.Ident(block.getDelegateName()), delegateExpr)),
+                        treeMaker.Literal(TypeTag.BOT, null)),
+                treeMaker.Return(treeMaker.Literal(TypeTag.BOT, null)),
+                null);
+    }
 
-        return subBlock.createNextStatement(treeMaker, names);
+    private boolean isAsync() {
+        return block.getReturnField() != null;
     }
 
-    private class Inner extends Visitor {
-        private final TransformChecker checker;
+    /**
+     * Suspends until future of stage completes, value of it is assigned to target if given.
+     * Future completed already is read without suspending.
+     */
+    private void await(JCExpression stageExpr, @Nullable JCExpression target) {
+        JCExpression futureExpr = treeMaker.Apply(
+                List.nil(),
+                treeMaker.Select(stageExpr, names.fromString("toCompletableFuture")),
+                List.nil());
+
+        withTempVar(createFutureType(treeMaker, names), futureExpr, (decl) -> {
+            StepTag resumeTag = createStepTag();
+            current.add(createAssignStep(resumeTag));
+            current.add(treeMaker.If(
+                    treeMaker.Unary(Tag.NOT, treeMaker.Apply(
+                            List.nil(),
+                            treeMaker.Select(treeMaker.Ident(decl.name), names.fromString("isDone")),
+                            List.nil())),
+                    treeMaker.Return(treeMaker.Ident(decl.name)),
+                    null));
+
+            resumeTag.setStep(switchToNextState().id);
+
+            // Rethrows exception future completed with, so it reaches catch blocks of generator
+            JCExpression valueExpr = treeMaker.Apply(
+                    List.nil(),
+                    TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator", "AsyncTask",
+                            "valueOf"),
+                    List.of(treeMaker.Ident(decl.name)));
+
+            current.add(treeMaker.Exec(target != null ? treeMaker.Assign(target, valueExpr) : valueExpr));
+        });
+    }
+
+    private boolean isCoroutine() {
+        return block.getSentField() != null;
+    }
+
+    @Nullable
+    private JCExpression awaitedStage(@Nullable JCExpression expr) {
+        return isAsync() ? suspendArgument(expr, Constants.GENERATOR_AWAIT) : null;
+    }
+
+    /**
+     * Value stepped by step used as expression of bidirectional generator
+     */
+    @Nullable
+    private JCExpression steppedValue(@Nullable JCExpression expr) {
+        return isCoroutine() ? suspendArgument(expr, Constants.GENERATOR_YIELD) : null;
+    }
 
-        public Inner() {
-            checker = new TransformChecker();
+    @Nullable
+    private JCExpression suspendArgument(@Nullable JCExpression expr, String method) {
+        if (expr instanceof JCMethodInvocation methodInv && methodInv.args.size() == 1
+                && method.equals(methodInv.meth.toString())) {
+            return methodInv.args.head;
         }
 
+        return null;
+    }
+
+    private class Inner extends Visitor {
         public void transform(JCStatement statement) {
-            if (checker.shouldTransform(statement)) {
+            // Declarations are always captured, state may change before their scope ends
+            if (statement instanceof JCVariableDecl || checker.shouldTransform(statement)) {
+                // Trees replacing the statement keep its line, so line number table points at original source
+                int pos = treeMaker.pos;
+                treeMaker.at(statement.pos);
                 statement.accept(this);
+                treeMaker.at(pos);
             } else {
                 current.add(statement);
             }
@@ -224,39 +497,50 @@ public class GeneratorTransformer {
             endTag.setStep(switchToNextState().id);
         }
 
-        private void doConditionalLoop(JCExpression cond, JCStatement body, boolean deferredCond) {
+        private void doConditionalLoop(JCExpression cond, JCStatement body, List<JCStatement> step,
+                boolean deferredCond) {
+            Label label = pendingLabel;
+            pendingLabel = null;
+
             StepTag bodyTag = createStepTag();
 
-            StepTag nextTag = createStepTag();
-            StepTag endTag = createStepTag();
-            if (defaultContinue == null) {
-                defaultContinue = nextTag;
-            }
+            StepTag continueTag = createExitTag(-1);
+            StepTag condTag = createStepTag();
+            StepTag endTag = createExitTag(-1);
 
-            if (defaultBreak == null) {
-                defaultBreak = endTag;
-            }
+            StepTag prevContinue = defaultContinue;
+            StepTag prevBreak = defaultBreak;
+            defaultContinue = continueTag;
+            defaultBreak = endTag;
 
             if (!deferredCond) {
-                current.addAll(createJump(nextTag));
+                current.addAll(createJump(condTag));
             }
 
             bodyTag.setStep(switchToNextState().id);
             body.accept(this);
 
-            nextTag.setStep(switchToNextState().id);
+            GeneratorState continueState = switchToNextState();
+            continueTag.setStep(continueState.id);
+            if (label != null) {
+                label.start.setStep(continueState.id);
+            }
+
+            for (JCStatement statement : step) {
+                transform(statement);
+            }
+
+            condTag.setStep(switchToNextState().id);
+            int pos = treeMaker.pos;
+            treeMaker.at(cond.pos);
             current.add(treeMaker.If(cond,
                     treeMaker.Block(0, createJump(bodyTag)), null));
+            treeMaker.at(pos);
 
             endTag.setStep(switchToNextState().id);
 
-            if (defaultContinue == nextTag) {
-                defaultContinue = null;
-            }
-
-            if (defaultBreak == endTag) {
-                defaultBreak = null;
-            }
+            defaultContinue = prevContinue;
+            defaultBreak = prevBreak;
         }
 
         @Override
@@ -281,7 +565,7 @@ public class GeneratorTransformer {
 
                         doConditionalLoop(hasNextInv, treeMaker.Block(0, List.of(
                                 treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(that.var.name), nextInv)),
-                                that.body)), false);
+                                that.body)), List.nil(), false);
                     });
         }
 
@@ -291,51 +575,54 @@ public class GeneratorTransformer {
                 transform(statement);
             }
 
-            ListBuffer<JCStatement> buf = new ListBuffer<>();
-            if (that.body != null) {
-                buf.append(that.body);
-            }
+            JCStatement body = that.body != null ? that.body : treeMaker.Skip();
+            JCExpression cond = that.cond != null ? that.cond : treeMaker.Literal(TypeTag.BOOLEAN, 1);
 
-            buf.addAll(that.step);
-
-            doConditionalLoop(that.cond, treeMaker.Block(0, buf.toList()), false);
+            doConditionalLoop(cond, body, List.convert(JCStatement.class, that.step), false);
         }
 
         @Override
         public void visitWhileLoop(JCWhileLoop that) {
-            doConditionalLoop(that.cond, that.body, false);
+            doConditionalLoop(that.cond, that.body, List.nil(), false);
         }
 
         @Override
         public void visitBlock(JCBlock that) {
-            ListBuffer<JCStatement> cleanupBuffer = new ListBuffer<>();
+            stats.nestedBlocks++;
 
             for (JCStatement statement : that.stats) {
-                if (statement instanceof JCVariableDecl varDecl) {
-                    statement.accept(this);
-
-                    if (varDecl.vartype instanceof JCPrimitiveTypeTree) {
-                        continue;
-                    }
-
-                    cleanupBuffer.add(treeMaker
-                            .Exec(treeMaker.Assign(treeMaker.Ident(varDecl.name),
-                                    treeMaker.Literal(TypeTag.BOT, null))));
-                    continue;
-                }
-
                 transform(statement);
             }
-
-            current.addAll(cleanupBuffer);
         }
 
         @Override
         public void visitExec(JCExpressionStatement that) {
+            JCExpression stage = awaitedStage(that.expr);
+            if (stage != null) {
+                await(stage, null);
+                return;
+            }
+
+            if (that.expr instanceof JCAssign assign) {
+                if ((stage = awaitedStage(assign.rhs)) != null) {
+                    await(stage, assign.lhs);
+                    return;
+                }
+
+                JCExpression value = steppedValue(assign.rhs);
+                if (value != null) {
+                    step(value, assign.lhs);
+                    return;
+                }
+            }
+
             if (that.expr instanceof JCMethodInvocation methodInv && methodInv.args.size() == 1) {
                 String method = methodInv.meth.toString();
 
-                if (Constants.GENERATOR_YIELD.equals(method)) {
+                if (isAsync() && (Constants.GENERATOR_YIELD.equals(method)
+                        || Constants.GENERATOR_YIELD_ALL.equals(method))) {
+                    log.rawError(that.pos, "Async generator returning future cannot step");
+                } else if (Constants.GENERATOR_YIELD.equals(method)) {
                     step(methodInv.args.head);
                 } else if (Constants.GENERATOR_YIELD_ALL.equals(method)) {
                     stepAll(methodInv.args.head);
@@ -350,27 +637,33 @@ public class GeneratorTransformer {
         @Override
         public void visitReturn(JCReturn that) {
             if (that.expr != null) {
-                log.rawError(that.pos, "Generator cannot return with value");
-                return;
+                if (!isAsync()) {
+                    log.rawError(that.pos, "Generator cannot return with value");
+                    return;
+                }
+
+                current.add(treeMaker.Exec(treeMaker.Assign(
+                        treeMaker.Ident(block.getReturnField().name), that.expr)));
             }
 
-            current.add(createAssignStep(createStepTag(Constants.GENERATOR_STEP_FINISH)));
-            current.add(treeMaker.Break(block.loopLabel));
+            current.addAll(createExit(createStepTag(Constants.GENERATOR_STEP_FINISH)));
         }
 
         @Override
         public void visitDoLoop(JCDoWhileLoop that) {
-            doConditionalLoop(that.cond, that.body, true);
+            doConditionalLoop(that.cond, that.body, List.nil(), true);
         }
 
         @Override
         public void visitLabelled(JCLabeledStatement that) {
-            Label label = new Label(createStepTag(switchToNextState().id), createStepTag());
+            Label label = new Label(createExitTag(switchToNextState().id), createExitTag(-1));
             Name name = that.label;
 
             labelMap.put(name, label);
 
+            pendingLabel = label;
             that.body.accept(this);
+            pendingLabel = null;
 
             GeneratorState currentState = block.currentState();
             if (currentState != null) {
@@ -399,7 +692,14 @@ public class GeneratorTransformer {
         @Override
         public void visitVarDef(JCVariableDecl that) {
             captureVariable(that);
-            if (that.init != null) {
+
+            JCExpression stage = awaitedStage(that.init);
+            JCExpression value = steppedValue(that.init);
+            if (stage != null) {
+                await(stage, treeMaker.Ident(that.name));
+            } else if (value != null) {
+                step(value, treeMaker.Ident(that.name));
+            } else if (that.init != null) {
                 current.add(treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(that.name), that.init)));
             }
         }
@@ -407,7 +707,8 @@ public class GeneratorTransformer {
         @Override
         public void visitSwitch(JCSwitch that) {
             ListBuffer<JCStatement> buf = current;
-            StepTag endTag = defaultBreak = createStepTag();
+            StepTag prevBreak = defaultBreak;
+            StepTag endTag = defaultBreak = createExitTag(-1);
 
             ListBuffer<JCCase> cases = new ListBuffer<>();
 
@@ -442,7 +743,7 @@ public class GeneratorTransformer {
             GeneratorState end = switchToNextState();
             endTag.setStep(end.id);
 
-            defaultBreak = null;
+            defaultBreak = prevBreak;
         }
 
         @Override
@@ -459,7 +760,7 @@ public class GeneratorTransformer {
             if (that.label != null) {
                 Label label = labelMap.get(that.label);
                 if (label != null) {
-                    current.addAll(createJump(label.start));
+                    current.addAll(createExit(label.start));
                 }
             } else {
                 if (defaultContinue == null) {
@@ -467,7 +768,7 @@ public class GeneratorTransformer {
                     return;
                 }
 
-                current.addAll(createJump(defaultContinue));
+                current.addAll(createExit(defaultContinue));
             }
         }
 
@@ -476,7 +777,7 @@ public class GeneratorTransformer {
             if (that.label != null) {
                 Label label = labelMap.get(that.label);
                 if (label != null) {
-                    current.addAll(createJump(label.end));
+                    current.addAll(createExit(label.end));
                 }
             } else {
                 if (defaultBreak == null) {
@@ -484,7 +785,7 @@ public class GeneratorTransformer {
                     return;
                 }
 
-                current.addAll(createJump(defaultBreak));
+                current.addAll(createExit(defaultBreak));
             }
         }
 
@@ -495,101 +796,161 @@ public class GeneratorTransformer {
 
         @Override
         public void visitTry(JCTry that) {
-            ListBuffer<JCExpression> resourceBuf = new ListBuffer<>();
-            for (JCTree resource : that.resources) {
-                if (resource instanceof JCVariableDecl decl) {
-                    decl.accept(this);
-                    resourceBuf.add(treeMaker.Ident(decl.name));
-                } else if (resource instanceof JCExpression expr) {
-                    resourceBuf.add(expr);
-                } else {
-                    log.rawError(resource.pos, "Invalid resource in try statement");
-                    return;
-                }
+            if (that.resources.isEmpty()) {
+                doTry(that.body, that.catchers, that.finalizer, null);
+                return;
             }
 
-            current.add(createAssignStep(createStepTag(switchToNextState().id)));
+            if (that.catchers.nonEmpty() || that.finalizer != null) {
+                // Resources are closed before catch and finally blocks run
+                doTry(treeMaker.Try(that.resources, that.body, List.nil(), null), that.catchers, that.finalizer,
+                        null);
+                return;
+            }
 
-            JCTry tryStat = treeMaker.Try(null, null, null);
-            StepTag finallyTag = createStepTag();
+            JCTree resource = that.resources.head;
+            JCExpression resourceExpr;
+            if (resource instanceof JCVariableDecl decl) {
+                decl.accept(this);
+                resourceExpr = treeMaker.Ident(decl.name);
+            } else if (resource instanceof JCExpression expr) {
+                resourceExpr = expr;
+            } else {
+                log.rawError(resource.pos, "Invalid resource in try statement");
+                return;
+            }
 
-            current.add(tryStat);
-            current.addAll(createJump(finallyTag));
+            JCStatement body = that.body;
+            if (that.resources.tail.nonEmpty()) {
+                body = treeMaker.Try(that.resources.tail, that.body, List.nil(), null);
+            }
+
+            doTry(body, List.nil(), null, resourceExpr);
+        }
 
-            JCBlock bodyBlock = treeMaker.Block(0, List.of(nested(that.body)));
-            for (JCExpression resource : resourceBuf) {
-                bodyBlock = treeMaker.Block(0, List.of(treeMaker.Try(
-                        bodyBlock,
-                        List.of(createResourceCatch(resource)),
-                        null),
-                        createResourceClose(resource)));
+        /**
+         * Lowers try statement into states of the same block.
+         * Body states are protected by a region entering catch handlers, finally runs in its own states on every
+         * way out of body and catch handlers. Resource is closed in place of finally block if given.
+         */
+        private void doTry(JCStatement body, List<JCCatch> catchers, @Nullable JCBlock finalizer,
+                @Nullable JCExpression resource) {
+            block.useExceptionTable();
+
+            TryRegion outer = region;
+            ListBuffer<JCStatement> entry = current;
+            StepTag endTag = createStepTag();
+
+            Finally fin = null;
+            if (finalizer != null || resource != null) {
+                JCVariableDecl thrownDecl = treeMaker.VarDef(internalModifiers,
+                        nameMapper.map(Constants.GENERATOR_THROWN),
+                        TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "Throwable"),
+                        null);
+                block.captureVariable(thrownDecl);
+
+                fin = new Finally(createStepTag(), thrownDecl.name, nameMapper.map(Constants.GENERATOR_EXIT),
+                        new ArrayList<>());
+                finallies.add(fin);
+
+                region = new TryRegion(region);
+                region.handlers.add(new Handler(List.nil(), fin.thrownName, null));
             }
-            tryStat.body = bodyBlock;
+            TryRegion finallyRegion = region;
+            StepTag exitTag = fin != null ? fin.start : endTag;
+
+            if (catchers.nonEmpty()) {
+                region = new TryRegion(region);
+
+                for (JCCatch catcher : catchers) {
+                    List<JCExpression> types;
+                    JCExpression fieldType;
+                    if (catcher.param.vartype instanceof JCTypeUnion union) {
+                        // Field cannot have union type, cast is done by each alternative
+                        types = union.alternatives;
+                        fieldType = TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "Throwable");
+                    } else {
+                        types = List.of(catcher.param.vartype);
+                        fieldType = catcher.param.vartype;
+                    }
 
-            ListBuffer<JCCatch> catcherBuffer = new ListBuffer<>();
-            for (JCCatch catcher : that.catchers) {
-                StepTag catchStep = createStepTag();
-                captureVariable(catcher.param);
+                    block.captureVariable(treeMaker.VarDef(internalModifiers, catcher.param.name, fieldType, null));
+                    region.handlers.add(new Handler(types, catcher.param.name, null));
+                }
+            }
+            TryRegion bodyRegion = region;
+
+            StepTag bodyTag = createStepTag(switchToNextState().id);
+            transform(body);
+            current.addAll(createJump(exitTag));
+
+            region = finallyRegion;
+            coldDepth++;
+            for (int i = 0; i < catchers.size(); i++) {
+                bodyRegion.handlers.get(i).state = switchToNextState();
+                transform(catchers.get(i).body);
+                current.addAll(createJump(exitTag));
+            }
+            coldDepth--;
 
-                JCExpression capturedException = treeMaker.Select(treeMaker.Ident(names._this), catcher.param.name);
+            region = outer;
+            if (fin != null) {
+                finallies.remove(finallies.size() - 1);
 
-                catcherBuffer.add(treeMaker.Catch(catcher.param, treeMaker.Block(0, createJump(catchStep).prepend(
-                        treeMaker.Exec(treeMaker.Assign(capturedException, treeMaker.Ident(catcher.param.name)))))));
+                GeneratorState finallyState = switchToNextState();
+                fin.start.setStep(finallyState.id);
+                finallyRegion.handlers.get(0).state = finallyState;
 
-                catchStep.setStep(switchToNextState().id);
-                transform(catcher.body);
+                if (resource != null) {
+                    current.add(createResourceClose(resource, fin.thrownName));
+                } else {
+                    transform(finalizer);
+                }
 
-                switchToNextState();
-                current.add(
-                        treeMaker.Exec(treeMaker.Assign(capturedException, treeMaker.Literal(TypeTag.BOT, null))));
-                current.addAll(createJump(finallyTag));
+                current.add(treeMaker.If(
+                        treeMaker.Binary(Tag.NE, treeMaker.Ident(fin.thrownName),
+                                treeMaker.Literal(TypeTag.BOT, null)),
+                        treeMaker.Block(0, List.of(treeMaker.Throw(createSneakyThrow(fin.thrownName)))),
+                        null));
+
+                for (int i = 0; i < fin.exits.size(); i++) {
+                    StepTag target = fin.exits.get(i);
+
+                    current.add(treeMaker.If(
+                            treeMaker.Binary(Tag.EQ, treeMaker.Ident(fin.exitName),
+                                    treeMaker.Literal(TypeTag.INT, i + 1)),
+                            treeMaker.Block(0, createExit(target)),
+                            null));
+                }
+
+                // Fields may hold values of previous run if finally block completed abruptly
+                entry.add(treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(fin.thrownName),
+                        treeMaker.Literal(TypeTag.BOT, null))));
+                if (!fin.exits.isEmpty()) {
+                    entry.add(treeMaker.Exec(treeMaker.Assign(treeMaker.Ident(fin.exitName),
+                            treeMaker.Literal(TypeTag.INT, 0))));
+                }
             }
-            tryStat.catchers = catcherBuffer.toList();
+            entry.add(createAssignStep(bodyTag));
 
-            finallyTag.setStep(switchToNextState().id);
+            endTag.setStep(switchToNextState().id);
         }
 
-        private JCStatement createResourceClose(JCExpression resource) {
-            return treeMaker.Exec(treeMaker.Apply(
+        private JCExpression createSneakyThrow(Name name) {
+            return treeMaker.Apply(
                     List.nil(),
-                    treeMaker.Select(
-                            treeMaker.TypeCast(
-                                    TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "AutoCloseable"),
-                                    resource),
-                            names.close),
-                    List.nil()));
-        }
-
-        private JCCatch createResourceCatch(JCExpression resource) {
-            JCExpression throwableType = TreeMakerUtil.createClassName(treeMaker, names, "java", "lang", "Throwable");
-
-            JCVariableDecl throwableDecl = treeMaker.VarDef(
-                    treeMaker.Modifiers(0),
-                    nameMapper.map("t"),
-                    throwableType,
-                    null);
-
-            JCVariableDecl closeThrowableDecl = treeMaker.VarDef(
-                    treeMaker.Modifiers(0),
-                    nameMapper.map("t"),
-                    throwableType,
-                    null);
-
-            JCCatch catchCloseSuppressed = treeMaker.Catch(closeThrowableDecl, treeMaker.Block(0, List.of(
-                    treeMaker.Exec(treeMaker.Apply(
-                            List.nil(),
-                            treeMaker.Select(treeMaker.Ident(throwableDecl.name), names.addSuppressed),
-                            List.of(treeMaker.Ident(closeThrowableDecl.name)))))));
+                    treeMaker.Ident(names.fromString(Constants.GENERATOR_INNER_THROW)),
+                    List.of(treeMaker.Ident(name)));
+        }
+
+        private JCStatement createResourceClose(JCExpression resource, Name thrownName) {
+            block.useResourceClose();
 
-            return treeMaker.Catch(
-                    throwableDecl,
-                    treeMaker.Block(0, List.of(
-                            treeMaker.If(treeMaker.Binary(Tag.NE, resource, treeMaker.Literal(TypeTag.BOT, null)),
-                                    treeMaker.Block(0, List.of(
-                                            treeMaker.Try(treeMaker.Block(0, List.of(createResourceClose(resource))),
-                                                    List.of(catchCloseSuppressed), null),
-                                            treeMaker.Throw(treeMaker.Ident(throwableDecl.name)))),
-                                    null))));
+            // Shared in one method of generator class
+            return treeMaker.Exec(treeMaker.Apply(
+                    List.nil(),
+                    treeMaker.Ident(names.fromString(Constants.GENERATOR_INNER_CLOSE)),
+                    List.of(resource, treeMaker.Ident(thrownName))));
         }
 
         @Override
@@ -603,4 +964,20 @@ public class GeneratorTransformer {
         public final StepTag start;
         public final StepTag end;
     }
+
+    @AllArgsConstructor
+    private static class Finally {
+        public final StepTag start;
+
+        /**
+         * Field holding exception to rethrow after finally block, null if it is entered normally
+         */
+        public final Name thrownName;
+
+        /**
+         * Field holding index of exit to take after finally block, 0 if it falls through
+         */
+        public final Name exitName;
+        public final ArrayList<StepTag> exits;
+    }
 }
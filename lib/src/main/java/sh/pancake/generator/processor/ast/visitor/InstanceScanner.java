@@ -0,0 +1,91 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast.visitor;
+
+import java.util.Set;
+
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.tree.JCTree.*;
+import com.sun.tools.javac.util.List;
+import com.sun.tools.javac.util.Name;
+import com.sun.tools.javac.util.Names;
+
+import sh.pancake.generator.processor.ast.Constants;
+
+/**
+ * Checks if generator body needs enclosing instance.
+ * Trees are not attributed, so any simple name matching an instance member counts even if it is shadowed by a local.
+ */
+public class InstanceScanner extends TreeScanner {
+    private final Names names;
+
+    /**
+     * Names of instance members and type parameters of enclosing class
+     */
+    private final Set<Name> instanceNames;
+
+    private boolean usesInstance;
+
+    public InstanceScanner(Names names, Set<Name> instanceNames) {
+        this.names = names;
+        this.instanceNames = instanceNames;
+    }
+
+    public boolean usesInstance(JCTree tree) {
+        usesInstance = false;
+        scan(tree);
+        return usesInstance;
+    }
+
+    public boolean usesInstance(List<? extends JCTree> trees) {
+        usesInstance = false;
+        scan(trees);
+        return usesInstance;
+    }
+
+    @Override
+    public void scan(JCTree tree) {
+        if (!usesInstance) {
+            super.scan(tree);
+        }
+    }
+
+    @Override
+    public void visitApply(JCMethodInvocation tree) {
+        // step, stepAll and await are replaced, they are not instance methods after transform.
+        // step of coroutine is an expression as well as await.
+        if (tree.args.size() == 1) {
+            String method = tree.meth.toString();
+
+            if (Constants.GENERATOR_YIELD.equals(method) || Constants.GENERATOR_YIELD_ALL.equals(method)
+                    || Constants.GENERATOR_AWAIT.equals(method)) {
+                scan(tree.args);
+                return;
+            }
+        }
+
+        super.visitApply(tree);
+    }
+
+    @Override
+    public void visitIdent(JCIdent tree) {
+        if (tree.name == names._this || tree.name == names._super || instanceNames.contains(tree.name)) {
+            usesInstance = true;
+        }
+    }
+
+    @Override
+    public void visitSelect(JCFieldAccess tree) {
+        // Outer.this and Outer.super
+        if (tree.name == names._this || tree.name == names._super) {
+            usesInstance = true;
+            return;
+        }
+
+        super.visitSelect(tree);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast.visitor;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.tree.JCTree.*;
+import com.sun.tools.javac.util.List;
+import com.sun.tools.javac.util.Name;
+
+/**
+ * Finds parameters assigned in generator body.
+ * Trees are not attributed, so any simple name matching a parameter counts even if it is shadowed by a member.
+ */
+public class ParamAssignScanner extends TreeScanner {
+    private final Set<Name> paramNames;
+
+    private final Set<Name> assigned;
+
+    public ParamAssignScanner(List<JCVariableDecl> params) {
+        paramNames = new HashSet<>();
+        for (JCVariableDecl param : params) {
+            paramNames.add(param.name);
+        }
+
+        assigned = new HashSet<>();
+    }
+
+    public Set<Name> scanAssigned(JCTree tree) {
+        assigned.clear();
+        scan(tree);
+        return new HashSet<>(assigned);
+    }
+
+    private void checkTarget(JCExpression target) {
+        if (target instanceof JCIdent ident && paramNames.contains(ident.name)) {
+            assigned.add(ident.name);
+        }
+    }
+
+    @Override
+    public void visitAssign(JCAssign tree) {
+        checkTarget(tree.lhs);
+        super.visitAssign(tree);
+    }
+
+    @Override
+    public void visitAssignop(JCAssignOp tree) {
+        checkTarget(tree.lhs);
+        super.visitAssignop(tree);
+    }
+
+    @Override
+    public void visitUnary(JCUnary tree) {
+        switch (tree.getTag()) {
+            case PREINC, PREDEC, POSTINC, POSTDEC -> checkTarget(tree.arg);
+            default -> {
+            }
+        }
+
+        super.visitUnary(tree);
+    }
+}
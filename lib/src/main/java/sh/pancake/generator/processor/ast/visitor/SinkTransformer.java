@@ -0,0 +1,77 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast.visitor;
+
+import com.sun.tools.javac.tree.TreeCopier;
+import com.sun.tools.javac.tree.TreeMaker;
+import com.sun.tools.javac.tree.TreeTranslator;
+import com.sun.tools.javac.tree.JCTree.*;
+import com.sun.tools.javac.util.List;
+import com.sun.tools.javac.util.Name;
+import com.sun.tools.javac.util.Names;
+
+import sh.pancake.generator.processor.TreeMakerUtil;
+import sh.pancake.generator.processor.ast.Constants;
+
+/**
+ * Compiles generator body into push style method.
+ * step(x) becomes sink.accept(x) and stepAll(it) passes sink to bulk method of it, so no state machine is needed.
+ */
+public class SinkTransformer extends TreeTranslator {
+    private final TreeMaker treeMaker;
+    private final Names names;
+
+    private final Name sinkName;
+
+    public SinkTransformer(TreeMaker treeMaker, Names names, Name sinkName) {
+        this.treeMaker = treeMaker;
+        this.names = names;
+        this.sinkName = sinkName;
+    }
+
+    public JCBlock transform(JCBlock body) {
+        // Copier moves position of tree maker, later trees must not start inside of the method body
+        int pos = treeMaker.pos;
+        JCBlock copied = new TreeCopier<>(treeMaker).copy(body);
+        treeMaker.at(pos);
+
+        JCBlock translated = translate(copied);
+        treeMaker.at(pos);
+
+        return translated;
+    }
+
+    @Override
+    public void visitExec(JCExpressionStatement that) {
+        if (that.expr instanceof JCMethodInvocation methodInv && methodInv.args.size() == 1) {
+            String method = methodInv.meth.toString();
+
+            if (Constants.GENERATOR_YIELD.equals(method)) {
+                that.expr = treeMaker.at(methodInv.pos).Apply(
+                        List.nil(),
+                        treeMaker.Select(treeMaker.Ident(sinkName), names.fromString("accept")),
+                        methodInv.args);
+                result = that;
+                return;
+            } else if (Constants.GENERATOR_YIELD_ALL.equals(method)) {
+                that.expr = treeMaker.at(methodInv.pos).Apply(
+                        List.nil(),
+                        TreeMakerUtil.createClassName(treeMaker, names, "sh", "pancake", "generator", "Sources",
+                                "forEach"),
+                        List.of(methodInv.args.head, treeMaker.Ident(sinkName)));
+                result = that;
+                return;
+            }
+        }
+
+        super.visitExec(that);
+    }
+
+    @Override
+    public void visitClassDef(JCClassDecl that) {
+        result = that;
+    }
+}
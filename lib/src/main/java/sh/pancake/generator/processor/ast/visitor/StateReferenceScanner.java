@@ -0,0 +1,105 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast.visitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.tree.JCTree.*;
+import com.sun.tools.javac.util.List;
+import com.sun.tools.javac.util.Name;
+
+import lombok.AllArgsConstructor;
+
+/**
+ * Collects every assignment of state literal to state field.
+ * Assignment directly followed by continue of generator loop is a jump, every other one is a resume point.
+ */
+public class StateReferenceScanner extends TreeScanner {
+    private final Name stateName;
+    private final Name loopLabel;
+
+    private final Set<JCAssign> jumps;
+    private ArrayList<StateReference> references;
+
+    public StateReferenceScanner(Name stateName, Name loopLabel) {
+        this.stateName = stateName;
+        this.loopLabel = loopLabel;
+
+        jumps = Collections.newSetFromMap(new IdentityHashMap<>());
+        references = new ArrayList<>();
+    }
+
+    public ArrayList<StateReference> scanStatements(List<JCStatement> statements) {
+        references = new ArrayList<>();
+        markJumps(statements);
+        scan(statements);
+        return references;
+    }
+
+    public boolean isStateAssign(JCStatement statement) {
+        return statement instanceof JCExpressionStatement exec
+                && exec.expr instanceof JCAssign assign
+                && assign.lhs instanceof JCIdent ident
+                && ident.name == stateName
+                && assign.rhs instanceof JCLiteral;
+    }
+
+    public boolean isLoopContinue(JCStatement statement) {
+        return statement instanceof JCContinue cont && cont.label == loopLabel;
+    }
+
+    public boolean isLoopBreak(JCStatement statement) {
+        return statement instanceof JCBreak brk && brk.label == loopLabel;
+    }
+
+    private void markJumps(List<JCStatement> statements) {
+        for (List<JCStatement> l = statements; l.nonEmpty() && l.tail.nonEmpty(); l = l.tail) {
+            if (isStateAssign(l.head) && isLoopContinue(l.tail.head)) {
+                jumps.add((JCAssign) ((JCExpressionStatement) l.head).expr);
+            }
+        }
+    }
+
+    @Override
+    public void visitBlock(JCBlock tree) {
+        markJumps(tree.stats);
+        super.visitBlock(tree);
+    }
+
+    @Override
+    public void visitCase(JCCase tree) {
+        markJumps(tree.stats);
+        super.visitCase(tree);
+    }
+
+    @Override
+    public void visitAssign(JCAssign tree) {
+        if (tree.lhs instanceof JCIdent ident && ident.name == stateName && tree.rhs instanceof JCLiteral literal) {
+            references.add(new StateReference(literal, jumps.contains(tree)));
+            return;
+        }
+
+        super.visitAssign(tree);
+    }
+
+    @Override
+    public void visitClassDef(JCClassDecl tree) {
+    }
+
+    @AllArgsConstructor
+    public static class StateReference {
+        public final JCLiteral literal;
+        public final boolean jump;
+
+        public int target() {
+            return (Integer) literal.value;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Created on Sun Oct 18 2026
+ *
+ * Copyright (c) storycraft. Licensed under the Apache Licence 2.0.
+ */
+package sh.pancake.generator.processor.ast.visitor;
+
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.tree.JCTree.*;
+import com.sun.tools.javac.util.Log;
+
+/**
+ * Reports calls of suspending method whose value generator cannot resume with.
+ * Call must be a statement, an initializer of variable or right side of assignment statement, outside of lambdas
+ * and classes.
+ */
+public class SuspendChecker extends TreeScanner {
+    private final Log log;
+
+    /**
+     * Name of suspending method, await or step
+     */
+    private final String method;
+
+    public SuspendChecker(Log log, String method) {
+        this.log = log;
+        this.method = method;
+    }
+
+    public void check(JCTree tree) {
+        scan(tree);
+    }
+
+    private boolean isSuspend(JCExpression expr) {
+        return expr instanceof JCMethodInvocation methodInv && methodInv.args.size() == 1
+                && method.equals(methodInv.meth.toString());
+    }
+
+    @Override
+    public void visitExec(JCExpressionStatement tree) {
+        if (isSuspend(tree.expr)) {
+            scan(((JCMethodInvocation) tree.expr).args);
+            return;
+        }
+
+        if (tree.expr instanceof JCAssign assign && isSuspend(assign.rhs)) {
+            scan(assign.lhs);
+            scan(((JCMethodInvocation) assign.rhs).args);
+            return;
+        }
+
+        super.visitExec(tree);
+    }
+
+    @Override
+    public void visitVarDef(JCVariableDecl tree) {
+        if (tree.init != null && isSuspend(tree.init)) {
+            scan(((JCMethodInvocation) tree.init).args);
+            return;
+        }
+
+        super.visitVarDef(tree);
+    }
+
+    @Override
+    public void visitApply(JCMethodInvocation tree) {
+        if (isSuspend(tree)) {
+            log.rawError(tree.pos, method + " must be a statement, variable initializer or assignment");
+        }
+
+        super.visitApply(tree);
+    }
+
+    @Override
+    public void visitLambda(JCLambda tree) {
+        new Nested().scan(tree.body);
+    }
+
+    @Override
+    public void visitClassDef(JCClassDecl tree) {
+        new Nested().scan(tree.defs);
+    }
+
+    /**
+     * Code running outside of generator, every await in it is reported
+     */
+    private class Nested extends TreeScanner {
+        @Override
+        public void visitApply(JCMethodInvocation tree) {
+            if (isSuspend(tree)) {
+                log.rawError(tree.pos, method + " cannot be used inside of lambda or class");
+            }
+
+            super.visitApply(tree);
+        }
+    }
+}
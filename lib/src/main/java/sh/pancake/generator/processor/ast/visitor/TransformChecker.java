@@ -5,67 +5,94 @@
  */
 package sh.pancake.generator.processor.ast.visitor;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.tree.TreeScanner;
 import com.sun.tools.javac.tree.JCTree.*;
 
 import sh.pancake.generator.processor.ast.Constants;
 
+/**
+ * Marks statements containing step, stepAll, await or statements leaving them, which must be transformed.
+ * Body is scanned once before transform, statements created during transform are scanned when they are checked.
+ */
 public class TransformChecker extends TreeScanner {
+    private final Set<JCStatement> scanned;
+    private final Set<JCStatement> transforming;
 
     private boolean transform;
 
-    public boolean shouldTransform(JCTree tree) {
+    public TransformChecker() {
+        scanned = Collections.newSetFromMap(new IdentityHashMap<>());
+        transforming = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    public void mark(JCTree tree) {
         transform = false;
         scan(tree);
-        return transform;
+    }
+
+    public boolean shouldTransform(JCStatement statement) {
+        if (!scanned.contains(statement)) {
+            mark(statement);
+        }
+
+        return transforming.contains(statement);
     }
 
     @Override
     public void scan(JCTree tree) {
-        if (transform) {
+        if (!(tree instanceof JCStatement statement)) {
+            super.scan(tree);
+            return;
+        }
+
+        if (scanned.contains(statement)) {
+            transform |= transforming.contains(statement);
             return;
         }
 
+        boolean outer = transform;
+        transform = false;
         super.scan(tree);
+
+        scanned.add(statement);
+        if (transform) {
+            transforming.add(statement);
+        }
+        transform |= outer;
     }
 
     @Override
     public void visitBreak(JCBreak tree) {
-        if (!transform) {
-            transform = true;
-        }
+        transform = true;
     }
 
     @Override
     public void visitContinue(JCContinue tree) {
-        if (!transform) {
-            transform = true;
-        }
+        transform = true;
     }
 
     @Override
     public void visitReturn(JCReturn tree) {
-        if (!transform) {
-            transform = true;
-        }
+        transform = true;
     }
 
     @Override
     public void visitThrow(JCThrow tree) {
-        if (!transform) {
-            transform = true;
-        }
+        transform = true;
     }
 
     @Override
     public void visitApply(JCMethodInvocation tree) {
         String method = tree.meth.toString();
 
-        if (tree.args.size() == 1 && (Constants.GENERATOR_YIELD.equals(method) || Constants.GENERATOR_YIELD_ALL.equals(method))) {
-            if (!transform) {
-                transform = true;
-            }
+        if (tree.args.size() == 1 && (Constants.GENERATOR_YIELD.equals(method) || Constants.GENERATOR_YIELD_ALL.equals(method)
+                || Constants.GENERATOR_AWAIT.equals(method))) {
+            transform = true;
             return;
         }
 
@@ -5,8 +5,9 @@
  */
 package sh.pancake.generator.processor.ast.visitor;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
 
 import javax.annotation.Nullable;
@@ -17,37 +18,54 @@ import com.sun.tools.javac.util.Name;
 
 import sh.pancake.generator.processor.ast.NameMapper;
 
+/**
+ * Renames every local variable to unique name.
+ * Bindings of a name are kept in a stack per name, so lookup does not depend on depth of scopes.
+ */
 public class VariableRemapper extends TreeTranslator {
     private final NameMapper nameMapper;
 
-    private final LinkedList<Map<Name, Name>> scopeVariableMap;
+    /**
+     * Mapped names of each variable name, innermost binding last
+     */
+    private final Map<Name, ArrayDeque<Name>> bindings;
+
+    /**
+     * Names declared in open scopes in order of declaration, popping a scope unbinds names declared after its mark
+     */
+    private final ArrayList<Name> declared;
+    private final ArrayDeque<Integer> scopeMarks;
 
     public VariableRemapper(NameMapper nameMapper) {
         this.nameMapper = nameMapper;
-        this.scopeVariableMap = new LinkedList<>();
+
+        bindings = new HashMap<>();
+        declared = new ArrayList<>();
+        scopeMarks = new ArrayDeque<>();
     }
 
     @Nullable
     private Name getConverted(Name name) {
-        for (Map<Name, Name> scope : (Iterable<Map<Name, Name>>) () -> scopeVariableMap.descendingIterator()) {
-            Name converted = scope.get(name);
-            if (converted != null) {
-                return converted;
-            }
-        }
-
-        return null;
+        ArrayDeque<Name> stack = bindings.get(name);
+        return stack != null ? stack.peekLast() : null;
     }
 
-    private Map<Name, Name> push() {
-        Map<Name, Name> map = new HashMap<>();
-        scopeVariableMap.add(map);
-        return map;
+    private void push() {
+        scopeMarks.addLast(declared.size());
     }
 
-    @Nullable
-    private Map<Name, Name> pop() {
-        return scopeVariableMap.pollLast();
+    private void pop() {
+        int mark = scopeMarks.pollLast();
+
+        for (int i = declared.size() - 1; i >= mark; i--) {
+            Name name = declared.remove(i);
+            ArrayDeque<Name> stack = bindings.get(name);
+
+            stack.pollLast();
+            if (stack.isEmpty()) {
+                bindings.remove(name);
+            }
+        }
     }
 
     @Override
@@ -91,12 +109,11 @@ public class VariableRemapper extends TreeTranslator {
     @Override
     public void visitVarDef(JCVariableDecl tree) {
         Name mappedName = nameMapper.map(tree.name.toString());
-        Map<Name, Name> current = scopeVariableMap.peekLast();
-        if (current == null) {
-            current = push();
-        }
 
-        current.put(tree.name, mappedName);
+        // Variables outside of any scope stay bound until the end
+        bindings.computeIfAbsent(tree.name, name -> new ArrayDeque<>()).addLast(mappedName);
+        declared.add(tree.name);
+
         tree.name = mappedName;
         super.visitVarDef(tree);
     }
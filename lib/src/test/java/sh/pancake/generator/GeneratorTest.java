@@ -5,18 +5,58 @@
  */
 package sh.pancake.generator;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import javax.management.JMX;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.Test;
 
 public class GeneratorTest {
 
-    private <T> void step(T item) {
+    private final int squareCount = 1000;
+
+    private int shrinkingBound;
+
+    private <T, V> V step(T item) {
+        return null;
     }
 
     private <T> void stepAll(Iterator<T> iterator) {
     }
 
+    private <T> void stepAll(Iterable<T> iterable) {
+    }
+
+    private <T> void stepAll(T[] array) {
+    }
+
+    private <T> T await(CompletionStage<T> stage) {
+        return null;
+    }
+
     private static class TestCloseable implements AutoCloseable {
         @Override
         public void close() throws Exception {
@@ -24,6 +64,16 @@ public class GeneratorTest {
         }
     }
 
+    private static class Box<T> {
+        private <E> void stepAll(Iterator<E> iterator) {
+        }
+
+        @Generator
+        private Iterator<T> each(List<T> list) {
+            stepAll(list.iterator());
+        }
+    }
+
     @Generator
     private Iterator<Integer> gen1() {
         Object obj = new Object();
@@ -47,7 +97,6 @@ public class GeneratorTest {
             try (TestCloseable t = new TestCloseable()) {
                 step(2);
                 step(2);
-                return null;
                 step(2);
             }
         } catch (Throwable t) {
@@ -110,10 +159,666 @@ public class GeneratorTest {
         stepAll(iter2);
     }
 
+    @Generator
+    private PrimitiveIterator.OfInt genInt(int count, PrimitiveIterator.OfInt tail) {
+        int i = 0;
+
+        while (i < count) {
+            step(i * 2);
+            i++;
+        }
+
+        stepAll(tail);
+    }
+
+    @Generator
+    private Iterator<Integer> genNested(int count) {
+        int i = 0;
+
+        outer: while (i < count) {
+            int j = 0;
+            i++;
+
+            while (j < count) {
+                j++;
+
+                if (j == 2) {
+                    continue;
+                } else if (j > i) {
+                    continue outer;
+                }
+
+                step(i * 10 + j);
+            }
+        }
+    }
+
+    @Generator
+    private Iterator<String> genFor(int count) {
+        for (int i = 0; i < count; i++) {
+            String text = "item " + i;
+            step(text);
+        }
+    }
+
+    @Generator
+    private Iterator<String> genSequence(List<String> first, List<String> second) {
+        for (String text : first) {
+            step(text);
+        }
+
+        for (String text : second) {
+            step(text);
+        }
+    }
+
+    @Generator
+    private Iterator<String> genSources(String[] array, List<String> list) {
+        stepAll(array);
+        stepAll(list);
+        stepAll(list.iterator());
+    }
+
+    @Generator
+    private Iterator<Integer> genCountdown(int depth) {
+        step(depth);
+
+        if (depth > 0) {
+            stepAll(genCountdown(depth - 1));
+        }
+    }
+
+    @AsyncGenerator
+    private Flow.Publisher<String> genTicks(int count) {
+        for (int i = 0; i < count; i++) {
+            System.out.println("Tick " + i);
+            step("tick " + i);
+        }
+    }
+
+    @AsyncGenerator
+    private CompletableFuture<String> genGreeting(CompletionStage<String> name, CompletionStage<Integer> count) {
+        String text = await(name);
+        text = "Hello " + text;
+
+        int times;
+        try {
+            times = await(count);
+        } catch (IllegalStateException e) {
+            return "Failed " + e.getMessage();
+        }
+
+        for (int i = 1; i < times; i++) {
+            text += "!";
+        }
+
+        return text;
+    }
+
+    @Generator(mode = Generator.Mode.THREAD)
+    private Iterator<String> genThread(Object lock, int count) {
+        synchronized (lock) {
+            for (int i = 0; i < count; i++) {
+                step("locked " + i);
+            }
+        }
+
+        try {
+            step("last");
+        } finally {
+            System.out.println("Thread generator finished");
+        }
+    }
+
+    @Generator
+    private Coroutine<Double, Integer> genAverage() {
+        double sum = 0;
+        int count = 0;
+
+        Integer value = step(0.0);
+        while (value != null) {
+            sum += value;
+            count++;
+
+            value = step(sum / count);
+        }
+    }
+
+    @Generator(reusable = true)
+    private static Iterable<String> genRepeat(String text, int count) {
+        for (int i = 0; i < count; i++) {
+            step(text);
+        }
+    }
+
+    @Generator
+    private static Iterable<Integer> genDecrement(int count) {
+        while (count > 0) {
+            step(count);
+            count--;
+        }
+    }
+
+    @Generator(reusable = true)
+    private static Iterable<Integer> genDecrementReused(int count) {
+        while (count > 0) {
+            step(count);
+            count--;
+        }
+    }
+
+    @Generator
+    private Iterator<String> genTry(int count) {
+        for (int i = 0; i < count; i++) {
+            try {
+                step("try " + i);
+
+                if (i % 2 == 1) {
+                    throw new IllegalStateException("odd " + i);
+                }
+
+                if (i == 2) {
+                    break;
+                }
+            } catch (IllegalStateException e) {
+                step(e.getMessage());
+            } finally {
+                step("finally " + i);
+            }
+        }
+    }
+
+    @Generator(characteristics = Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SIZED, estimatedSize = 3)
+    private Stream<String> genStream() {
+        step("a");
+        step("b");
+        step("c");
+    }
+
+    @Generator(characteristics = Spliterator.ORDERED | Spliterator.NONNULL, splittable = true)
+    private Stream<Long> genSquares(int count) {
+        for (int i = 0; i < count; i++) {
+            step((long) i * i);
+        }
+    }
+
+    @Generator(splittable = true)
+    private Stream<Long> genFieldSquares() {
+        for (int i = 0; i < squareCount; i++) {
+            step((long) i * i);
+        }
+    }
+
+    private void shrink() {
+        shrinkingBound--;
+    }
+
+    @Generator(splittable = true)
+    private Stream<Integer> genShrinking() {
+        for (int i = 0; i < shrinkingBound; i++) {
+            shrink();
+            step(i);
+        }
+    }
+
+    @Generator(instrumented = true)
+    private Iterator<Integer> genInstrumented(int count) {
+        for (int i = 0; i < count; i++) {
+            try {
+                if (i % 2 == 1) {
+                    throw new IllegalStateException();
+                }
+
+                step(i);
+            } catch (IllegalStateException e) {
+                step(-i);
+            }
+        }
+    }
+
+    private boolean checkIndex(int index) {
+        if (index == 2) {
+            throw new IllegalStateException("Index " + index);
+        }
+
+        return true;
+    }
+
+    @Generator
+    private Iterator<Integer> genChecked() {
+        for (int i = 0; checkIndex(i); i++) {
+            step(i);
+        }
+    }
+
+    private static <T> List<T> collect(Iterator<T> iter) {
+        List<T> list = new ArrayList<>();
+        while (iter.hasNext()) {
+            list.add(iter.next());
+        }
+
+        return list;
+    }
+
     @Test
     public void testGenerator() {
+        List<Integer> values = new ArrayList<>();
         for (int i : gen2(gen1())) {
-            System.out.println(i);
+            values.add(i);
         }
+
+        assertEquals(List.of(100, 0, 0, 1, 2, 3, 4, 2, 2, 2, 99, 1, 3, 7, 2, 200), values);
+    }
+
+    @Test
+    public void testPushGenerator() {
+        List<Integer> values = new ArrayList<>();
+        gen2(gen(gen1())).forEach(values::add);
+
+        assertEquals(List.of(100, 2, 4, 6, 8, 10, 0, 0, 1, 2, 3, 4, 2, 2, 2, 99, 1, 3, 7, 2, 200), values);
+    }
+
+    @Test
+    public void testNestedLoopGenerator() {
+        List<Integer> values = new ArrayList<>();
+        genNested(3).forEachRemaining(values::add);
+        assertEquals(List.of(11, 21, 31, 33), values);
+
+        assertEquals(values, collect(genNested(3)));
+    }
+
+    @Test
+    public void testForLoopGenerator() {
+        assertEquals(List.of("item 0", "item 1", "item 2"), collect(genFor(3)));
+    }
+
+    @Test
+    public void testSequenceGenerator() {
+        assertEquals(List.of("a", "b", "c"), collect(genSequence(List.of("a", "b"), List.of("c"))));
+    }
+
+    @Test
+    public void testTryGenerator() {
+        // Odd index is caught, break at 2 runs finally before leaving the loop
+        assertEquals(List.of("try 0", "finally 0", "try 1", "odd 1", "finally 1", "try 2", "finally 2"),
+                collect(genTry(4)));
+    }
+
+    @Test
+    public void testReusableGenerator() {
+        Iterable<String> iterable = genRepeat("a", 2);
+
+        List<String> values = new ArrayList<>();
+        for (String text : iterable) {
+            values.add(text);
+        }
+
+        // Iterating again starts over
+        iterable.forEach(values::add);
+
+        for (String text : genRepeat("b", 3)) {
+            values.add(text);
+        }
+
+        assertEquals(List.of("a", "a", "a", "a", "b", "b", "b"), values);
+    }
+
+    @Test
+    public void testPooledGeneratorInUse() {
+        Iterator<String> first = genRepeat("a", 2).iterator();
+        assertEquals("a", first.next());
+
+        // Pooled generator is still running, so another one is created
+        Iterator<String> second = genRepeat("b", 2).iterator();
+        assertTrue(first != second);
+        assertEquals(List.of("b", "b"), collect(second));
+
+        assertEquals("a", first.next());
+        assertFalse(first.hasNext());
+
+        // Finished one is handed out again
+        Iterable<String> third = genRepeat("c", 1);
+        assertTrue(third == second);
+        assertEquals(List.of("c"), collect(third.iterator()));
+    }
+
+    @Test
+    public void testAssignedParamGenerator() {
+        Iterable<Integer> iterable = genDecrement(3);
+
+        List<Integer> first = new ArrayList<>();
+        iterable.forEach(first::add);
+
+        List<Integer> second = new ArrayList<>();
+        for (int value : iterable) {
+            second.add(value);
+        }
+
+        System.out.println(first + " " + second);
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void testReusedAssignedParamGenerator() {
+        for (int value : genDecrementReused(3)) {
+            System.out.println(value);
+        }
+
+        Iterable<Integer> iterable = genDecrementReused(2);
+
+        List<Integer> first = new ArrayList<>();
+        iterable.forEach(first::add);
+
+        List<Integer> second = new ArrayList<>();
+        iterable.forEach(second::add);
+
+        System.out.println(first + " " + second);
+        assertEquals(List.of(2, 1), second);
+    }
+
+    @Test
+    public void testSourceGenerator() {
+        assertEquals(List.of("a", "b", "c", "c"), collect(genSources(new String[] { "a", "b" }, List.of("c"))));
+
+        List<String> values = new ArrayList<>();
+        genSources(new String[] { "d" }, List.of("e", "f")).forEachRemaining(values::add);
+        assertEquals(List.of("d", "e", "f", "e", "f"), values);
+    }
+
+    @Test
+    public void testRecursiveGenerator() {
+        Iterator<Integer> iter = genCountdown(10000);
+
+        int sum = 0;
+        while (iter.hasNext()) {
+            sum += iter.next();
+        }
+
+        assertEquals(50005000, sum);
+        assertEquals(List.of(3, 2, 1, 0), collect(genCountdown(3)));
+    }
+
+    @Test
+    public void testDeepRecursiveGenerator() {
+        // Pushing through every level would overflow stack, delegated generators are pulled by trampoline
+        long[] sum = new long[1];
+        genCountdown(20000).forEachRemaining(value -> sum[0] += value);
+        assertEquals(200010000L, sum[0]);
+
+        Iterator<Integer> iter = genCountdown(20000);
+        long pulled = 0;
+        while (iter.hasNext()) {
+            pulled += iter.next();
+        }
+        assertEquals(200010000L, pulled);
+    }
+
+    @Test
+    public void testAsyncGenerator() {
+        List<String> signals = new ArrayList<>();
+
+        genTicks(5).subscribe(new Flow.Subscriber<String>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(2);
+            }
+
+            @Override
+            public void onNext(String item) {
+                signals.add(item);
+
+                if (item.equals("tick 1")) {
+                    subscription.request(2);
+                } else if (item.equals("tick 3")) {
+                    subscription.cancel();
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                signals.add("error " + throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                signals.add("complete");
+            }
+        });
+
+        // Cancelled subscription gets no more signals
+        assertEquals(List.of("tick 0", "tick 1", "tick 2", "tick 3"), signals);
+    }
+
+    @Test
+    public void testAsyncGeneratorExactRequest() {
+        List<String> signals = new ArrayList<>();
+
+        genTicks(3).subscribe(new Flow.Subscriber<String>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(3);
+            }
+
+            @Override
+            public void onNext(String item) {
+                signals.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                signals.add("error " + throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                signals.add("complete");
+            }
+        });
+
+        System.out.println(signals);
+        assertEquals(List.of("tick 0", "tick 1", "tick 2", "complete"), signals);
+    }
+
+    @Test
+    public void testAwaitGenerator() {
+        CompletableFuture<Integer> count = new CompletableFuture<>();
+        CompletableFuture<String> greeting = genGreeting(CompletableFuture.completedFuture("world"), count);
+
+        // Suspended on count which is not completed yet
+        assertFalse(greeting.isDone());
+        count.complete(3);
+        assertEquals("Hello world!!", greeting.join());
+
+        CompletableFuture<Integer> failing = new CompletableFuture<>();
+        greeting = genGreeting(CompletableFuture.completedFuture("world"), failing);
+        failing.completeExceptionally(new IllegalStateException("count"));
+        assertEquals("Failed count", greeting.join());
+    }
+
+    @Test
+    public void testThreadGenerator() {
+        assertEquals(List.of("locked 0", "locked 1", "locked 2", "last"), collect(genThread(new Object(), 3)));
+
+        List<String> values = new ArrayList<>();
+        genThread(new Object(), 1).forEachRemaining(values::add);
+        assertEquals(List.of("locked 0", "last"), values);
+    }
+
+    @Test
+    public void testCoroutineGenerator() {
+        Coroutine<Double, Integer> average = genAverage();
+
+        List<Double> values = List.of(average.next(), average.send(10), average.send(20), average.send(60));
+        assertEquals(List.of(0.0, 10.0, 15.0, 30.0), values);
+
+        // Resuming without a sent value ends the loop
+        assertFalse(average.hasNext());
+    }
+
+    @Test
+    public void testStaticNestedGenerator() {
+        // Generators not using enclosing instance do not keep a reference to it, sending step included
+        for (Object generator : List.of(genDecrement(1), genRepeat("a", 1), genAverage())) {
+            Class<?> type = generator.getClass();
+
+            System.out.println(type.getName() + " member: " + type.isMemberClass() + ", static: "
+                    + Modifier.isStatic(type.getModifiers()));
+            assertTrue(type.isMemberClass() && Modifier.isStatic(type.getModifiers()));
+        }
+    }
+
+    @Test
+    public void testGenericOwnerGenerator() {
+        // Type variable of owner in signature keeps generator an inner class
+        Iterator<String> iter = new Box<String>().each(List.of("a", "b"));
+        List<String> list = new ArrayList<>();
+        iter.forEachRemaining(list::add);
+
+        assertEquals(List.of("a", "b"), list);
+    }
+
+    @Test
+    public void testBatchGenerator() {
+        BatchIterator<String> iter = (BatchIterator<String>) genSequence(List.of("a", "b", "c"), List.of("d", "e"));
+        String[] buf = new String[2];
+
+        // Value buffered by hasNext is the first of the batch
+        assertTrue(iter.hasNext());
+
+        List<String> batches = new ArrayList<>();
+        int count;
+        while ((count = iter.nextBatch(buf, 0, buf.length)) > 0) {
+            batches.add(String.join(",", Arrays.asList(buf).subList(0, count)));
+        }
+        assertEquals(List.of("a,b", "c,d", "e"), batches);
+
+        int[] intBuf = new int[8];
+        count = ((BatchIterator.OfInt) genInt(3, IntStream.of(7).iterator())).nextBatch(intBuf, 1, 7);
+        assertEquals(4, count);
+        assertEquals("[0, 0, 2, 4, 7, 0, 0, 0]", Arrays.toString(intBuf));
+    }
+
+    @Test
+    public void testPrimitiveGenerator() {
+        PrimitiveIterator.OfInt iter = genInt(3, genInt(2, IntStream.of(7).iterator()));
+        assertEquals(0, iter.nextInt());
+
+        List<Integer> values = new ArrayList<>();
+        iter.forEachRemaining((int i) -> values.add(i));
+        assertEquals(List.of(2, 4, 0, 2, 7), values);
+    }
+
+    @Test
+    public void testStreamGenerator() {
+        assertEquals(3, genStream().toArray().length);
+        assertEquals(3L, genStream().spliterator().getExactSizeIfKnown());
+
+        List<String> values = new ArrayList<>();
+        genStream().forEach(values::add);
+        assertEquals(List.of("a", "b", "c"), values);
+    }
+
+    @Test
+    public void testSplitGenerator() {
+        assertTrue(genSquares(1000).spliterator().trySplit() != null);
+        assertEquals(332833500L, genSquares(1000).parallel().mapToLong(Long::longValue).sum());
+    }
+
+    @Test
+    public void testSplitFieldBoundGenerator() {
+        // Final field is read once either way
+        assertTrue(genFieldSquares().spliterator().trySplit() != null);
+        assertEquals(genFieldSquares().mapToLong(Long::longValue).sum(),
+                genFieldSquares().parallel().mapToLong(Long::longValue).sum());
+
+        // Bound changed by the loop is not split
+        shrinkingBound = 10;
+        List<Integer> sequential = genShrinking().toList();
+        shrinkingBound = 10;
+        assertTrue(genShrinking().spliterator().trySplit() == null);
+        shrinkingBound = 10;
+        List<Integer> parallel = genShrinking().parallel().toList();
+
+        assertEquals(List.of(0, 1, 2, 3, 4), sequential);
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    public void testInstrumentedGenerator() throws MalformedObjectNameException {
+        List<Integer> values = new ArrayList<>();
+        genInstrumented(4).forEachRemaining(values::add);
+        assertEquals(List.of(0, -1, 2, -3), values);
+
+        genInstrumented(4).next();
+
+        String label = "sh.pancake.generator.GeneratorTest.genInstrumented(int)";
+        ObjectName name = new ObjectName("sh.pancake.generator:type=Generator,name=" + ObjectName.quote(label));
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+
+        GeneratorProbeMXBean probe = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), name,
+                GeneratorProbeMXBean.class);
+        assertEquals(label, probe.getName());
+
+        // Exhausted generator resumes once more to finish, abandoned one depends on garbage collection
+        assertEquals(2L, probe.getCreated());
+        assertEquals(6L, probe.getResumes());
+        assertEquals(5L, probe.getYields());
+        assertEquals(2L, probe.getExceptions());
+        assertEquals(1L, probe.getExhausted());
+    }
+
+    @Test
+    public void testGeneratorLineNumber() throws IOException {
+        Iterator<Integer> iter = genChecked();
+        List<Integer> values = new ArrayList<>();
+
+        IllegalStateException thrown = null;
+        try {
+            while (iter.hasNext()) {
+                values.add(iter.next());
+            }
+        } catch (IllegalStateException e) {
+            thrown = e;
+        }
+
+        assertEquals(List.of(0, 1), values);
+        assertTrue(thrown != null);
+
+        // State map is written by -Agenerator.stateMap of test compile
+        String entry = readStateMapEntry("genChecked()");
+        Matcher lineMatcher = Pattern.compile("\"line\": (\\d+)").matcher(entry);
+        assertTrue(lineMatcher.find());
+
+        // Frame of state machine points at loop condition, on the line after method declaration
+        int loopLine = Integer.parseInt(lineMatcher.group(1)) + 1;
+        assertEquals(loopLine, thrown.getStackTrace()[1].getLineNumber());
+
+        boolean mapped = false;
+        Matcher rangeMatcher = Pattern.compile("\\[(\\d+), (\\d+)\\]").matcher(entry);
+        while (rangeMatcher.find()) {
+            int start = Integer.parseInt(rangeMatcher.group(1));
+            int end = Integer.parseInt(rangeMatcher.group(2));
+            if (start <= loopLine && loopLine <= end) {
+                mapped = true;
+            }
+        }
+        assertTrue(mapped, "No state mapped to line " + loopLine + ": " + entry);
+    }
+
+    private static String readStateMapEntry(String method) throws IOException {
+        try (InputStream in = GeneratorTest.class.getResourceAsStream("GeneratorTest.states.json")) {
+            assertTrue(in != null, "State map is not written");
+
+            for (String line : new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+                if (line.contains("\"method\": \"" + method + "\"")) {
+                    return line;
+                }
+            }
+        }
+
+        throw new AssertionError("No state map entry of " + method);
     }
 }